@@ -29,6 +29,12 @@ android {
         sourceCompatibility = JavaVersion.VERSION_11
         targetCompatibility = JavaVersion.VERSION_11
     }
+    testOptions {
+        unitTests.all {
+            // Benchmarks are skipped unless asked for with -Pfog.benchmarks
+            it.systemProperty("fog.benchmarks", project.hasProperty("fog.benchmarks"))
+        }
+    }
 }
 
 dependencies {
@@ -48,6 +54,8 @@ dependencies {
     implementation("com.google.zxing:core:3.5.3")
 
     testImplementation(libs.junit)
+    // android.jar only has stubs of org.json; tests that read/write the DB need the real one
+    testImplementation("org.json:json:20231013")
     androidTestImplementation(libs.ext.junit)
     androidTestImplementation(libs.espresso.core)
 }
\ No newline at end of file
@@ -0,0 +1,189 @@
+package com.terra.FogOfEarth;
+
+import java.util.HashMap;
+
+/**
+ * <p>Rasterised occupancy of revealed area, kept up to date as points are added.</p>
+ * <p>The world is split into cells of roughly {@code cellMeters} a side. Adding a point marks
+ * every cell whose centre lies inside its reveal circle and adds the area of newly marked
+ * cells to a running total, so coverage queries are O(1) however long the history is.</p>
+ */
+final class CoverageRaster {
+
+    // Same flat-earth scale the old grid-sampling estimator used
+    private static final double METERS_PER_DEG = 111320.0;
+
+    // Sphere used for cell areas (WGS84 equatorial radius, as osmdroid's projection)
+    private static final double EARTH_RADIUS_M = 6378137.0;
+
+    // Padding around explored area (meters), as in the original estimator
+    private static final double BOUNDS_PAD_M = 200.0;
+
+    // Cells are stored in square chunks of 64 x 64 bits (one long per chunk row)
+    private static final int CHUNK_BITS = 6;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    private final double cellDeg;
+    private final double cellAreaScale;
+    private final int colsAroundGlobe;
+    private final HashMap<Long, long[]> chunks = new HashMap<>();
+
+    // Last chunk touched; consecutive cells nearly always share a chunk
+    private long lastKey = Long.MIN_VALUE;
+    private long[] lastChunk = null;
+
+    private long coveredCells = 0;
+    private double coveredAreaM2 = 0.0;
+
+    // Bounding box of revealed points
+    private int pointCount = 0;
+    private double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+    private double minLon = Double.POSITIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+    private double latSum = 0.0;
+
+    /**
+     * @param cellMeters Raster resolution; coverage is exact up to about one cell along circle edges
+     */
+    CoverageRaster(double cellMeters) {
+        // Snap the cell size so a whole number of columns wraps around the globe
+        int cols = (int) Math.ceil(360.0 / (cellMeters / METERS_PER_DEG));
+        this.colsAroundGlobe = cols;
+        this.cellDeg = 360.0 / cols;
+        this.cellAreaScale = EARTH_RADIUS_M * EARTH_RADIUS_M * Math.toRadians(cellDeg);
+    }
+
+    /** Remove all coverage */
+    void clear() {
+        chunks.clear();
+        lastKey = Long.MIN_VALUE;
+        lastChunk = null;
+        coveredCells = 0;
+        coveredAreaM2 = 0.0;
+        pointCount = 0;
+        minLat = Double.POSITIVE_INFINITY;
+        maxLat = Double.NEGATIVE_INFINITY;
+        minLon = Double.POSITIVE_INFINITY;
+        maxLon = Double.NEGATIVE_INFINITY;
+        latSum = 0.0;
+    }
+
+    /**
+     * Marks the cells covered by a reveal circle
+     * @param lat Latitude of the circle centre
+     * @param lon Longitude of the circle centre
+     * @param radiusMeters Reveal radius
+     * @return Area in square meters that this circle newly covered
+     */
+    double add(double lat, double lon, double radiusMeters) {
+        pointCount++;
+        latSum += lat;
+        if (lat < minLat) minLat = lat;
+        if (lat > maxLat) maxLat = lat;
+        if (lon < minLon) minLon = lon;
+        if (lon > maxLon) maxLon = lon;
+
+        double added = 0.0;
+        int row0 = (int) Math.ceil((lat - radiusMeters / METERS_PER_DEG) / cellDeg - 0.5);
+        int row1 = (int) Math.floor((lat + radiusMeters / METERS_PER_DEG) / cellDeg - 0.5);
+
+        for (int row = row0; row <= row1; row++) {
+            double rowLat = (row + 0.5) * cellDeg;
+            if (rowLat <= -90.0 || rowLat >= 90.0) continue;
+
+            // Half-width of the circle along this row, in meters then degrees of longitude
+            double dy = (rowLat - lat) * METERS_PER_DEG;
+            double halfWidthSq = radiusMeters * radiusMeters - dy * dy;
+            if (halfWidthSq < 0) continue;
+            double cosLat = Math.cos(Math.toRadians(rowLat));
+            double dLon = Math.sqrt(halfWidthSq) / (METERS_PER_DEG * Math.max(1e-9, cosLat));
+
+            // Cells whose centre lies inside [lon - dLon, lon + dLon]
+            int col0 = (int) Math.ceil((lon - dLon + 180.0) / cellDeg - 0.5);
+            int col1 = (int) Math.floor((lon + dLon + 180.0) / cellDeg - 0.5);
+            if (col1 - col0 + 1 > colsAroundGlobe) col1 = col0 + colsAroundGlobe - 1;
+
+            double cellArea = cellAreaM2(row);
+            for (int col = col0; col <= col1; col++) {
+                if (set(row, wrapCol(col))) {
+                    coveredCells++;
+                    added += cellArea;
+                }
+            }
+        }
+
+        coveredAreaM2 += added;
+        return added;
+    }
+
+    /** Number of raster cells marked as revealed */
+    long getCoveredCells() {
+        return coveredCells;
+    }
+
+    /**
+     * Total revealed area in square meters. Each cell counts with its exact area on the sphere, so
+     * the only error is cells straddling the edge of the revealed region: at most about half a
+     * cell diagonal times the region's perimeter, and much less in practice as the cells just
+     * inside and just outside the edge cancel out.
+     */
+    double getCoveredAreaM2() {
+        return coveredAreaM2;
+    }
+
+    /**
+     * Fraction of the padded bounding box around all revealed points that is still fogged.
+     * Same definition as the old grid-sampling estimator, but O(1).
+     * @return uncovered fraction in [0,1] (1.0 = nothing revealed)
+     */
+    double estimateUncoveredFraction() {
+        if (pointCount == 0) return 1.0;
+
+        double latMid = latSum / pointCount;
+        double lonScale = METERS_PER_DEG * Math.max(0.2, Math.cos(Math.toRadians(latMid)));
+
+        double heightM = (maxLat - minLat) * METERS_PER_DEG + 2 * BOUNDS_PAD_M;
+        double widthM = (maxLon - minLon) * lonScale + 2 * BOUNDS_PAD_M;
+        double boxAreaM2 = widthM * heightM;
+        if (boxAreaM2 <= 0) return 1.0;
+
+        double uncoveredFrac = 1.0 - coveredAreaM2 / boxAreaM2;
+        if (uncoveredFrac < 0) uncoveredFrac = 0;
+        if (uncoveredFrac > 1) uncoveredFrac = 1;
+        return uncoveredFrac;
+    }
+
+    // -- Method Helpers --
+
+    /** Area of one cell in a row: R^2 * dLon * (sin(north) - sin(south)) */
+    private double cellAreaM2(int row) {
+        double south = Math.toRadians(Math.max(-90.0, row * cellDeg));
+        double north = Math.toRadians(Math.min(90.0, (row + 1) * cellDeg));
+        return cellAreaScale * (Math.sin(north) - Math.sin(south));
+    }
+
+    private int wrapCol(int col) {
+        int c = col % colsAroundGlobe;
+        return c < 0 ? c + colsAroundGlobe : c;
+    }
+
+    /** Sets a cell's bit, returning true if it wasn't already set */
+    private boolean set(int row, int col) {
+        long key = ((long) (row >> CHUNK_BITS) << 32) | ((col >> CHUNK_BITS) & 0xffffffffL);
+        long[] chunk = lastChunk;
+        if (key != lastKey || chunk == null) {
+            chunk = chunks.get(key);
+            if (chunk == null) {
+                chunk = new long[CHUNK_SIZE];
+                chunks.put(key, chunk);
+            }
+            lastKey = key;
+            lastChunk = chunk;
+        }
+
+        int r = row & (CHUNK_SIZE - 1);
+        long bit = 1L << (col & (CHUNK_SIZE - 1));
+        if ((chunk[r] & bit) != 0) return false;
+        chunk[r] |= bit;
+        return true;
+    }
+}
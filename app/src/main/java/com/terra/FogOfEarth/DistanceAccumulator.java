@@ -0,0 +1,141 @@
+package com.terra.FogOfEarth;
+
+/**
+ * <p>Running distance of the current study session, kept in memory.</p>
+ * <p>A fix only costs a distance calculation and an add under one lock. The caller writes a
+ * {@link Checkpoint} to durable storage when {@link #add} says one is due, and on lifecycle
+ * events, so at most one checkpoint interval of distance is lost if the process dies.</p>
+ */
+final class DistanceAccumulator {
+
+    // Steps shorter than this are GPS jitter; longer ones are jumps, not travel
+    static final double MIN_STEP_METERS = 0.5;
+    static final double MAX_STEP_METERS = 2000;
+
+    private static final double EARTH_RADIUS_METERS = 6371008.8;
+
+    /** What a checkpoint saves */
+    static final class Checkpoint {
+        final long distanceMm;
+        final boolean hasLast;
+        final double lastLat;
+        final double lastLon;
+
+        Checkpoint(long distanceMm, boolean hasLast, double lastLat, double lastLon) {
+            this.distanceMm = distanceMm;
+            this.hasLast = hasLast;
+            this.lastLat = lastLat;
+            this.lastLon = lastLon;
+        }
+    }
+
+    private final long checkpointIntervalMs;
+
+    private boolean active = false;
+    private long distanceMm = 0;
+    private boolean hasLast = false;
+    private double lastLat = 0;
+    private double lastLon = 0;
+
+    // Changed since the last checkpoint
+    private boolean dirty = false;
+    private long lastCheckpointMs = 0;
+
+    /**
+     * @param checkpointIntervalMs Longest {@link #add} lets changes go without a checkpoint
+     */
+    DistanceAccumulator(long checkpointIntervalMs) {
+        this.checkpointIntervalMs = checkpointIntervalMs;
+    }
+
+    /**
+     * Pick up where a saved checkpoint left off (e.g. after the process restarted)
+     * @param active Whether a session is running
+     * @param saved Last checkpoint of that session
+     * @param nowMs Current time
+     */
+    synchronized void restore(boolean active, Checkpoint saved, long nowMs) {
+        this.active = active;
+        distanceMm = saved.distanceMm;
+        hasLast = saved.hasLast;
+        lastLat = saved.lastLat;
+        lastLon = saved.lastLon;
+        dirty = false;
+        lastCheckpointMs = nowMs;
+    }
+
+    /** A new session starts from zero (its start is saved by the caller) */
+    synchronized void start(long nowMs) {
+        active = true;
+        distanceMm = 0;
+        hasLast = false;
+        dirty = false;
+        lastCheckpointMs = nowMs;
+    }
+
+    /** The session ended; later fixes are ignored until the next {@link #start} */
+    synchronized void end() {
+        active = false;
+        distanceMm = 0;
+        hasLast = false;
+        dirty = false;
+    }
+
+    /**
+     * Add the distance from the last position to this one
+     * @param lat Latitude
+     * @param lon Longitude
+     * @param nowMs Current time
+     * @return true if a checkpoint is due
+     */
+    synchronized boolean add(double lat, double lon, long nowMs) {
+        if (!active) return false;
+
+        if (hasLast) {
+            double d = distanceMeters(lastLat, lastLon, lat, lon);
+            // ignore jitter; ignore absurd jumps
+            if (d >= MIN_STEP_METERS && d < MAX_STEP_METERS) {
+                distanceMm += Math.round(d * 1000.0);
+            }
+        }
+        hasLast = true;
+        lastLat = lat;
+        lastLon = lon;
+        dirty = true;
+        return nowMs - lastCheckpointMs >= checkpointIntervalMs;
+    }
+
+    /**
+     * Take what needs saving, and count it as saved
+     * @param nowMs Current time
+     * @return State to save, or null if nothing changed since the last checkpoint
+     */
+    synchronized Checkpoint takeCheckpoint(long nowMs) {
+        if (!dirty) return null;
+        dirty = false;
+        lastCheckpointMs = nowMs;
+        return new Checkpoint(distanceMm, hasLast, lastLat, lastLon);
+    }
+
+    synchronized boolean isActive() {
+        return active;
+    }
+
+    synchronized long getDistanceMm() {
+        return distanceMm;
+    }
+
+    /**
+     * Great-circle distance on the mean Earth sphere (haversine)
+     * @return Distance in meters
+     */
+    static double distanceMeters(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double sinLat = Math.sin(dLat / 2);
+        double sinLon = Math.sin(dLon / 2);
+        double a = sinLat * sinLat
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * sinLon * sinLon;
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+}
@@ -0,0 +1,251 @@
+package com.terra.FogOfEarth;
+
+import androidx.annotation.VisibleForTesting;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ * <p>Processes location fixes off the main thread, in order: validate/filter, distance
+ * accounting, reveal, record, then batched persist.</p>
+ * <p>{@link #submit} only copies the fix into a bounded buffer and, if no drain is scheduled,
+ * schedules one on the executor. A drain handles every fix that has arrived by then, and saves at
+ * most once per batch, and no more often than the persist interval. If fixes arrive faster than
+ * they are handled, the buffer stops growing at {@link #MAX_PENDING} and the oldest waiting fixes
+ * are dropped (and counted), so a burst can't build up unbounded work.</p>
+ */
+final class FixPipeline {
+
+    /** Where each stage's work goes */
+    interface Stages {
+        /** Account for distance travelled to this fix */
+        void addDistance(double lat, double lon, long timeMs);
+
+        /** Reveal fog at the fix; true if a new point was added */
+        boolean reveal(double lat, double lon);
+
+        /** Record the accepted fix for the study, with whether it revealed new fog */
+        void record(long timeMs, double lat, double lon, float accuracyMeters, float speedMps, boolean revealed);
+
+        /** Save what has been revealed */
+        void persist();
+    }
+
+    // Most fixes that can wait for the pipeline; older ones are dropped past this
+    static final int MAX_PENDING = 64;
+
+    // Fixes less accurate than this don't count
+    static final float MAX_ACCURACY_METERS = 100f;
+
+    private final Executor executor;
+    private final Stages stages;
+    private final long persistIntervalMs;
+
+    // Waiting fixes, as a ring buffer
+    private final Object lock = new Object();
+    private final double[] pendingLat = new double[MAX_PENDING];
+    private final double[] pendingLon = new double[MAX_PENDING];
+    private final float[] pendingAccuracy = new float[MAX_PENDING];
+    private final float[] pendingSpeed = new float[MAX_PENDING];
+    private final long[] pendingTime = new long[MAX_PENDING];
+    private int head = 0;
+    private int count = 0;
+    private boolean draining = false;
+
+    // Only touched on the executor
+    private long lastAcceptedTimeMs = Long.MIN_VALUE;
+    private long lastPersistMs = Long.MIN_VALUE;
+    private boolean unsaved = false;
+
+    // Counters for the study logs and tests
+    private long dropped = 0;
+    private long rejected = 0;
+    private long revealed = 0;
+    private long persists = 0;
+
+    /**
+     * @param executor Runs the stages (e.g. a HandlerThread's Handler); must run tasks in order
+     * @param stages What each stage does
+     * @param persistIntervalMs Shortest time between saves
+     */
+    FixPipeline(Executor executor, Stages stages, long persistIntervalMs) {
+        this.executor = executor;
+        this.stages = stages;
+        this.persistIntervalMs = persistIntervalMs;
+    }
+
+    /**
+     * Queue a fix. Cheap and safe to call from any thread.
+     * @param lat Latitude
+     * @param lon Longitude
+     * @param accuracyMeters Horizontal accuracy, or NaN if unknown
+     * @param timeMs Time of the fix
+     */
+    void submit(double lat, double lon, float accuracyMeters, long timeMs) {
+        submit(lat, lon, accuracyMeters, Float.NaN, timeMs);
+    }
+
+    /**
+     * Queue a fix. Cheap and safe to call from any thread.
+     * @param lat Latitude
+     * @param lon Longitude
+     * @param accuracyMeters Horizontal accuracy, or NaN if unknown
+     * @param speedMps Speed, or NaN if unknown
+     * @param timeMs Time of the fix
+     */
+    void submit(double lat, double lon, float accuracyMeters, float speedMps, long timeMs) {
+        synchronized (lock) {
+            if (count == MAX_PENDING) {
+                // Full: drop the oldest so the newest position still gets through
+                head = (head + 1) % MAX_PENDING;
+                count--;
+                dropped++;
+            }
+            int i = (head + count) % MAX_PENDING;
+            pendingLat[i] = lat;
+            pendingLon[i] = lon;
+            pendingAccuracy[i] = accuracyMeters;
+            pendingSpeed[i] = speedMps;
+            pendingTime[i] = timeMs;
+            count++;
+
+            if (draining) return;
+            draining = true;
+        }
+        executor.execute(this::drain);
+    }
+
+    /**
+     * Last call before stopping: save anything revealed but not yet saved, once the queued fixes
+     * are handled, then run a final task
+     * @param last Runs on the executor after the save (e.g. study logging), or null
+     * @return Counted down once the save has been asked for and last has run, so a caller that
+     *         is about to flush storage can wait for it
+     */
+    CountDownLatch finish(Runnable last) {
+        CountDownLatch done = new CountDownLatch(1);
+        executor.execute(() -> {
+            try {
+                if (unsaved) persist(System.currentTimeMillis());
+                if (last != null) last.run();
+            } finally {
+                done.countDown();
+            }
+        });
+        return done;
+    }
+
+    /** Fixes dropped because the pipeline was behind */
+    long getDropped() {
+        synchronized (lock) {
+            return dropped;
+        }
+    }
+
+    /** Fixes that failed validation */
+    long getRejected() {
+        synchronized (lock) {
+            return rejected;
+        }
+    }
+
+    /** Fixes that revealed a new point */
+    long getRevealed() {
+        synchronized (lock) {
+            return revealed;
+        }
+    }
+
+    /** Saves made */
+    @VisibleForTesting
+    long getPersists() {
+        synchronized (lock) {
+            return persists;
+        }
+    }
+
+    // -- Method Helpers --
+
+    private void drain() {
+        // Only the fixes waiting now, so a steady stream can't keep one drain going forever
+        int batch;
+        synchronized (lock) {
+            batch = count;
+        }
+
+        for (int n = 0; n < batch; n++) {
+            double lat;
+            double lon;
+            float accuracy;
+            float speed;
+            long time;
+            synchronized (lock) {
+                lat = pendingLat[head];
+                lon = pendingLon[head];
+                accuracy = pendingAccuracy[head];
+                speed = pendingSpeed[head];
+                time = pendingTime[head];
+                head = (head + 1) % MAX_PENDING;
+                count--;
+            }
+            handle(lat, lon, accuracy, speed, time);
+        }
+
+        // One save per batch at most
+        long now = System.currentTimeMillis();
+        if (unsaved && (lastPersistMs == Long.MIN_VALUE || now - lastPersistMs >= persistIntervalMs)) {
+            persist(now);
+        }
+
+        synchronized (lock) {
+            if (count == 0) {
+                draining = false;
+                return;
+            }
+        }
+        executor.execute(this::drain);
+    }
+
+    private void handle(double lat, double lon, float accuracy, float speed, long time) {
+        // Validate / filter
+        if (!isValid(lat, lon, accuracy) || time < lastAcceptedTimeMs) {
+            synchronized (lock) {
+                rejected++;
+            }
+            return;
+        }
+        lastAcceptedTimeMs = time;
+
+        // Distance accounting
+        stages.addDistance(lat, lon, time);
+
+        // Reveal
+        boolean revealedFog = stages.reveal(lat, lon);
+        if (revealedFog) {
+            unsaved = true;
+            synchronized (lock) {
+                revealed++;
+            }
+        }
+
+        // Record
+        stages.record(time, lat, lon, accuracy, speed, revealedFog);
+    }
+
+    private void persist(long now) {
+        stages.persist();
+        lastPersistMs = now;
+        unsaved = false;
+        synchronized (lock) {
+            persists++;
+        }
+    }
+
+    private static boolean isValid(double lat, double lon, float accuracy) {
+        if (Double.isNaN(lat) || Double.isNaN(lon)) return false;
+        if (lat < -90 || lat > 90 || lon < -180 || lon > 180) return false;
+        // (0, 0) is what some providers report before they have a fix
+        if (lat == 0 && lon == 0) return false;
+        return Float.isNaN(accuracy) || accuracy <= MAX_ACCURACY_METERS;
+    }
+}
@@ -0,0 +1,247 @@
+package com.terra.FogOfEarth;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * <p>Compact binary QR transfer format for fog points (FOG4).</p>
+ * <p>Payload: {@code FOG4|transferId|part/total|body}, where body is binary carried one byte per
+ * char (ISO-8859-1), so it goes into a byte-mode QR code as is. The body is a deflated stream
+ * of varints: format version, grid step in 1e-5 degrees of latitude and of longitude, then a
+ * zig-zag delta (in grid cells) for each point's latitude and longitude.</p>
+ * <p>Points are snapped to a grid of half the reveal radius, which keeps every point within a
+ * few meters of a cell centre well inside its circle, and a cell already sent in a part is not
+ * sent again. On a real track most deltas are then -1, 0 or 1 and compress well. Like FOG3,
+ * every part starts from absolute coordinates and carries its own grid, so it can be applied
+ * as soon as it is scanned.</p>
+ */
+final class Fog4Codec {
+
+    static final String FORMAT = "FOG4";
+    static final String EMPTY_PAYLOAD = FORMAT + "|EMPTY|1/1|";
+
+    private static final int VERSION = 1;
+
+    // Meters per 1e-5 degrees of latitude
+    private static final double METERS_PER_E5 = 1.1132;
+
+    // Largest body accepted when decoding, so a bad scan can't inflate into a huge buffer
+    private static final int MAX_RAW_BYTES = 1 << 20;
+
+    private Fog4Codec() {}
+
+    /**
+     * Build the FOG4 QR payloads for a set of points
+     * @param points Points to share
+     * @param radiusMeters Reveal radius the points are drawn with
+     * @param maxBodyBytes Most compressed bytes per payload's body
+     * @param transferId Id tying the parts of one transfer together
+     * @return One payload per QR code; {@link #EMPTY_PAYLOAD} alone if there are no points
+     */
+    static String[] payloads(PointStore points, float radiusMeters, int maxBodyBytes, String transferId) {
+        if (points.isEmpty()) return new String[] { EMPTY_PAYLOAD };
+
+        int stepLat = Math.max(1, (int) Math.round(radiusMeters / 2 / METERS_PER_E5));
+        ByteSink raw = new ByteSink();
+        ByteSink packed = new ByteSink();
+        String[] bodies = new String[8];
+        int total = 0;
+
+        // Raw bytes to try per part; deflate usually shrinks these a few times, and each part
+        // learns the ratio from the one before
+        int rawBudget = maxBodyBytes * 4;
+        int from = 0;
+        while (from < points.size()) {
+            int to = quantise(points, from, stepLat, rawBudget, raw);
+            deflate(raw, packed);
+
+            // Too big once compressed: take fewer points, down to a single point
+            while (packed.size > maxBodyBytes && to - from > 1) {
+                rawBudget = Math.min(raw.size - 1, scale(raw.size, maxBodyBytes, packed.size));
+                to = quantise(points, from, stepLat, rawBudget, raw);
+                deflate(raw, packed);
+            }
+            if (packed.size > maxBodyBytes) throw new IllegalArgumentException("maxBodyBytes too small for one point");
+
+            if (total == bodies.length) bodies = Arrays.copyOf(bodies, total * 2);
+            bodies[total++] = new String(packed.bytes, 0, packed.size, StandardCharsets.ISO_8859_1);
+            rawBudget = Math.max(rawBudget, scale(raw.size, maxBodyBytes, packed.size));
+            from = to;
+        }
+
+        String[] payloads = new String[total];
+        for (int i = 0; i < total; i++) {
+            payloads[i] = FORMAT + "|" + transferId + "|" + (i + 1) + "/" + total + "|" + bodies[i];
+        }
+        return payloads;
+    }
+
+    /**
+     * Decode one part's body and append its points to a store
+     * @param body Everything after the third '|' of a FOG4 payload
+     * @param out Store to append to; left as it was if the body is malformed
+     * @return true if the body decoded cleanly
+     */
+    static boolean decode(String body, PointStore out) {
+        // Anything past 0xFF means the scanner read the bytes as some other charset
+        for (int i = 0; i < body.length(); i++) {
+            if (body.charAt(i) > 0xFF) return false;
+        }
+        byte[] packed = body.getBytes(StandardCharsets.ISO_8859_1);
+        Inflater inflater = new Inflater();
+        ByteSink raw = new ByteSink();
+        int start = out.size();
+        try {
+            inflater.setInput(packed);
+            byte[] chunk = new byte[4096];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(chunk);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) return false;
+                raw.write(chunk, n);
+                if (raw.size > MAX_RAW_BYTES) return false;
+            }
+            if (inflater.getRemaining() != 0) return false;
+
+            int[] pos = { 0 };
+            if (readVarint(raw, pos) != VERSION) return false;
+            long stepLat = readVarint(raw, pos);
+            long stepLon = readVarint(raw, pos);
+            if (stepLat <= 0 || stepLon <= 0) return false;
+
+            long cellLat = 0;
+            long cellLon = 0;
+            while (pos[0] < raw.size) {
+                cellLat += unzigzag(readVarint(raw, pos));
+                cellLon += unzigzag(readVarint(raw, pos));
+                long latE5 = cellLat * stepLat;
+                long lonE5 = cellLon * stepLon;
+                // Off the map (allowing for snapping at the edges): not from a real sender
+                if (Math.abs(latE5) > 9_100_000 || Math.abs(lonE5) > 18_100_000) {
+                    out.truncate(start);
+                    return false;
+                }
+                out.addE5((int) latE5, (int) lonE5);
+            }
+            return true;
+        } catch (DataFormatException | IllegalArgumentException e) {
+            out.truncate(start);
+            return false;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // -- Method Helpers --
+
+    /**
+     * Snap points[from, ...) to the part's grid and write them as varints until the budget is used
+     * @return Index just past the last point taken
+     */
+    private static int quantise(PointStore points, int from, int stepLat, int rawBudget, ByteSink raw) {
+        // Longitude cells shrink towards the poles; size them at the part's first point
+        double cosLat = Math.max(0.01, Math.cos(Math.toRadians(points.lat(from))));
+        int stepLon = Math.max(1, (int) Math.round(stepLat / cosLat));
+
+        raw.size = 0;
+        writeVarint(raw, VERSION);
+        writeVarint(raw, stepLat);
+        writeVarint(raw, stepLon);
+
+        Set<Long> sent = new HashSet<>();
+        long lastLat = 0;
+        long lastLon = 0;
+        int i = from;
+        for (; i < points.size(); i++) {
+            long cellLat = Math.round(points.latE5(i) / (double) stepLat);
+            long cellLon = Math.round(points.lonE5(i) / (double) stepLon);
+            if (!sent.add((cellLat << 32) ^ (cellLon & 0xffffffffL))) continue;
+
+            int before = raw.size;
+            writeVarint(raw, zigzag(cellLat - lastLat));
+            writeVarint(raw, zigzag(cellLon - lastLon));
+
+            // Always take the first point, so every part makes progress
+            if (raw.size > rawBudget && i > from) {
+                raw.size = before;
+                break;
+            }
+            lastLat = cellLat;
+            lastLon = cellLon;
+        }
+        return i;
+    }
+
+    /** Deflate raw into out, replacing what was there */
+    private static void deflate(ByteSink raw, ByteSink out) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(raw.bytes, 0, raw.size);
+            deflater.finish();
+            out.size = 0;
+            while (!deflater.finished()) {
+                out.ensureCapacity(out.size + 256);
+                out.size += deflater.deflate(out.bytes, out.size, out.bytes.length - out.size);
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** Raw bytes that should compress to a little under the target, at the ratio just seen */
+    private static int scale(int rawSize, int targetPacked, int packedSize) {
+        return (int) Math.max(1, (long) rawSize * targetPacked / Math.max(1, packedSize) * 95 / 100);
+    }
+
+    private static void writeVarint(ByteSink out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(ByteSink in, int[] pos) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos[0] >= in.size) throw new IllegalArgumentException("Truncated varint");
+            int b = in.bytes[pos[0]++];
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /** Growable byte array, reset by setting size to 0 */
+    private static final class ByteSink {
+        byte[] bytes = new byte[256];
+        int size = 0;
+
+        void write(int b) {
+            ensureCapacity(size + 1);
+            bytes[size++] = (byte) b;
+        }
+
+        void write(byte[] src, int length) {
+            ensureCapacity(size + length);
+            System.arraycopy(src, 0, bytes, size, length);
+            size += length;
+        }
+
+        void ensureCapacity(int capacity) {
+            if (capacity > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.terra.FogOfEarth;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * <p>Single background thread that performs fog DB writes: {@link FogPointLog} appends and
+ * compaction, {@link FogStore} snapshots, and the one-off migration from {@link JsonDb}.</p>
+ * <p>Writes are queued under a key. A write that is still waiting when another one arrives with
+ * the same key is replaced, so a burst of saves costs one append. Callers return
+ * immediately; lifecycle code that must know the data is on disk can {@link #flush} with a
+ * timeout.</p>
+ */
+public final class FogDbWriter {
+
+    private static final String TAG = "FogDbWriter";
+
+    private static final Object lock = new Object();
+    private static final LinkedHashMap<String, Runnable> pending = new LinkedHashMap<>();
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, TAG);
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Every enqueue bumps requested; completed catches up once that write has run
+    private static long requested = 0;
+    private static long completed = 0;
+    private static boolean draining = false;
+
+    private FogDbWriter() {}
+
+    /**
+     * Queue a write, replacing any queued write with the same key that hasn't started yet
+     * @param key Identifies what the write saves (e.g. "fog")
+     * @param write Does the write; runs on the writer thread
+     */
+    public static void enqueue(String key, Runnable write) {
+        synchronized (lock) {
+            pending.remove(key);  // re-insert so order follows the latest request
+            pending.put(key, write);
+            requested++;
+            if (draining) return;
+            draining = true;
+        }
+        executor.execute(FogDbWriter::drain);
+    }
+
+    /**
+     * Drop a queued write that hasn't started yet (e.g. before clearing the DB)
+     * @param key Key the write was queued under
+     */
+    public static void discard(String key) {
+        synchronized (lock) {
+            pending.remove(key);
+        }
+    }
+
+    /** Drop every queued write that hasn't started yet */
+    public static void discardAll() {
+        synchronized (lock) {
+            pending.clear();
+        }
+    }
+
+    /**
+     * Wait until every write queued before this call has finished
+     * @param timeoutMs Longest time to wait
+     * @return true if everything was written, false on timeout or interrupt
+     */
+    public static boolean flush(long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (lock) {
+            long target = requested;
+            while (completed < target) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) return false;
+                try {
+                    lock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // -- Method Helpers --
+
+    private static void drain() {
+        while (true) {
+            List<Runnable> batch;
+            long batchUpTo;
+            synchronized (lock) {
+                if (pending.isEmpty()) {
+                    // Anything discarded still counts as done for flush
+                    completed = requested;
+                    draining = false;
+                    lock.notifyAll();
+                    return;
+                }
+                batch = new ArrayList<>(pending.values());
+                pending.clear();
+                batchUpTo = requested;
+            }
+
+            for (Runnable write : batch) {
+                try {
+                    write.run();
+                } catch (Exception e) {
+                    Log.w(TAG, "Write failed", e);
+                }
+            }
+
+            synchronized (lock) {
+                completed = batchUpTo;
+                lock.notifyAll();
+            }
+        }
+    }
+}
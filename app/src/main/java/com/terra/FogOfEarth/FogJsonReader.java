@@ -0,0 +1,457 @@
+package com.terra.FogOfEarth;
+
+import androidx.annotation.VisibleForTesting;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * <p>Streaming reader for the fog layers in the gzip JSON {@link JsonDb}.</p>
+ * <p>Walks the file with a small tokenizer instead of building it into a String and an
+ * org.json tree. {@code fog.layers[*].pointsEnc} strings are decoded character by character
+ * straight into a {@link PointStore}, and legacy {@code points} arrays point by point, so peak
+ * memory is about the decoded points rather than several times the file. Everything else in the
+ * file is skipped without being kept.</p>
+ * <p>Reads the same data as loading the DB and picking the layers out of the tree: the first
+ * layer with each id wins, a non-empty {@code pointsEnc} takes precedence over {@code points}, and
+ * a malformed {@code pointsEnc} leaves that layer empty.</p>
+ */
+final class FogJsonReader {
+
+    /** Values from the DB besides the points */
+    static final class Snapshot {
+        // Reveal radius saved with the primary layer, or 0
+        float primaryRadiusMeters = 0f;
+
+        // How much of the point log the JSON snapshot had merged
+        long logId = 0;
+        long logBytes = 0;
+    }
+
+    private static final int BUFFER_CHARS = 8192;
+
+    // Powers of ten that are exact as doubles
+    private static final double[] POWERS_OF_TEN = new double[23];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+
+    private final Reader in;
+    private final char[] buf = new char[BUFFER_CHARS];
+    private int pos = 0;
+    private int limit = 0;
+
+    // Reused for keys, short strings and numbers, so those don't allocate
+    private final StringBuilder scratch = new StringBuilder();
+
+    private final PointStore primary;
+    private final PointStore shared;
+    private boolean primaryFound = false;
+    private boolean sharedFound = false;
+    private final Snapshot snapshot = new Snapshot();
+
+    private FogJsonReader(Reader in, PointStore primary, PointStore shared) {
+        this.in = in;
+        this.primary = primary;
+        this.shared = shared;
+    }
+
+    /**
+     * Read both fog layers from a JSON DB
+     * @param in JSON text of the DB
+     * @param primary Store the primary layer is appended to
+     * @param shared Store the shared layer is appended to
+     * @return The other values read, or an empty snapshot if the text isn't a JSON object
+     * @throws IOException if the text can't be read, or isn't valid JSON
+     */
+    static Snapshot read(Reader in, PointStore primary, PointStore shared) throws IOException {
+        FogJsonReader reader = new FogJsonReader(in, primary, shared);
+        if (reader.peek() != '{') return reader.snapshot;
+        reader.readRoot();
+        return reader.snapshot;
+    }
+
+    // -- Method Helpers --
+
+    private void readRoot() throws IOException {
+        expect('{');
+        if (consumeIf('}')) return;
+        do {
+            readKey();
+            if (keyIs("fog") && peek() == '{') readFog();
+            else if (keyIs(FogLayerDb.KEY_LOG_MERGED) && peek() == '{') readLogMark();
+            else skipValue();
+        } while (consumeIf(','));
+        expect('}');
+    }
+
+    private void readFog() throws IOException {
+        expect('{');
+        if (consumeIf('}')) return;
+        do {
+            readKey();
+            if (keyIs("layers") && peek() == '[') readLayers();
+            else skipValue();
+        } while (consumeIf(','));
+        expect('}');
+    }
+
+    private void readLayers() throws IOException {
+        expect('[');
+        if (consumeIf(']')) return;
+        do {
+            if (peek() == '{') readLayer();
+            else skipValue();
+        } while (consumeIf(','));
+        expect(']');
+    }
+
+    /** One layer object; its keys can come in any order */
+    private void readLayer() throws IOException {
+        String layerId = null;
+        float radius = 0f;
+        PointStore encoded = null;
+        int encodedStart = 0;
+        boolean encodedEmpty = true;
+        boolean encodedOk = true;
+        PointStore legacy = null;
+
+        expect('{');
+        if (!consumeIf('}')) {
+            do {
+                readKey();
+                if (keyIs("layerId") && peek() == '"') {
+                    layerId = readString();
+                } else if (keyIs("revealRadiusMeters") && isNumberStart(peek())) {
+                    radius = (float) readNumber();
+                } else if (keyIs("pointsEnc") && peek() == '"' && encoded == null) {
+                    // Straight into the layer's store if we already know which it is
+                    PointStore target = targetFor(layerId);
+                    encoded = target != null ? target : new PointStore();
+                    encodedStart = encoded.size();
+                    PolylineCodec.Decoder decoder = new PolylineCodec.Decoder(encoded);
+                    readStringInto(decoder);
+                    encodedEmpty = decoder.isEmpty();
+                    encodedOk = decoder.finish();
+                } else if (keyIs("points") && peek() == '[' && legacy == null) {
+                    legacy = new PointStore();
+                    readLegacyPoints(legacy);
+                } else {
+                    skipValue();
+                }
+            } while (consumeIf(','));
+            expect('}');
+        }
+
+        if ("primary".equals(layerId) && !primaryFound) {
+            primaryFound = true;
+            snapshot.primaryRadiusMeters = radius;
+            fill(primary, encoded, encodedEmpty, encodedOk, legacy);
+        } else if ("shared".equals(layerId) && !sharedFound) {
+            sharedFound = true;
+            fill(shared, encoded, encodedEmpty, encodedOk, legacy);
+        } else if (encoded == primary || encoded == shared) {
+            // Decoded early into a store the layer turned out not to own
+            encoded.truncate(encodedStart);
+        }
+    }
+
+    /** Store for a layer id seen before its points, or null if it must go to a temporary one */
+    private PointStore targetFor(String layerId) {
+        if ("primary".equals(layerId) && !primaryFound) return primary;
+        if ("shared".equals(layerId) && !sharedFound) return shared;
+        return null;
+    }
+
+    /** Put a layer's points into its store, preferring pointsEnc over legacy points */
+    private static void fill(PointStore out, PointStore encoded, boolean encodedEmpty, boolean encodedOk,
+                             PointStore legacy) {
+        if (encoded != null && !encodedEmpty) {
+            // Malformed: the layer stays empty (decode already removed its points)
+            if (encoded != out && encodedOk) out.addAll(encoded);
+            return;
+        }
+        if (legacy != null) out.addAll(legacy);
+    }
+
+    /** Legacy [{"lat":..,"lon":..}, ...]; stops at the first point missing a coordinate */
+    private void readLegacyPoints(PointStore out) throws IOException {
+        boolean ok = true;
+        expect('[');
+        if (consumeIf(']')) return;
+        do {
+            if (peek() != '{') {
+                skipValue();
+                continue;
+            }
+
+            double lat = Double.NaN;
+            double lon = Double.NaN;
+            expect('{');
+            if (!consumeIf('}')) {
+                do {
+                    readKey();
+                    if (keyIs("lat")) lat = readCoordinate();
+                    else if (keyIs("lon")) lon = readCoordinate();
+                    else skipValue();
+                } while (consumeIf(','));
+                expect('}');
+            }
+
+            if (Double.isNaN(lat) || Double.isNaN(lon)) ok = false;
+            if (ok) out.add(lat, lon);
+        } while (consumeIf(','));
+        expect(']');
+    }
+
+    /** A coordinate written as a number or a numeric string; NaN if it is neither */
+    private double readCoordinate() throws IOException {
+        int c = peek();
+        if (isNumberStart(c)) return readNumber();
+        if (c == '"') {
+            try {
+                return Double.parseDouble(readString().trim());
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+        skipValue();
+        return Double.NaN;
+    }
+
+    private void readLogMark() throws IOException {
+        expect('{');
+        if (consumeIf('}')) return;
+        do {
+            readKey();
+            if (keyIs("id") && isNumberStart(peek())) snapshot.logId = (long) readNumber();
+            else if (keyIs("bytes") && isNumberStart(peek())) snapshot.logBytes = (long) readNumber();
+            else skipValue();
+        } while (consumeIf(','));
+        expect('}');
+    }
+
+    // -- Tokenizer --
+
+    private void skipValue() throws IOException {
+        int c = peek();
+        if (c == '{') {
+            expect('{');
+            if (consumeIf('}')) return;
+            do {
+                skipString();
+                expect(':');
+                skipValue();
+            } while (consumeIf(','));
+            expect('}');
+        } else if (c == '[') {
+            expect('[');
+            if (consumeIf(']')) return;
+            do {
+                skipValue();
+            } while (consumeIf(','));
+            expect(']');
+        } else if (c == '"') {
+            skipString();
+        } else if (isNumberStart(c)) {
+            readNumber();
+        } else if (c == 't') {
+            expectWord("true");
+        } else if (c == 'f') {
+            expectWord("false");
+        } else if (c == 'n') {
+            expectWord("null");
+        } else {
+            throw syntaxError();
+        }
+    }
+
+    /** Reads an object key and its colon; the key is left in scratch for {@link #keyIs} */
+    private void readKey() throws IOException {
+        scratch.setLength(0);
+        expect('"');
+        while (true) {
+            int c = read();
+            if (c == '"') break;
+            if (c == '\\') c = readEscape();
+            if (c < 0) throw syntaxError();
+            scratch.append((char) c);
+        }
+        expect(':');
+    }
+
+    /** Compares the last key read without making a String of it */
+    private boolean keyIs(String key) {
+        if (scratch.length() != key.length()) return false;
+        for (int i = 0; i < key.length(); i++) {
+            if (scratch.charAt(i) != key.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private String readString() throws IOException {
+        scratch.setLength(0);
+        expect('"');
+        while (true) {
+            int c = read();
+            if (c == '"') return scratch.toString();
+            if (c == '\\') c = readEscape();
+            if (c < 0) throw syntaxError();
+            scratch.append((char) c);
+        }
+    }
+
+    private void readStringInto(PolylineCodec.Decoder decoder) throws IOException {
+        expect('"');
+        while (true) {
+            int c = read();
+            if (c == '"') return;
+            if (c == '\\') c = readEscape();
+            if (c < 0) throw syntaxError();
+            decoder.feed((char) c);
+        }
+    }
+
+    private void skipString() throws IOException {
+        expect('"');
+        while (true) {
+            int c = read();
+            if (c == '"') return;
+            if (c == '\\') c = readEscape();
+            if (c < 0) throw syntaxError();
+        }
+    }
+
+    private int readEscape() throws IOException {
+        int c = read();
+        switch (c) {
+            case '"': case '\\': case '/': return c;
+            case 'b': return '\b';
+            case 'f': return '\f';
+            case 'n': return '\n';
+            case 'r': return '\r';
+            case 't': return '\t';
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(read(), 16);
+                    if (digit < 0) throw syntaxError();
+                    value = (value << 4) | digit;
+                }
+                return value;
+            default:
+                throw syntaxError();
+        }
+    }
+
+    private double readNumber() throws IOException {
+        scratch.setLength(0);
+        while (true) {
+            if (pos == limit && !fill()) break;
+            char c = buf[pos];
+            if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+                scratch.append(c);
+                pos++;
+            } else {
+                break;
+            }
+        }
+
+        double fast = parseShortDecimal(scratch);
+        if (!Double.isNaN(fast)) return fast;
+        try {
+            return Double.parseDouble(scratch.toString());
+        } catch (NumberFormatException e) {
+            throw syntaxError();
+        }
+    }
+
+    /**
+     * Plain decimals like coordinates without making a String. Both the digits and the power of
+     * ten are exact doubles, so the one division rounds the same as Double.parseDouble.
+     * @param text Number as written in the JSON
+     * @return The value, or NaN to fall back to Double.parseDouble
+     */
+    @VisibleForTesting
+    static double parseShortDecimal(CharSequence text) {
+        int len = text.length();
+        int i = 0;
+        boolean negative = len > 0 && text.charAt(0) == '-';
+        if (negative) i++;
+
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = -1;
+        for (; i < len; i++) {
+            char c = text.charAt(i);
+            if (c == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+                continue;
+            }
+            if (c < '0' || c > '9') return Double.NaN;
+            mantissa = mantissa * 10 + (c - '0');
+            if (mantissa != 0) digits++;
+            if (fractionDigits >= 0) fractionDigits++;
+        }
+        if (len == (negative ? 1 : 0) || fractionDigits == 0) return Double.NaN;
+        if (digits > 15 || fractionDigits > 22) return Double.NaN;
+
+        double value = fractionDigits > 0 ? mantissa / POWERS_OF_TEN[fractionDigits] : mantissa;
+        return negative ? -value : value;
+    }
+
+    private void expectWord(String word) throws IOException {
+        skipWhitespace();
+        for (int i = 0; i < word.length(); i++) {
+            if (read() != word.charAt(i)) throw syntaxError();
+        }
+    }
+
+    private static boolean isNumberStart(int c) {
+        return (c >= '0' && c <= '9') || c == '-';
+    }
+
+    private void expect(char c) throws IOException {
+        if (peek() != c) throw syntaxError();
+        pos++;
+    }
+
+    private boolean consumeIf(char c) throws IOException {
+        if (peek() != c) return false;
+        pos++;
+        return true;
+    }
+
+    /** Next non-whitespace character without consuming it, or -1 at the end */
+    private int peek() throws IOException {
+        skipWhitespace();
+        return pos < limit ? buf[pos] : -1;
+    }
+
+    private void skipWhitespace() throws IOException {
+        while (true) {
+            if (pos == limit && !fill()) return;
+            char c = buf[pos];
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') return;
+            pos++;
+        }
+    }
+
+    private int read() throws IOException {
+        if (pos == limit && !fill()) return -1;
+        return buf[pos++];
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(buf, 0, buf.length);
+        if (n <= 0) return false;
+        pos = 0;
+        limit = n;
+        return true;
+    }
+
+    private IOException syntaxError() {
+        return new IOException("Malformed fog DB JSON");
+    }
+}
@@ -0,0 +1,232 @@
+package com.terra.FogOfEarth;
+
+import androidx.annotation.VisibleForTesting;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Reads and writes the "primary" and "shared" fog layers.</p>
+ * <p>Layers live in the binary {@link FogStore} snapshot plus the {@link FogPointLog}. Data from
+ * the older gzip JSON {@link JsonDb} (schemaVersion 2, or legacy point arrays) is still read, and
+ * migrated to the binary snapshot the first time it is loaded.</p>
+ */
+final class FogLayerDb {
+
+    // FogDbWriter key for the one-off JSON to binary migration
+    private static final String MIGRATE_KEY = "fog-migrate";
+
+    // Snapshot key (JSON) recording how much of the point log it already contains
+    static final String KEY_LOG_MERGED = "pointLog";
+
+    // Number of JSON DB reads, so tests can check the JSON is only read until it is migrated
+    @VisibleForTesting static final AtomicInteger jsonReadCount = new AtomicInteger();
+
+    private FogLayerDb() {}
+
+    /**
+     * <p>How far a reader has got through the stored layers: the snapshot generation, and the
+     * point log id and offset it has read up to.</p>
+     * <p>The service and the activity share the store through this, so a reader that comes back
+     * to it can {@link #loadChanges} rather than reload everything.</p>
+     */
+    static final class Position {
+        final long generation;
+        final long logId;
+        final long logBytes;
+
+        // True if the changes read to get here replaced the shared layer
+        final boolean sharedCleared;
+
+        Position(long generation, long logId, long logBytes, boolean sharedCleared) {
+            this.generation = generation;
+            this.logId = logId;
+            this.logBytes = logBytes;
+            this.sharedCleared = sharedCleared;
+        }
+    }
+
+    /**
+     * Load both fog layers from the snapshot, plus any points logged since
+     * @param dir Directory holding the DB
+     * @param primary Store to load the primary layer into
+     * @param shared Store to load the shared layer into
+     * @return Where the load got up to, for {@link #loadChanges}
+     */
+    static Position loadLayers(File dir, PointStore primary, PointStore shared) {
+        long[] merged = readSnapshot(dir, primary, shared);
+        if (!FogStore.exists(dir) && JsonDb.exists(dir)) {
+            FogDbWriter.enqueue(MIGRATE_KEY, () -> migrate(dir));
+        }
+
+        // Points saved since the last snapshot
+        long[] read = FogPointLog.replay(dir, merged[1], merged[2], primary, shared);
+        return position(merged, read, false);
+    }
+
+    /**
+     * Load only what was saved after a position, costing the size of the change rather than the
+     * whole history
+     * @param dir Directory holding the DB
+     * @param since Position from an earlier load
+     * @param primary Primary layer as of that position; new points are appended
+     * @param shared Shared layer as of that position; new points are appended (or it is replaced)
+     * @return The new position, or null if the layers were replaced since (nothing is loaded;
+     *         reload them with {@link #loadLayers})
+     */
+    static Position loadChanges(File dir, Position since, PointStore primary, PointStore shared) {
+        if (since == null) return null;
+        long[] header = FogStore.readHeader(dir);
+        if (header == null || header[0] != since.generation) return null;
+
+        // Either still the same log, or a compaction folded exactly what we had into the snapshot
+        long logId = FogPointLog.end(dir)[0];
+        boolean sameLog = logId != 0 && logId == since.logId;
+        if (!sameLog && (header[1] != since.logId || header[2] != since.logBytes)) return null;
+
+        PointStore primaryAdded = new PointStore();
+        PointStore sharedAdded = new PointStore();
+        long[] read = FogPointLog.replay(dir, since.logId, since.logBytes, primaryAdded, sharedAdded);
+
+        // A compaction or clear landing mid-read could have moved records out of the log
+        if (!Arrays.equals(header, FogStore.readHeader(dir))) return null;
+
+        boolean sharedCleared = read[2] > 0;
+        if (sharedCleared) shared.clear();
+        primary.addAll(primaryAdded);
+        shared.addAll(sharedAdded);
+        return position(header, read, sharedCleared);
+    }
+
+    /**
+     * Append new points to the log, moving a reader's position past them so it won't load them
+     * back. Only call from {@link FogDbWriter}'s thread.
+     * @param dir Directory holding the DB
+     * @param since Position of the reader the points came from
+     * @param primary New primary points
+     * @param shared New shared points
+     * @param clearSharedFirst True if the shared layer was replaced, rather than added to
+     * @param radiusMeters Reveal radius recorded with the layers on compaction
+     * @return The new position, or null if others saved in between (reload to catch up)
+     */
+    static Position appendPoints(File dir, Position since, PointStore primary, PointStore shared,
+                                 boolean clearSharedFirst, float radiusMeters) throws IOException {
+        // Checked before appending, since the append may compact the log away
+        boolean upToDate = isUpToDate(dir, since);
+        long[] appended = FogPointLog.append(dir, primary, shared, clearSharedFirst, radiusMeters);
+
+        if (appended == null) return since;
+        if (!upToDate) return null;
+        return new Position(since.generation, appended[0], appended[2], false);
+    }
+
+    /**
+     * Read the snapshot without the log: the binary store if there is one, else the JSON DB
+     * @return {generation, log id, log bytes} of the snapshot; the JSON DB is generation 0
+     */
+    static long[] readSnapshot(File dir, PointStore primary, PointStore shared) {
+        int primaryStart = primary.size();
+        int sharedStart = shared.size();
+        long[] merged = FogStore.read(dir, primary, shared);
+        if (merged != null) return merged;
+
+        // Nothing valid in binary; don't keep half a read
+        primary.truncate(primaryStart);
+        shared.truncate(sharedStart);
+
+        FogJsonReader.Snapshot json = readJson(dir, primary, shared);
+        return new long[]{0, json.logId, json.logBytes};
+    }
+
+    /**
+     * Save both fog layers in full, replacing the snapshot and anything logged so far
+     * @param dir Directory holding the DB
+     * @param primary Primary layer points
+     * @param shared Shared layer points
+     * @param radiusMeters Radius of the points
+     */
+    static void saveLayers(File dir, PointStore primary, PointStore shared, float radiusMeters) throws IOException {
+        long[] logEnd = FogPointLog.end(dir);
+        FogStore.write(dir, primary, shared, radiusMeters, logEnd[0], logEnd[1], FogStore.newGeneration());
+    }
+
+    /**
+     * Delete every stored fog point. Leaves an empty snapshot with a new generation, so readers
+     * holding a {@link Position} know to reload.
+     * @return Position of a reader that has loaded the (now empty) layers, or null if the empty
+     *         snapshot couldn't be written
+     */
+    static Position clear(File dir) {
+        FogPointLog.clear(dir);
+        Position position = null;
+        try {
+            long generation = FogStore.newGeneration();
+            FogStore.write(dir, new PointStore(), new PointStore(), 0f, 0, 0, generation);
+            position = new Position(generation, 0, 0, false);
+        } catch (IOException e) {
+            FogStore.clear(dir);
+        }
+        JsonDb.clear(dir);
+        return position;
+    }
+
+    // -- Method Helpers --
+
+    /** True if a reader at this position has everything that is stored */
+    private static boolean isUpToDate(File dir, Position position) {
+        if (position == null) return false;
+        long[] header = FogStore.readHeader(dir);
+        if (header == null || header[0] != position.generation) return false;
+
+        long[] logEnd = FogPointLog.end(dir);
+        if (logEnd[0] != 0) return logEnd[0] == position.logId && logEnd[1] == position.logBytes;
+        return header[1] == position.logId && header[2] == position.logBytes;
+    }
+
+    /** Position after replaying the log on a snapshot; with no log, where the snapshot got to */
+    private static Position position(long[] snapshot, long[] read, boolean sharedCleared) {
+        if (read[0] == 0) return new Position(snapshot[0], snapshot[1], snapshot[2], sharedCleared);
+        return new Position(snapshot[0], read[0], read[1], sharedCleared);
+    }
+
+    /**
+     * Copy the JSON snapshot into the binary store. Runs on the writer thread, so it can't race
+     * with log appends or compaction. The JSON file is left in place.
+     */
+    private static void migrate(File dir) {
+        if (FogStore.exists(dir) || !JsonDb.exists(dir)) return;
+
+        PointStore primary = new PointStore();
+        PointStore shared = new PointStore();
+        FogJsonReader.Snapshot json = readJson(dir, primary, shared);
+
+        try {
+            // Same layers as the JSON DB, so same generation (0)
+            FogStore.write(dir, primary, shared, json.primaryRadiusMeters, json.logId, json.logBytes, 0);
+        } catch (IOException ignored) {
+            // Still readable from JSON; try again next load
+        }
+    }
+
+    /**
+     * Stream both layers out of the JSON DB. An unreadable or malformed DB reads as empty, as it
+     * did when it was loaded whole.
+     */
+    private static FogJsonReader.Snapshot readJson(File dir, PointStore primary, PointStore shared) {
+        int primaryStart = primary.size();
+        int sharedStart = shared.size();
+        try (Reader in = JsonDb.openReader(dir)) {
+            if (in != null) {
+                jsonReadCount.incrementAndGet();
+                return FogJsonReader.read(in, primary, shared);
+            }
+        } catch (IOException ignored) {
+            primary.truncate(primaryStart);
+            shared.truncate(sharedStart);
+        }
+        return new FogJsonReader.Snapshot();
+    }
+}
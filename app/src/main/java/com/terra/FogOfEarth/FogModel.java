@@ -0,0 +1,609 @@
+package com.terra.FogOfEarth;
+
+import android.content.Context;
+
+import androidx.annotation.VisibleForTesting;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.osmdroid.util.GeoPoint;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>The fog layers, shared by everything in the app process.</p>
+ * <p>{@link LocationFogService} and {@link MainActivity} add to the same model, so a fix taken in
+ * the background is on screen as soon as the map redraws, with no save and reload in between.
+ * {@link FogOverlay} is only a view of it. The model is also the one place that saves: callers
+ * ask it to {@link #save}, and the points added since the last save are appended to the store
+ * once, whoever asked.</p>
+ * <p>Thread-safe: layer reads and writes hold the model's lock, and saves run on
+ * {@link FogDbWriter}'s thread.</p>
+ */
+public final class FogModel {
+
+    // Reveal radius and spacing of primary points, as drawn on the map
+    static final float RADIUS_METERS = 50.0f;
+    static final double MIN_DISTANCE_METERS = 4.5;
+
+    // Cell edge of the spatial grids; keeps cells sparse but lookups local
+    private static final double GRID_CELL_METERS = 64.0;
+
+    // Resolution of the coverage raster
+    private static final double COVERAGE_CELL_METERS = 10.0;
+
+    // Fog saves coalesce under this key in FogDbWriter
+    private static final String DB_WRITE_KEY = "fog";
+
+    // Re-reads of the store queue under this key, after any save still waiting
+    private static final String RELOAD_KEY = "fog-reload";
+
+    // Full loads queue under this key
+    private static final String LOAD_KEY = "fog-load";
+
+    // Longest loadAll waits for the load, and any save queued before it
+    private static final long LOAD_FLUSH_TIMEOUT_MS = 2000;
+
+    private static FogModel instance;
+
+    private final File dir;
+
+    private final PointStore primaryPoints = new PointStore();
+    private final PointStore sharedPoints = new PointStore();
+
+    // Spatial indexes so dedup and drawing only look at nearby / visible cells
+    private final SpatialGrid primaryGrid =
+            new SpatialGrid(Math.max(MIN_DISTANCE_METERS, GRID_CELL_METERS), primaryPoints);
+    private final SpatialGrid sharedGrid = new SpatialGrid(GRID_CELL_METERS, sharedPoints);
+
+    // Revealed-area raster behind estimateUncoveredPercent. Rebuilt off the lock after a full
+    // load, as rasterising the whole history is most of a load's cost
+    private CoverageRaster coverage = new CoverageRaster(COVERAGE_CELL_METERS);
+
+    // Bumped whenever the primary layer is replaced, so a raster built from an older one is dropped
+    private int coverageVersion = 0;
+
+    // Bumped whenever points are removed or replaced rather than appended, so views redraw fully
+    private int resetCount = 0;
+
+    // Bumped by clear, so a store read made without the lock knows to drop what it read
+    private int clearCount = 0;
+
+    // Bumped whenever a load or reload changed the layers, so a reload queued while another was
+    // already reading still tells its caller
+    private int reloadCount = 0;
+
+    // How many points of each layer are already saved (in the snapshot or the point log)
+    private int primarySaved = 0;
+    private int sharedSaved = 0;
+    private boolean sharedReplaced = false;
+
+    // New points waiting for the writer thread to append them to the point log
+    private final Object pendingLock = new Object();
+    private final PointStore pendingPrimary = new PointStore();
+    private final PointStore pendingShared = new PointStore();
+    private boolean pendingClearShared = false;
+
+    // How far through the stored layers the model has read; null once it has to reload
+    private FogLayerDb.Position storePosition = null;
+
+    /**
+     * The app's fog model. Created empty on first use and loaded from storage on
+     * {@link FogDbWriter}'s thread, so the caller never waits on I/O; pass a redraw to
+     * {@link #reloadChanges} to hear when the stored layers are in.
+     * @param context Any context of the app
+     */
+    public static synchronized FogModel get(Context context) {
+        if (instance == null) {
+            instance = new FogModel(context.getApplicationContext().getFilesDir());
+            // Nothing read yet, so this is a full load; points added before it runs are kept
+            instance.reloadChanges(null);
+        }
+        return instance;
+    }
+
+    @VisibleForTesting
+    FogModel(File dir) {
+        this.dir = dir;
+    }
+
+    /** Add point to the primary layer
+     * @param point Point to reveal at
+     * @return true if the point was added, false if it was too close to an existing one
+     */
+    public boolean addPrimary(GeoPoint point) {
+        return addPrimary(point.getLatitude(), point.getLongitude());
+    }
+
+    /** Add point to the primary layer
+     * @return true if the point was added, false if it was too close to an existing one
+     */
+    synchronized boolean addPrimary(double lat, double lon) {
+        // if point is too close to another point, do not add
+        if (primaryGrid.containsWithin(lat, lon, MIN_DISTANCE_METERS)) return false;
+        int i = primaryPoints.add(lat, lon);
+        primaryGrid.add(i);
+        coverage.add(primaryPoints.lat(i), primaryPoints.lon(i), RADIUS_METERS);
+        return true;
+    }
+
+    /**
+     * Estimates the fraction of area NOT yet uncovered (i.e., still fogged) inside a dynamic
+     * bounding box around the user's revealed points. Intended for lightweight longitudinal metrics,
+     * not exact geodesic area. Kept up to date as points are added, so this is O(1).
+     *
+     * @return uncovered fraction in [0,1] (1.0 = nothing revealed)
+     */
+    public synchronized double estimateUncoveredPercent() {
+        return coverage.estimateUncoveredFraction();
+    }
+
+    /**
+     * Area of the union of all primary reveal circles, measured on the sphere. Each new point only
+     * adds the area it newly covers, so this is O(1).
+     *
+     * @return explored area in square kilometres
+     */
+    public synchronized double getExploredAreaKm2() {
+        return coverage.getCoveredAreaM2() / 1e6;
+    }
+
+    /** Number of primary points */
+    public synchronized int primarySize() {
+        return primaryPoints.size();
+    }
+
+    /** Number of shared points */
+    public synchronized int sharedSize() {
+        return sharedPoints.size();
+    }
+
+    /** Changes whenever points were removed or replaced, rather than only appended */
+    public synchronized int getResetCount() {
+        return resetCount;
+    }
+
+    /** Visit the primary points within bounds, holding the lock */
+    synchronized void forEachPrimaryInBounds(double s, double n, double w, double e, SpatialGrid.Visitor visitor) {
+        primaryGrid.forEachInBounds(s, n, w, e, visitor);
+    }
+
+    /** Visit the shared points within bounds, holding the lock */
+    synchronized void forEachSharedInBounds(double s, double n, double w, double e, SpatialGrid.Visitor visitor) {
+        sharedGrid.forEachInBounds(s, n, w, e, visitor);
+    }
+
+    /**
+     * Visit the primary points appended from an index on, so a view can catch up
+     * @param from First index to visit
+     * @return Number of primary points, to pass as from next time
+     */
+    synchronized int forEachPrimaryFrom(int from, SpatialGrid.Visitor visitor) {
+        for (int i = from; i < primaryPoints.size(); i++) visitor.visit(primaryPoints.lat(i), primaryPoints.lon(i));
+        return primaryPoints.size();
+    }
+
+    /**
+     * Visit the shared points appended from an index on, so a view can catch up
+     * @param from First index to visit
+     * @return Number of shared points, to pass as from next time
+     */
+    synchronized int forEachSharedFrom(int from, SpatialGrid.Visitor visitor) {
+        for (int i = from; i < sharedPoints.size(); i++) visitor.visit(sharedPoints.lat(i), sharedPoints.lon(i));
+        return sharedPoints.size();
+    }
+
+    /** Replace the shared layer
+     * @param jsonArrayString JSON Array of points
+     */
+    public synchronized void setSharedFromJsonArray(String jsonArrayString) {
+        try {
+            JSONArray arr = new JSONArray(jsonArrayString);
+            sharedPoints.clear();
+            for (int i = 0; i < arr.length(); i++) {
+                JSONObject obj = arr.getJSONObject(i);
+                sharedPoints.add(obj.getDouble("lat"), obj.getDouble("lon"));
+            }
+        } catch (Exception ignored) {}
+        sharedGrid.rebuild();
+        sharedReplaced = true;
+        resetCount++;
+    }
+
+    /**
+     * Set shared points from an encoded polyline string
+     */
+    public synchronized void setSharedFromEncodedPolyline(String encoded) {
+        try {
+            sharedPoints.clear();
+            PolylineCodec.decode(encoded, sharedPoints);
+        } catch (Exception ignored) {}
+        sharedGrid.rebuild();
+        sharedReplaced = true;
+        resetCount++;
+    }
+
+    /**
+     * Append a decoded polyline segment into the shared layer (does not replace existing shared points).
+     * Returns number of points appended (0 if decode fails).
+     */
+    public synchronized int appendSharedFromEncodedPolyline(String encoded) {
+        try {
+            int start = sharedPoints.size();
+            PolylineCodec.decode(encoded, sharedPoints);
+            for (int i = start; i < sharedPoints.size(); i++) sharedGrid.add(i);
+            return sharedPoints.size() - start;
+        } catch (Exception ignored) {
+            return 0;
+        }
+    }
+
+    /**
+     * Append points into the shared layer (does not replace existing shared points).
+     * Returns number of points appended.
+     */
+    public synchronized int appendShared(PointStore points) {
+        int start = sharedPoints.size();
+        sharedPoints.addAll(points);
+        for (int i = start; i < sharedPoints.size(); i++) sharedGrid.add(i);
+        return points.size();
+    }
+
+    /**
+     * Load both fog layers from storage, replacing what is in memory. Points the store doesn't
+     * have yet are kept. The read runs on {@link FogDbWriter}'s thread, after any save still
+     * queued, and this waits for it up to a timeout, so the app itself loads through
+     * {@link #get} instead.
+     */
+    @VisibleForTesting
+    public void loadAll() {
+        FogDbWriter.enqueue(LOAD_KEY, this::loadNow);
+        FogDbWriter.flush(LOAD_FLUSH_TIMEOUT_MS);
+    }
+
+    /**
+     * <p>Bring the layers up to date with storage, without waiting.</p>
+     * <p>The service and the activity share this model in memory, so normally nothing has changed
+     * on disk. The check runs on {@link FogDbWriter}'s thread, after any save still queued
+     * there, so the caller never waits on I/O. It costs one header read; if the stored layers
+     * have only been added to, just the new points are read and merged; if they were replaced,
+     * everything is reloaded. The store is read without the model's lock held, so drawing and
+     * new points don't wait for it. Skipped while there are unsaved points here, unless the
+     * model hasn't loaded yet.</p>
+     * @param onChanged Run on the writer thread if the layers changed since this was called
+     *                  (e.g. to post a redraw), or null
+     */
+    public void reloadChanges(Runnable onChanged) {
+        int seen;
+        synchronized (this) {
+            seen = reloadCount;
+        }
+        FogDbWriter.enqueue(RELOAD_KEY, () -> {
+            reloadChangesNow();
+            if (onChanged == null) return;
+            boolean changed;
+            synchronized (this) {
+                changed = reloadCount != seen;
+            }
+            if (changed) onChanged.run();
+        });
+    }
+
+    /**
+     * Save all fog layers to storage.
+     * <p>Only points added since the last save are written, appended to {@link FogPointLog}, so
+     * the cost follows the number of new points. Returns straight away: the append runs on
+     * {@link FogDbWriter}'s thread, together with any earlier save that hasn't run yet.</p>
+     */
+    public void save() {
+        synchronized (this) {
+            synchronized (pendingLock) {
+                if (sharedReplaced) {
+                    // Replaced rather than added to: log a clear then the whole new layer
+                    pendingClearShared = true;
+                    pendingShared.clear();
+                    sharedSaved = 0;
+                    sharedReplaced = false;
+                }
+                for (int i = primarySaved; i < primaryPoints.size(); i++) {
+                    pendingPrimary.addE5(primaryPoints.latE5(i), primaryPoints.lonE5(i));
+                }
+                for (int i = sharedSaved; i < sharedPoints.size(); i++) {
+                    pendingShared.addE5(sharedPoints.latE5(i), sharedPoints.lonE5(i));
+                }
+            }
+            primarySaved = primaryPoints.size();
+            sharedSaved = sharedPoints.size();
+        }
+
+        FogDbWriter.enqueue(DB_WRITE_KEY, this::writePending);
+    }
+
+    /**
+     * Delete every fog point, in memory and in storage
+     */
+    public void clear() {
+        synchronized (this) {
+            synchronized (pendingLock) {
+                pendingPrimary.clear();
+                pendingShared.clear();
+                pendingClearShared = false;
+                storePosition = null;
+            }
+            primaryPoints.clear();
+            sharedPoints.clear();
+            primaryGrid.clear();
+            sharedGrid.clear();
+            coverage.clear();
+            coverageVersion++;
+            primarySaved = 0;
+            sharedSaved = 0;
+            sharedReplaced = false;
+            resetCount++;
+            clearCount++;
+        }
+
+        // Don't let a queued save bring the data back
+        FogDbWriter.discardAll();
+        FogDbWriter.enqueue("clear", () -> {
+            FogLayerDb.Position position = FogLayerDb.clear(dir);
+            synchronized (pendingLock) {
+                if (storePosition == null) storePosition = position;
+            }
+        });
+    }
+
+    /**
+     * Exports the primary points as a JSON Array
+     * @return JSON Array of points as a string
+     */
+    public synchronized String exportPrimaryAsJsonArray() {
+        try {
+            JSONArray points = new JSONArray();
+            for (int i = 0; i < primaryPoints.size(); i++) {
+                JSONObject obj = new JSONObject();
+                obj.put("lat", primaryPoints.lat(i));
+                obj.put("lon", primaryPoints.lon(i));
+                points.put(obj);
+            }
+            return points.toString();
+        } catch (Exception e) {
+            return "[]";
+        }
+    }
+
+    /**
+     * Export primary points as multiple *self-contained* encoded polylines, each kept under maxSegmentLen chars.
+     * Each segment can be decoded independently (so every QR can apply instantly).
+     */
+    public synchronized List<String> exportPrimaryAsEncodedPolylineSegments(int maxSegmentLen) {
+        List<String> out = new ArrayList<>();
+        if (maxSegmentLen < 50) maxSegmentLen = 50;
+
+        PolylineCodec.Encoder encoder = new PolylineCodec.Encoder();
+        QrSegmenter.segments(primaryPoints, maxSegmentLen,
+                (from, to) -> out.add(encoder.encode(primaryPoints, from, to).toString()));
+        return out;
+    }
+
+    // Returns a copy of primary points so SettingsActivity can chunk by points
+    public synchronized PointStore getPrimaryPointsCopy() {
+        return primaryPoints.copy();
+    }
+
+    // -- Method Helpers --
+
+    /**
+     * Runs on the writer thread: replace the layers in memory with what is stored. The store is
+     * read without the lock held.
+     */
+    private void loadNow() {
+        int cleared;
+        synchronized (this) {
+            cleared = clearCount;
+        }
+
+        PointStore primary = new PointStore();
+        PointStore shared = new PointStore();
+        FogLayerDb.Position position = FogLayerDb.loadLayers(dir, primary, shared);
+
+        synchronized (this) {
+            // Cleared while we read: what we read is gone
+            if (clearCount != cleared) return;
+            replaceLayers(primary, shared, position);
+        }
+        rebuildCoverage();
+    }
+
+    /**
+     * Runs on the writer thread: merge what was stored since the model last read it. The store is
+     * read into scratch stores without the lock held, then merged (or swapped in, if the layers
+     * were replaced) under the lock, once nothing has changed here meanwhile.
+     * @return true if the layers changed
+     */
+    private boolean reloadChangesNow() {
+        FogLayerDb.Position since;
+        int cleared;
+        synchronized (this) {
+            synchronized (pendingLock) {
+                since = storePosition;
+            }
+            // Points added here since the last save would be lost by a merge; the next save
+            // appends them, and this model already has everything else saved in this process.
+            // A full load (nothing read yet) keeps them, so it goes ahead
+            if (since != null && hasUnsaved()) return false;
+            cleared = clearCount;
+        }
+
+        PointStore primary = new PointStore();
+        PointStore shared = new PointStore();
+        FogLayerDb.Position position = FogLayerDb.loadChanges(dir, since, primary, shared);
+        boolean replaced = position == null;
+        if (replaced) position = FogLayerDb.loadLayers(dir, primary, shared);
+
+        if (replaced) {
+            synchronized (this) {
+                // Cleared while we read: what we read is gone
+                if (clearCount != cleared) return false;
+                replaceLayers(primary, shared, position);
+            }
+            rebuildCoverage();
+            return true;
+        }
+
+        synchronized (this) {
+            // New points here would sit before the merged ones, out of step with what is saved;
+            // leave the merge to the next reload
+            if (clearCount != cleared || hasUnsaved()) return false;
+
+            synchronized (pendingLock) {
+                storePosition = position;
+            }
+            int primaryStart = primaryPoints.size();
+            int sharedStart = sharedPoints.size();
+            primaryPoints.addAll(primary);
+            for (int i = primaryStart; i < primaryPoints.size(); i++) {
+                primaryGrid.add(i);
+                coverage.add(primaryPoints.lat(i), primaryPoints.lon(i), RADIUS_METERS);
+            }
+            primarySaved = primaryPoints.size();
+
+            if (position.sharedCleared) {
+                sharedPoints.clear();
+                sharedPoints.addAll(shared);
+                sharedGrid.rebuild();
+                resetCount++;
+            } else {
+                sharedPoints.addAll(shared);
+                for (int i = sharedStart; i < sharedPoints.size(); i++) sharedGrid.add(i);
+            }
+            sharedSaved = sharedPoints.size();
+            boolean changed = position.sharedCleared
+                    || primaryPoints.size() != primaryStart || sharedPoints.size() != sharedStart;
+            if (changed) reloadCount++;
+            return changed;
+        }
+    }
+
+    /**
+     * Swap in layers read from the store, keeping the points the store doesn't have yet after the
+     * stored ones: those saved but still waiting to be written, then those not saved at all. Call
+     * holding the lock.
+     */
+    private void replaceLayers(PointStore primary, PointStore shared, FogLayerDb.Position position) {
+        int primaryPending;
+        int sharedPending;
+        boolean sharedClearPending;
+        synchronized (pendingLock) {
+            primaryPending = pendingPrimary.size();
+            sharedPending = pendingShared.size();
+            sharedClearPending = pendingClearShared;
+            storePosition = position;
+        }
+
+        int storedPrimary = primary.size();
+        for (int i = primarySaved - primaryPending; i < primaryPoints.size(); i++) {
+            primary.addE5(primaryPoints.latE5(i), primaryPoints.lonE5(i));
+        }
+        primaryPoints.clear();
+        primaryPoints.addAll(primary);
+        primarySaved = storedPrimary + primaryPending;
+
+        // A shared layer replaced here replaces the stored one too, so keep it as it is
+        if (!sharedReplaced && !sharedClearPending) {
+            int storedShared = shared.size();
+            for (int i = sharedSaved - sharedPending; i < sharedPoints.size(); i++) {
+                shared.addE5(sharedPoints.latE5(i), sharedPoints.lonE5(i));
+            }
+            sharedPoints.clear();
+            sharedPoints.addAll(shared);
+            sharedSaved = storedShared + sharedPending;
+        }
+
+        primaryGrid.rebuild();
+        sharedGrid.rebuild();
+        resetCount++;
+        reloadCount++;
+
+        // Only points added from here on count until rebuildCoverage swaps the full raster in
+        coverage = new CoverageRaster(COVERAGE_CELL_METERS);
+        coverageVersion++;
+    }
+
+    /**
+     * Runs on the writer thread after a full load: rasterise the primary layer without the lock
+     * held, then swap the raster in, adding any points that arrived meanwhile
+     */
+    private void rebuildCoverage() {
+        PointStore points;
+        int version;
+        synchronized (this) {
+            points = primaryPoints.copy();
+            version = coverageVersion;
+        }
+
+        CoverageRaster built = new CoverageRaster(COVERAGE_CELL_METERS);
+        for (int i = 0; i < points.size(); i++) built.add(points.lat(i), points.lon(i), RADIUS_METERS);
+
+        synchronized (this) {
+            // Replaced again meanwhile; that load builds its own
+            if (coverageVersion != version) return;
+            for (int i = points.size(); i < primaryPoints.size(); i++) {
+                built.add(primaryPoints.lat(i), primaryPoints.lon(i), RADIUS_METERS);
+            }
+            coverage = built;
+        }
+    }
+
+    /** True if there are points here the store doesn't have yet. Call holding the lock. */
+    private boolean hasUnsaved() {
+        if (sharedReplaced || primarySaved != primaryPoints.size() || sharedSaved != sharedPoints.size()) return true;
+        synchronized (pendingLock) {
+            return pendingPrimary.size() > 0 || pendingShared.size() > 0 || pendingClearShared;
+        }
+    }
+
+    /** Runs on the writer thread: appends whatever {@link #save} has queued since last time */
+    private void writePending() {
+        PointStore primary;
+        PointStore shared;
+        boolean clearShared;
+        FogLayerDb.Position since;
+        synchronized (pendingLock) {
+            primary = pendingPrimary.copy();
+            shared = pendingShared.copy();
+            clearShared = pendingClearShared;
+            pendingPrimary.clear();
+            pendingShared.clear();
+            pendingClearShared = false;
+            since = storePosition;
+        }
+
+        try {
+            // Our own points are already in memory, so step the position over them
+            FogLayerDb.Position position = FogLayerDb.appendPoints(dir, since, primary, shared, clearShared,
+                    RADIUS_METERS);
+            synchronized (pendingLock) {
+                if (storePosition == since) storePosition = position;
+            }
+        } catch (Exception ignored) {
+            // Put them back so the next save tries again
+            synchronized (pendingLock) {
+                if (storePosition == since) storePosition = null;
+                PointStore laterPrimary = pendingPrimary.copy();
+                PointStore laterShared = pendingShared.copy();
+                pendingPrimary.clear();
+                pendingPrimary.addAll(primary);
+                pendingPrimary.addAll(laterPrimary);
+                if (!pendingClearShared) {
+                    pendingShared.clear();
+                    pendingShared.addAll(shared);
+                    pendingShared.addAll(laterShared);
+                    pendingClearShared = clearShared;
+                }
+            }
+        }
+    }
+}
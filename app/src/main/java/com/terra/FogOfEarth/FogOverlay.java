@@ -1,26 +1,28 @@
 package com.terra.FogOfEarth;
 
-import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
-import android.graphics.Point;
+import android.graphics.Rect;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-import org.osmdroid.util.GeoPoint;
+import org.osmdroid.util.RectL;
+import org.osmdroid.util.TileSystem;
 import org.osmdroid.views.MapView;
+import org.osmdroid.views.Projection;
 import org.osmdroid.views.overlay.Overlay;
 
-import java.util.ArrayList;
-import java.util.List;
+public class FogOverlay extends Overlay implements FogTileCache.Renderer {
 
-public class FogOverlay extends Overlay {
+    // Rendered fog tiles; draw only blits these
+    private final FogTileCache tileCache;
+    private final Paint tileBlitPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final RectL mercatorViewPort = new RectL();
+    private final Rect tileRect = new Rect();
 
-    // Mask so overlapping shared circles DON'T stack
+    // Mask so overlapping shared circles DON'T stack (one tile in size, reused per render)
     private Bitmap sharedMaskBitmap;
     private Canvas sharedMaskCanvas;
 
@@ -30,34 +32,49 @@ public class FogOverlay extends Overlay {
     // Paint used to apply the mask onto the fog layer at a fixed strength
     private final Paint sharedApplyPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
 
+    // Per-tile state for circleDrawer, so the render loop allocates nothing per point
+    private Canvas frameCanvas;
+    private Paint framePaint;
+    private final TileCircles circleDrawer =
+            new TileCircles((cx, cy, radiusPx) -> frameCanvas.drawCircle(cx, cy, radiusPx, framePaint));
+
     private final Paint fogPaint;
     private final Paint primaryEraserPaint;  // full clear
 
-    private final List<GeoPoint> primaryPoints = new ArrayList<>();
-    private final List<GeoPoint> sharedPoints = new ArrayList<>();
-
     private final float primaryRadiusMeters;
-    private final double minDistanceMeters;
+
+    // Layers being drawn, shared with the rest of the app
+    private final FogModel model;
+
+    // How much of the model the cached tiles already show
+    private int drawnResetCount;
+    private int drawnPrimary;
+    private int drawnShared;
+    private final SpatialGrid.Visitor primaryRevealer = this::revealPrimaryAt;
+    private final SpatialGrid.Visitor sharedInvalidator = this::invalidateSharedAt;
+
+    // Upper bound on memory held by cached fog tiles
+    private static final int TILE_CACHE_MAX_BYTES =
+            (int) Math.min(Runtime.getRuntime().maxMemory() / 8, 48L * 1024 * 1024);
 
     // ----- Constructor -----
 
     /**
      * <p>Initialises the fog overlay.</p>
      *
-     * @param RadiusMeters Radius of the primary fog circle
+     * @param model Fog layers to draw
      * @param fogAlpha 255 = solid fog. 0 = no fog
      * @param sharedClearAlpha 255 = solid fog. 0 = no fog
-     * @param minDistanceMeters Minimum distance between points / circles
      */
     public FogOverlay(
-            float RadiusMeters,
+            FogModel model,
             int fogAlpha,              // 255 = solid fog
-            int sharedClearAlpha,      // e.g. 120–200
-            double minDistanceMeters
+            int sharedClearAlpha       // e.g. 120–200
     ) {
         super();
-        this.primaryRadiusMeters = RadiusMeters;
-        this.minDistanceMeters = minDistanceMeters;
+        this.model = model;
+        this.primaryRadiusMeters = FogModel.RADIUS_METERS;
+        this.tileCache = new FogTileCache(TILE_CACHE_MAX_BYTES, this);
 
         // Set up Colour and Paint of the fog
         fogPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
@@ -82,8 +99,7 @@ public class FogOverlay extends Overlay {
 
     /**
      * <p>Draws the fog onto the map.</p>
-     * <p>Build and Apply Shared Mask</p>
-     * <p>Apply Primary Mask</p>
+     * <p>Blits one cached fog tile per visible slippy-map tile, rendering only the missing ones</p>
      * @param canvas Canvas to draw onto
      * @param mapView MapView to draw onto
      * @param shadow If true, don't draw
@@ -92,455 +108,108 @@ public class FogOverlay extends Overlay {
     public void draw(Canvas canvas, MapView mapView, boolean shadow) {
         if (shadow) return;
 
-        int layerId;
-        layerId = canvas.saveLayerAlpha(0, 0, canvas.getWidth(), canvas.getHeight(), 255);
-
-        // Draw solid fog onto an offscreen layer
-        canvas.drawRect(0, 0, canvas.getWidth(), canvas.getHeight(), fogPaint);
-
-        // Build a SHARED mask (union of circles) then apply ONCE so overlaps don't stack
-        int w = canvas.getWidth();
-        int h = canvas.getHeight();
-        if (sharedMaskBitmap == null || sharedMaskBitmap.getWidth() != w || sharedMaskBitmap.getHeight() != h) {
-            sharedMaskBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
-            sharedMaskCanvas = new Canvas(sharedMaskBitmap);
-        }
-
-        // Clear mask each frame
-        sharedMaskBitmap.eraseColor(Color.TRANSPARENT);
+        // Bring the cached tiles up to date with points added since the last frame
+        catchUp();
 
-        // Draw shared circles into mask (fully opaque)
-        Point sp = new Point();
-        for (GeoPoint p : sharedPoints) {
-            mapView.getProjection().toPixels(p, sp);
-            float rPx = metersToPixels(mapView, p, primaryRadiusMeters);
-            sharedMaskCanvas.drawCircle(sp.x, sp.y, rPx, sharedMaskPaint);
-        }
+        // Same tile grid osmdroid's own tile overlay uses for this projection
+        Projection projection = mapView.getProjection();
+        int zoom = Math.min(FogTileCache.MAX_ZOOM, TileSystem.getInputTileZoomLevel(projection.getZoomLevel()));
+        int n = 1 << zoom;
 
-        // Apply mask once at fixed alpha
-        canvas.drawBitmap(sharedMaskBitmap, 0, 0, sharedApplyPaint);
+        projection.getMercatorViewPort(mercatorViewPort);
+        int left = projection.getTileFromMercator(mercatorViewPort.left);
+        int top = projection.getTileFromMercator(mercatorViewPort.top);
+        int right = projection.getTileFromMercator(mercatorViewPort.right);
+        int bottom = projection.getTileFromMercator(mercatorViewPort.bottom);
 
-        //  Draw PrimaryPoints onto map
-        for (GeoPoint p : primaryPoints) {
-            mapView.getProjection().toPixels(p, sp);
-            float rPx = metersToPixels(mapView, p, primaryRadiusMeters);
-            canvas.drawCircle(sp.x, sp.y, rPx, primaryEraserPaint);
-        }
-
-        canvas.restoreToCount(layerId);
-    }
+        for (int y = top; y <= bottom; y++) {
+            for (int x = left; x <= right; x++) {
+                projection.getPixelFromTile(x, y, tileRect);
 
-    /**
-     * Estimates the fraction of area NOT yet uncovered (i.e., still fogged) inside a dynamic
-     * bounding box around the user's revealed points. Intended for lightweight longitudinal metrics,
-     * not exact geodesic area.
-     *
-     * @return uncovered fraction in [0,1] (1.0 = nothing revealed)
-     */
-    public double estimateUncoveredPercent() {
-        if (primaryPoints.isEmpty()) return 1.0;
-
-        double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
-        double minLon = Double.POSITIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
-        double latSum = 0.0;
-
-        for (GeoPoint p : primaryPoints) {
-            double lat = p.getLatitude();
-            double lon = p.getLongitude();
-            latSum += lat;
-            if (lat < minLat) minLat = lat;
-            if (lat > maxLat) maxLat = lat;
-            if (lon < minLon) minLon = lon;
-            if (lon > maxLon) maxLon = lon;
-        }
-
-        double latMid = latSum / primaryPoints.size();
-
-        // Padding around explored area (meters)
-        final double padM = 200.0;
-        double degPerMeterLat = 1.0 / 111320.0;
-        double degPerMeterLon = 1.0 / (111320.0 * Math.max(0.2, Math.cos(Math.toRadians(latMid))));
-
-        minLat -= padM * degPerMeterLat;
-        maxLat += padM * degPerMeterLat;
-        minLon -= padM * degPerMeterLon;
-        maxLon += padM * degPerMeterLon;
-
-        // Approx width/height in meters
-        double heightM = (maxLat - minLat) * 111320.0;
-        double widthM = (maxLon - minLon) * (111320.0 * Math.max(0.2, Math.cos(Math.toRadians(latMid))));
-        if (heightM <= 0 || widthM <= 0) return 1.0;
-
-        // Adaptive sampling step so this remains cheap even for large bounds
-        final int targetMaxCells = 20000;
-        double areaM2 = Math.max(1.0, widthM * heightM);
-        double stepM = Math.max(50.0, Math.sqrt(areaM2 / targetMaxCells));
-        stepM = Math.min(stepM, 250.0);
-
-        double latStep = stepM * degPerMeterLat;
-        double lonStep = stepM * degPerMeterLon;
-
-        int total = 0;
-        int covered = 0;
-
-        // Radius with slack for grid sampling
-        double coverRadiusM = primaryRadiusMeters + (stepM * 0.8);
-
-        for (double lat = minLat; lat <= maxLat; lat += latStep) {
-            for (double lon = minLon; lon <= maxLon; lon += lonStep) {
-                total++;
-                GeoPoint cell = new GeoPoint(lat, lon);
-
-                boolean isCovered = false;
-                for (GeoPoint p : primaryPoints) {
-                    if (p.distanceToAsDouble(cell) <= coverRadiusM) {
-                        isCovered = true;
-                        break;
-                    }
+                // Beyond the poles there is nothing to reveal
+                if (y < 0 || y >= n) {
+                    canvas.drawRect(tileRect, fogPaint);
+                    continue;
                 }
-                if (isCovered) covered++;
-            }
-        }
-
-        if (total <= 0) return 1.0;
-        double coveredFrac = covered / (double) total;
-        double uncoveredFrac = 1.0 - coveredFrac;
-        if (uncoveredFrac < 0) uncoveredFrac = 0;
-        if (uncoveredFrac > 1) uncoveredFrac = 1;
-        return uncoveredFrac;
-    }
-
 
-    /** Add point to {@link #primaryPoints}
-     * @param point Point to reveal at
-     */
-    public void addPrimary(GeoPoint point) {
-        // if point is too close to another point, do not add
-        for (GeoPoint existing : primaryPoints) {
-            if (existing.distanceToAsDouble(point) < minDistanceMeters) return;
-        }
-        primaryPoints.add(point);
-    }
-
-    /** Add points to {@link #sharedPoints}
-     * @param jsonArrayString JSON Array of points to add to {@link #sharedPoints}
-     */
-    public void setSharedFromJsonArray(String jsonArrayString) {
-        try {
-            JSONArray arr = new JSONArray(jsonArrayString);
-            sharedPoints.clear();
-            for (int i = 0; i < arr.length(); i++) {
-                JSONObject obj = arr.getJSONObject(i);
-                sharedPoints.add(new GeoPoint(obj.getDouble("lat"), obj.getDouble("lon")));
+                int wrappedX = ((x % n) + n) % n;
+                canvas.drawBitmap(tileCache.get(zoom, wrappedX, y), null, tileRect, tileBlitPaint);
             }
-        } catch (Exception ignored) {}
-    }
-
-    /**
-     * Set shared points from an encoded polyline string
-     */
-    public void setSharedFromEncodedPolyline(String encoded) {
-        try {
-            sharedPoints.clear();
-            sharedPoints.addAll(decodePolyline(encoded));
-        } catch (Exception ignored) {}
-    }
-
-    /**
-     * Load all fog layers from storage into designated {@link #primaryPoints} and {@link #sharedPoints}
-     * @param context Context to load from
-     */
-    public void loadAll(Context context) {
-        primaryPoints.clear();
-        sharedPoints.clear();
-        loadLayerInto(context, "primary", primaryPoints);
-        loadLayerInto(context, "shared", sharedPoints);
-    }
-
-    /**
-     * Save all fog layers to storage from {@link #primaryPoints} and {@link #sharedPoints}
-     */
-    public void saveAll(Context context) {
-        saveLayerFrom(context, "primary", primaryPoints, primaryRadiusMeters);
-        saveLayerFrom(context, "shared", sharedPoints, primaryRadiusMeters);
-    }
-
-    /**
-     * Exports the primary points as a JSON Array
-     * @return JSON Array of points as a string
-     */
-    public String exportPrimaryAsJsonArray() {
-        try {
-            JSONArray points = new JSONArray();
-            for (GeoPoint p : primaryPoints) {
-                JSONObject obj = new JSONObject();
-                obj.put("lat", p.getLatitude());
-                obj.put("lon", p.getLongitude());
-                points.put(obj);
-            }
-            return points.toString();
-        } catch (Exception e) {
-            return "[]";
         }
     }
 
     /**
-     * Export primary points as multiple *self-contained* encoded polylines, each kept under maxSegmentLen chars.
-     * Each segment can be decoded independently (so every QR can apply instantly).
+     * <p>Renders the fog for one tile.</p>
+     * <p>Build and Apply Shared Mask</p>
+     * <p>Apply Primary Mask</p>
+     * @param canvas Tile-sized canvas to draw onto
+     * @param zoom Tile zoom level
+     * @param x Tile column
+     * @param y Tile row
      */
-    public List<String> exportPrimaryAsEncodedPolylineSegments(int maxSegmentLen) {
-        List<String> out = new ArrayList<>();
-        if (maxSegmentLen < 50) maxSegmentLen = 50;
-
-        ArrayList<GeoPoint> seg = new ArrayList<>();
-        for (GeoPoint p : primaryPoints) {
-            seg.add(p);
-
-            String enc = "";
-            try { enc = encodePolyline(seg); } catch (Exception ignored) {}
-
-            if (enc.length() > maxSegmentLen && seg.size() > 1) {
-                GeoPoint last = seg.remove(seg.size() - 1);
-                try { out.add(encodePolyline(seg)); } catch (Exception ignored) {}
-                seg.clear();
-                seg.add(last);
-            }
-        }
-
-        if (!seg.isEmpty()) {
-            try { out.add(encodePolyline(seg)); } catch (Exception ignored) {}
-        }
+    @Override
+    public void renderTile(Canvas canvas, int zoom, int x, int y) {
+        int size = FogTileCache.TILE_SIZE_PX;
 
-        if (out.isEmpty() && !primaryPoints.isEmpty()) {
-            try { out.add(encodePolyline(primaryPoints)); } catch (Exception ignored) {}
-        }
+        // Solid fog (alpha from fogPaint)
+        canvas.drawRect(0, 0, size, size, fogPaint);
 
-        return out;
-    }
+        // Only points within a reveal radius of the tile can touch it
+        circleDrawer.setTile(zoom, x, y, primaryRadiusMeters);
+        double south = circleDrawer.south;
+        double north = circleDrawer.north;
+        double west = circleDrawer.west;
+        double east = circleDrawer.east;
 
-    /**
-     * Append a decoded polyline segment into the shared layer (does not replace existing shared points).
-     * Returns number of points appended (0 if decode fails).
-     */
-    public int appendSharedFromEncodedPolyline(String encoded) {
-        try {
-            List<GeoPoint> pts = decodePolyline(encoded);
-            sharedPoints.addAll(pts);
-            return pts.size();
-        } catch (Exception ignored) {
-            return 0;
+        // Build a SHARED mask (union of circles) then apply ONCE so overlaps don't stack
+        if (sharedMaskBitmap == null) {
+            sharedMaskBitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+            sharedMaskCanvas = new Canvas(sharedMaskBitmap);
         }
-    }
-
-    /**
-     * Load fog layers from storage into a list
-     * @param context Context to load from
-     * @param layerId Layer to load
-     * @param out List to load into
-     */
-    private static void loadLayerInto(Context context, String layerId, List<GeoPoint> out) {
-        try {
-            // Load fog layers from storage
-            JSONObject root = JsonDb.load(context);
-            JSONObject fog = root.optJSONObject("fog");
-            if (fog == null) return;
-
-            // Load points from fog layers
-            JSONArray layers = fog.optJSONArray("layers");
-            if (layers == null) return;
-
-            // Loop through all layers until found
-            for (int i = 0; i < layers.length(); i++) {
-                // Get layer object
-                JSONObject layer = layers.optJSONObject(i);
-                if (layer == null) continue;
-                if (!layerId.equals(layer.optString("layerId"))) continue;
-
-                out.clear();
-
-                // NEW: encoded points
-                String enc = layer.optString("pointsEnc", "");
-                if (enc != null && !enc.isEmpty()) {
-                    out.addAll(decodePolyline(enc));
-                    return;
-                }
-
-                // LEGACY: JSON array points
-                JSONArray points = layer.optJSONArray("points");
-                if (points != null) {
-                    for (int j = 0; j < points.length(); j++) {
-                        JSONObject obj = points.optJSONObject(j);
-                        if (obj == null) continue;
-                        out.add(new GeoPoint(obj.getDouble("lat"), obj.getDouble("lon")));
-                    }
-                }
-
-                // Found layer, return
-                return;
-            }
-        } catch (Exception ignored) {}
-    }
-
-    /**
-     * Save fog layers to storage from a list
-     * @param context Context to save to
-     * @param layerId Layer to save
-     * @param pointsList List of points to save
-     * @param radiusMeters Radius of the points
-     */
-    private static void saveLayerFrom(Context context, String layerId, List<GeoPoint> pointsList, float radiusMeters) {
-        try {
-            // Load fog layers from storage
-            JSONObject root = JsonDb.load(context);
-            root.put("schemaVersion", 2);
-
-            // Get fog object
-            JSONObject fog = root.optJSONObject("fog");
-            if (fog == null) fog = new JSONObject();
-
-            // Get layers array
-            JSONArray layers = fog.optJSONArray("layers");
-            if (layers == null) layers = new JSONArray();
-
-            // Find layer object and update
-            JSONObject layerObj = null;
-            int idx = -1;
-
-            // Loop through all layers until found
-            for (int i = 0; i < layers.length(); i++) {
-                JSONObject lo = layers.optJSONObject(i);
-                if (lo != null && layerId.equals(lo.optString("layerId"))) {
-                    layerObj = lo;
-                    idx = i;
-                    break;
-                }
-            }
-            if (layerObj == null) layerObj = new JSONObject();
-
-            // NEW: compact encoding
-            String enc = encodePolyline(pointsList);
+        sharedMaskBitmap.eraseColor(Color.TRANSPARENT);
 
-            // Update layer object
-            layerObj.put("layerId", layerId);
-            layerObj.put("revealRadiusMeters", radiusMeters);
-            layerObj.put("minDistanceMeters", 4.5);
-            layerObj.put("pointsEnc", enc);
-            layerObj.remove("points"); // drop legacy to keep DB small
+        frameCanvas = sharedMaskCanvas;
+        framePaint = sharedMaskPaint;
+        model.forEachSharedInBounds(south, north, west, east, circleDrawer);
 
-            // Update layers array
-            if (idx >= 0) layers.put(idx, layerObj);
-            else layers.put(layerObj);
+        // Apply mask once at fixed alpha
+        canvas.drawBitmap(sharedMaskBitmap, 0, 0, sharedApplyPaint);
 
-            // Update fog object
-            fog.put("layers", layers);
-            root.put("fog", fog);
+        //  Draw PrimaryPoints onto the tile
+        frameCanvas = canvas;
+        framePaint = primaryEraserPaint;
+        model.forEachPrimaryInBounds(south, north, west, east, circleDrawer);
 
-            // Save to storage
-            JsonDb.save(context, root);
-        } catch (Exception ignored) {}
+        // Don't hold on to the tile's canvas between renders
+        frameCanvas = null;
     }
 
     // -- Method Helpers --
 
     /**
-     * <p>Converts meters to pixels</p>
-     *
-     * @param mapView MapView to use
-     * @param center Center point to use
-     * @param meters Meters to convert
-     * @return Converted pixels
+     * Catch the cached tiles up with the model: reveal primary points appended since the last
+     * frame, re-render around new shared points, and start over if points were removed
      */
-    private float metersToPixels(MapView mapView, GeoPoint center, float meters) {
-        GeoPoint north = new GeoPoint(center.getLatitude() + meters / 111320f, center.getLongitude());
-        Point c = new Point();
-        Point n = new Point();
-        mapView.getProjection().toPixels(center, c);
-        mapView.getProjection().toPixels(north, n);
-        return (float) Math.hypot(n.x - c.x, n.y - c.y);
-    }
-
-    // ---- Polyline encoding/decoding (lat/lon scaled by 1e5) ----
-
-    private static String encodePolyline(List<GeoPoint> points) {
-        StringBuilder result = new StringBuilder();
-        long lastLat = 0;
-        long lastLon = 0;
-        for (GeoPoint p : points) {
-            long lat = Math.round(p.getLatitude() * 1e5);
-            long lon = Math.round(p.getLongitude() * 1e5);
-            long dLat = lat - lastLat;
-            long dLon = lon - lastLon;
-            encodeSigned(dLat, result);
-            encodeSigned(dLon, result);
-            lastLat = lat;
-            lastLon = lon;
+    private void catchUp() {
+        int resetCount = model.getResetCount();
+        if (resetCount != drawnResetCount) {
+            drawnResetCount = resetCount;
+            drawnPrimary = model.primarySize();
+            drawnShared = model.sharedSize();
+            tileCache.invalidateAll();
+            return;
         }
-        return result.toString();
+        drawnPrimary = model.forEachPrimaryFrom(drawnPrimary, primaryRevealer);
+        drawnShared = model.forEachSharedFrom(drawnShared, sharedInvalidator);
     }
 
-    private static void encodeSigned(long value, StringBuilder out) {
-        long s = value << 1;
-        if (value < 0) s = ~s;
-        while (s >= 0x20) {
-            int nextValue = (int) ((0x20 | (s & 0x1f)) + 63);
-            out.append((char) nextValue);
-            s >>= 5;
-        }
-        out.append((char) ((int) (s + 63)));
+    /** Clear one new primary circle from the cached tiles instead of re-rendering them */
+    private void revealPrimaryAt(double lat, double lon) {
+        tileCache.revealCircle(lat, lon, primaryRadiusMeters, primaryEraserPaint);
     }
 
-    private static List<GeoPoint> decodePolyline(String encoded) {
-        List<GeoPoint> points = new ArrayList<>();
-        int index = 0;
-        long lat = 0;
-        long lon = 0;
-
-        while (index < encoded.length()) {
-            long packedLat = decodeSigned(encoded, index);
-            index = (int) (packedLat >>> 32);
-            long dLat = (int) packedLat;
-
-            long packedLon = decodeSigned(encoded, index);
-            index = (int) (packedLon >>> 32);
-            long dLon = (int) packedLon;
-
-            lat += dLat;
-            lon += dLon;
-            points.add(new GeoPoint(lat / 1e5, lon / 1e5));
-        }
-        return points;
-    }
-
-    /**
-     * Returns a packed long: high 32 bits = new index, low 32 bits = signed delta
-     */
-    private static long decodeSigned(String encoded, int startIndex) {
-        long result = 0;
-        int shift = 0;
-        int index = startIndex;
-        int b;
-
-        do {
-            b = encoded.charAt(index++) - 63;
-            result |= (long) (b & 0x1f) << shift;
-            shift += 5;
-        } while (b >= 0x20 && index < encoded.length());
-
-        long delta = ((result & 1) != 0) ? ~(result >> 1) : (result >> 1);
-        return ((long) index << 32) | (delta & 0xffffffffL);
-    }
-
-    // Returns a copy of primary points so SettingsActivity can chunk by points
-    public List<GeoPoint> getPrimaryPointsCopy() {
-        return new ArrayList<>(primaryPoints);
-    }
-
-    // Public wrapper so SettingsActivity can encode segments
-    public static String encodePolylinePublic(List<GeoPoint> points) {
-        try {
-            return encodePolyline(points);
-        } catch (Exception e) {
-            return "";
-        }
+    /** Shared circles go through the mask, so the tiles around one are re-rendered */
+    private void invalidateSharedAt(double lat, double lon) {
+        tileCache.invalidateAround(lat, lon, primaryRadiusMeters);
     }
 }
@@ -0,0 +1,232 @@
+package com.terra.FogOfEarth;
+
+import androidx.annotation.VisibleForTesting;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Append-only log of fog points added since the last {@link FogStore} snapshot.</p>
+ * <p>Saving only appends the new points, so its cost follows the number of new points rather than
+ * the whole history. Once the log grows past {@link #COMPACT_RECORDS} it is merged into the
+ * snapshot and deleted. Loading replays the log on top of the snapshot, which also recovers
+ * points saved just before a crash.</p>
+ * <p>File layout: 16-byte header (magic, version, log id) then 9-byte records of
+ * type, latE5, lonE5. A partly written record at the end is ignored, and cut off by the next
+ * append.</p>
+ * <p>Only call {@link #append}, {@link #compact} and {@link #clear} from {@link FogDbWriter}'s
+ * thread.</p>
+ */
+final class FogPointLog {
+
+    static final String FILE_NAME = "fog_points.log";
+
+    // Merge into the snapshot once this many records have built up
+    static final int COMPACT_RECORDS = 4096;
+
+    private static final int MAGIC = 0x464F474C; // "FOGL"
+    private static final int VERSION = 1;
+    static final int HEADER_BYTES = 16;
+    static final int RECORD_BYTES = 9;
+
+    private static final byte ADD_PRIMARY = 1;
+    private static final byte ADD_SHARED = 2;
+    private static final byte CLEAR_SHARED = 3;
+
+    // Number of appends written, so tests can check batching
+    @VisibleForTesting static final AtomicInteger appendCount = new AtomicInteger();
+
+    private static final Random ids = new Random();
+
+    private FogPointLog() {}
+
+    /**
+     * Append new points to the log, compacting it into the snapshot if it has grown too long
+     * @param dir Directory holding the DB
+     * @param primary New primary points
+     * @param shared New shared points
+     * @param clearSharedFirst True if the shared layer was replaced, rather than added to
+     * @param radiusMeters Reveal radius recorded with the layers on compaction
+     * @return {log id, offset the records start at, offset they end at}, or null if there was
+     *         nothing to append
+     */
+    static long[] append(File dir, PointStore primary, PointStore shared, boolean clearSharedFirst,
+                         float radiusMeters) throws IOException {
+        int records = primary.size() + shared.size() + (clearSharedFirst ? 1 : 0);
+        if (records == 0) return null;
+
+        File file = new File(dir, FILE_NAME);
+        appendCount.incrementAndGet();
+        long id;
+        long start;
+        long length;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+
+            length = channel.size();
+            Long headerId = length < HEADER_BYTES ? null : readHeaderId(channel);
+            if (headerId == null) {
+                // New (or unreadable) log: start over with a fresh id
+                channel.truncate(0);
+                id = ids.nextLong();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                header.putInt(MAGIC).putInt(VERSION).putLong(id).flip();
+                writeFully(channel, header, 0);
+                length = HEADER_BYTES;
+            } else {
+                id = headerId;
+                // Cut off a record torn by a crash mid-append
+                long whole = HEADER_BYTES + (length - HEADER_BYTES) / RECORD_BYTES * RECORD_BYTES;
+                if (whole != length) channel.truncate(whole);
+                length = whole;
+            }
+
+            ByteBuffer buf = ByteBuffer.allocate(records * RECORD_BYTES);
+            if (clearSharedFirst) buf.put(CLEAR_SHARED).putInt(0).putInt(0);
+            for (int i = 0; i < primary.size(); i++) {
+                buf.put(ADD_PRIMARY).putInt(primary.latE5(i)).putInt(primary.lonE5(i));
+            }
+            for (int i = 0; i < shared.size(); i++) {
+                buf.put(ADD_SHARED).putInt(shared.latE5(i)).putInt(shared.lonE5(i));
+            }
+            buf.flip();
+            start = length;
+            writeFully(channel, buf, length);
+            channel.force(false);
+            length += (long) records * RECORD_BYTES;
+        }
+
+        if ((length - HEADER_BYTES) / RECORD_BYTES >= COMPACT_RECORDS) compact(dir, radiusMeters);
+        return new long[]{id, start, length};
+    }
+
+    /**
+     * Merge the log into the snapshot and delete it. The snapshot notes which log bytes it
+     * contains, so a crash before the delete doesn't replay them twice. The snapshot keeps its
+     * generation, since nothing was replaced.
+     * @param dir Directory holding the DB
+     * @param radiusMeters Reveal radius recorded with the layers
+     */
+    static void compact(File dir, float radiusMeters) throws IOException {
+        File file = new File(dir, FILE_NAME);
+        if (!file.exists()) return;
+
+        PointStore primary = new PointStore();
+        PointStore shared = new PointStore();
+        long[] merged = FogLayerDb.readSnapshot(dir, primary, shared);
+        long[] read = replay(dir, merged[1], merged[2], primary, shared);
+        FogStore.write(dir, primary, shared, radiusMeters, read[0], read[1], merged[0]);
+
+        // The snapshot that contains the log is on disk, so the log can go
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    /**
+     * Apply the log's records to points loaded from the snapshot, skipping any the snapshot
+     * already merged
+     * @param dir Directory holding the log
+     * @param mergedId Id of the log the snapshot merged
+     * @param mergedBytes How much of that log the snapshot merged
+     * @param primary Primary points, appended to
+     * @param shared Shared points, appended to (or replaced)
+     * @return {log id, bytes read, shared clears replayed}, or {0, 0, 0} if there is no readable log
+     */
+    static long[] replay(File dir, long mergedId, long mergedBytes, PointStore primary, PointStore shared) {
+        File file = new File(dir, FILE_NAME);
+        if (!file.exists()) return new long[]{0, 0, 0};
+
+        try (FileInputStream in = new FileInputStream(file);
+             FileChannel channel = in.getChannel()) {
+
+            Long id = readHeaderId(channel);
+            if (id == null) return new long[]{0, 0, 0};
+
+            long start = HEADER_BYTES;
+            if (mergedId == id) start = Math.max(start, mergedBytes);
+
+            // Whole records only; a torn one at the end is ignored
+            long end = HEADER_BYTES + (channel.size() - HEADER_BYTES) / RECORD_BYTES * RECORD_BYTES;
+            if (end <= start) return new long[]{id, Math.max(start, end), 0};
+
+            ByteBuffer buf = ByteBuffer.allocate((int) (end - start));
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, start + buf.position()) < 0) break;
+            }
+            buf.flip();
+
+            long read = start;
+            long clears = 0;
+            while (buf.remaining() >= RECORD_BYTES) {
+                byte type = buf.get();
+                int latE5 = buf.getInt();
+                int lonE5 = buf.getInt();
+                if (type == ADD_PRIMARY) primary.addE5(latE5, lonE5);
+                else if (type == ADD_SHARED) shared.addE5(latE5, lonE5);
+                else if (type == CLEAR_SHARED) {
+                    shared.clear();
+                    clears++;
+                } else break; // corrupt from here on
+                read += RECORD_BYTES;
+            }
+            return new long[]{id, read, clears};
+        } catch (Exception ignored) {
+            return new long[]{0, 0, 0};
+        }
+    }
+
+    /**
+     * Where the log currently ends, for a snapshot that replaces everything logged so far
+     * @param dir Directory holding the log
+     * @return {log id, bytes of whole records}, or {0, 0} if there is no log
+     */
+    static long[] end(File dir) {
+        File file = new File(dir, FILE_NAME);
+        Long id = file.exists() ? readHeaderId(file) : null;
+        if (id == null) return new long[]{0, 0};
+        return new long[]{id, HEADER_BYTES + (file.length() - HEADER_BYTES) / RECORD_BYTES * RECORD_BYTES};
+    }
+
+    /** Delete the log */
+    static void clear(File dir) {
+        //noinspection ResultOfMethodCallIgnored
+        new File(dir, FILE_NAME).delete();
+    }
+
+    // -- Method Helpers --
+
+    private static Long readHeaderId(File file) {
+        try (FileInputStream in = new FileInputStream(file);
+             FileChannel channel = in.getChannel()) {
+            return readHeaderId(channel);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /** Log id from the header, or null if the header is missing or not ours */
+    private static Long readHeaderId(FileChannel channel) {
+        try {
+            if (channel.size() < HEADER_BYTES) return null;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) return null;
+            }
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) return null;
+            return header.getLong();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) position += channel.write(buf, position);
+    }
+}
@@ -0,0 +1,200 @@
+package com.terra.FogOfEarth;
+
+import androidx.annotation.VisibleForTesting;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Binary snapshot of both fog layers, read through a memory map.</p>
+ * <p>Replaces the gzip JSON snapshot: loading maps the file and copies fixed-width records
+ * straight into {@link PointStore}s, with no decompression or parsing. Points saved after the
+ * snapshot live in {@link FogPointLog}; the header records how much of the log the snapshot
+ * already holds.</p>
+ * <p>The header also carries a generation, which changes whenever the layers are replaced rather
+ * than added to (a full save or a clear). Compaction keeps it, so a reader that has already seen
+ * everything compacted can carry on from the new log instead of reloading.</p>
+ * <p>File layout (big-endian): 48-byte header of magic, version, primary count, shared count,
+ * reveal radius, min distance, log id and log bytes merged, generation; then one 8-byte record
+ * (latE5, lonE5) per point, primary points first. Version 1 files have the 40-byte header without
+ * a generation, and read as generation 0.</p>
+ */
+final class FogStore {
+
+    static final String FILE_NAME = "fog_store.bin";
+
+    private static final int MAGIC = 0x464F4753; // "FOGS"
+    private static final int VERSION = 2;
+    static final int HEADER_BYTES = 48;
+    static final int RECORD_BYTES = 8;
+    private static final int V1_HEADER_BYTES = 40;
+
+    // Stored alongside the layers, as the JSON snapshot did
+    private static final float MIN_DISTANCE_METERS = 4.5f;
+
+    // Number of snapshot reads / writes, so tests can check batching
+    @VisibleForTesting static final AtomicInteger readCount = new AtomicInteger();
+    @VisibleForTesting static final AtomicInteger writeCount = new AtomicInteger();
+
+    private static final Random generations = new Random();
+
+    private FogStore() {}
+
+    /** True if a binary snapshot has been written */
+    static boolean exists(File dir) {
+        return new File(dir, FILE_NAME).exists();
+    }
+
+    /** A generation for layers that replace whatever was stored before */
+    static long newGeneration() {
+        long generation;
+        do generation = generations.nextLong(); while (generation == 0);
+        return generation;
+    }
+
+    /**
+     * Read both layers from the snapshot
+     * @param dir Directory holding the snapshot
+     * @param primary Store the primary points are appended to
+     * @param shared Store the shared points are appended to
+     * @return {generation, log id, log bytes merged}, or null if there is no valid snapshot
+     */
+    static long[] read(File dir, PointStore primary, PointStore shared) {
+        File file = new File(dir, FILE_NAME);
+        if (!file.exists()) return null;
+        readCount.incrementAndGet();
+
+        try (FileInputStream in = new FileInputStream(file);
+             FileChannel channel = in.getChannel()) {
+
+            long size = channel.size();
+            if (size < V1_HEADER_BYTES) return null;
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            long[] header = readHeader(buf, size);
+            if (header == null) return null;
+
+            int primaryCount = (int) header[3];
+            int sharedCount = (int) header[4];
+            for (int i = 0; i < primaryCount; i++) primary.addE5(buf.getInt(), buf.getInt());
+            for (int i = 0; i < sharedCount; i++) shared.addE5(buf.getInt(), buf.getInt());
+            return new long[]{header[0], header[1], header[2]};
+        } catch (Exception ignored) {
+            return null;
+        }
+    }
+
+    /**
+     * Read just the header, to see whether the layers changed without loading them
+     * @param dir Directory holding the snapshot
+     * @return {generation, log id, log bytes merged}, or null if there is no valid snapshot
+     */
+    static long[] readHeader(File dir) {
+        File file = new File(dir, FILE_NAME);
+        if (!file.exists()) return null;
+
+        try (FileInputStream in = new FileInputStream(file);
+             FileChannel channel = in.getChannel()) {
+
+            long size = channel.size();
+            ByteBuffer buf = ByteBuffer.allocate((int) Math.min(size, HEADER_BYTES));
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, buf.position()) < 0) return null;
+            }
+            buf.flip();
+
+            long[] header = readHeader(buf, size);
+            return header == null ? null : new long[]{header[0], header[1], header[2]};
+        } catch (Exception ignored) {
+            return null;
+        }
+    }
+
+    /**
+     * Replace the snapshot. Written beside it and renamed over it, so a crash leaves either the
+     * old snapshot or the new one.
+     * @param dir Directory holding the snapshot
+     * @param primary Primary points
+     * @param shared Shared points
+     * @param radiusMeters Reveal radius of the points
+     * @param logId Id of the point log the snapshot has merged (0 for none)
+     * @param logBytes How many bytes of that log are merged
+     * @param generation Generation of the layers (see {@link #newGeneration})
+     */
+    static void write(File dir, PointStore primary, PointStore shared, float radiusMeters, long logId, long logBytes,
+                      long generation) throws IOException {
+        File file = new File(dir, FILE_NAME);
+        File tmp = new File(dir, FILE_NAME + ".tmp");
+        writeCount.incrementAndGet();
+
+        int count = primary.size() + shared.size();
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES + count * RECORD_BYTES);
+        buf.putInt(MAGIC).putInt(VERSION)
+                .putInt(primary.size()).putInt(shared.size())
+                .putFloat(radiusMeters).putFloat(MIN_DISTANCE_METERS)
+                .putLong(logId).putLong(logBytes).putLong(generation);
+        for (int i = 0; i < primary.size(); i++) buf.putInt(primary.latE5(i)).putInt(primary.lonE5(i));
+        for (int i = 0; i < shared.size(); i++) buf.putInt(shared.latE5(i)).putInt(shared.lonE5(i));
+        buf.flip();
+
+        try (FileOutputStream out = new FileOutputStream(tmp);
+             FileChannel channel = out.getChannel()) {
+            while (buf.hasRemaining()) channel.write(buf);
+            channel.force(false);
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            throw e;
+        }
+
+        if (!tmp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            throw new IOException("Failed to replace " + file.getAbsolutePath());
+        }
+    }
+
+    /** Delete the snapshot */
+    static void clear(File dir) {
+        //noinspection ResultOfMethodCallIgnored
+        new File(dir, FILE_NAME).delete();
+    }
+
+    // -- Method Helpers --
+
+    /**
+     * Parse the header at the start of the buffer, leaving it positioned at the first record
+     * @param size Size of the whole file
+     * @return {generation, log id, log bytes merged, primary count, shared count}, or null if the
+     *         header isn't ours or the file is too short for the records it claims
+     */
+    private static long[] readHeader(ByteBuffer buf, long size) {
+        if (buf.remaining() < V1_HEADER_BYTES || buf.getInt() != MAGIC) return null;
+        int version = buf.getInt();
+        if (version != 1 && version != VERSION) return null;
+
+        int primaryCount = buf.getInt();
+        int sharedCount = buf.getInt();
+        buf.getFloat(); // reveal radius
+        buf.getFloat(); // min distance
+        long logId = buf.getLong();
+        long logBytes = buf.getLong();
+        long generation = 0;
+        if (version == VERSION) {
+            if (buf.remaining() < 8) return null;
+            generation = buf.getLong();
+        }
+
+        int headerBytes = version == VERSION ? HEADER_BYTES : V1_HEADER_BYTES;
+        if (primaryCount < 0 || sharedCount < 0
+                || size < headerBytes + ((long) primaryCount + sharedCount) * RECORD_BYTES) return null;
+        return new long[]{generation, logId, logBytes, primaryCount, sharedCount};
+    }
+}
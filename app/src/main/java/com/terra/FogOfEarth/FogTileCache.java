@@ -0,0 +1,210 @@
+package com.terra.FogOfEarth;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.util.LruCache;
+
+/**
+ * <p>Cache of rendered fog tiles, keyed by slippy-map zoom/x/y.</p>
+ * <p>Each tile is rendered once by a {@link Renderer} and kept in an LRU bounded by bytes, so
+ * panning only blits bitmaps. A new primary point is erased straight into the cached tiles it
+ * touches; shared imports invalidate just the tiles their circles touch.</p>
+ */
+final class FogTileCache {
+
+    static final int TILE_SIZE_PX = 256;
+    static final int MAX_ZOOM = 29;
+
+    private static final double EARTH_RADIUS_M = 6378137.0;
+    private static final double MAX_LAT = 85.05112877980659;
+
+    /** Draws the fog for one tile onto a {@link #TILE_SIZE_PX} square canvas */
+    interface Renderer {
+        void renderTile(Canvas canvas, int zoom, int x, int y);
+    }
+
+    private final Renderer renderer;
+    private final LruCache<Long, Bitmap> tiles;
+    private final Canvas renderCanvas = new Canvas();
+
+    // Bit z set when tiles at zoom z may be cached, so invalidation skips unused zoom levels
+    private int cachedZooms = 0;
+
+    // Per-call state for revealCircle and invalidateAround, so neither allocates per point
+    private Paint revealEraser;
+    private double revealLat;
+    private double revealLon;
+    private double revealRadiusMeters;
+    private final TileCircles revealCircles =
+            new TileCircles((cx, cy, radiusPx) -> renderCanvas.drawCircle(cx, cy, radiusPx, revealEraser));
+    private final TileAction revealer = this::revealInTile;
+    private final TileAction remover = this::removeTile;
+
+    /**
+     * @param maxBytes Upper bound on the total size of cached tile bitmaps
+     * @param renderer Renders a tile on a cache miss
+     */
+    FogTileCache(int maxBytes, Renderer renderer) {
+        this.renderer = renderer;
+        this.tiles = new LruCache<Long, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Long key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * Returns the tile, rendering it first if it isn't cached
+     * @param zoom Tile zoom level
+     * @param x Tile column, already wrapped into [0, 2^zoom)
+     * @param y Tile row in [0, 2^zoom)
+     * @return Rendered tile bitmap
+     */
+    Bitmap get(int zoom, int x, int y) {
+        long key = key(zoom, x, y);
+        Bitmap tile = tiles.get(key);
+        if (tile != null) return tile;
+
+        tile = Bitmap.createBitmap(TILE_SIZE_PX, TILE_SIZE_PX, Bitmap.Config.ARGB_8888);
+        renderCanvas.setBitmap(tile);
+        renderer.renderTile(renderCanvas, zoom, x, y);
+        renderCanvas.setBitmap(null);
+
+        tiles.put(key, tile);
+        cachedZooms |= 1 << zoom;
+        return tile;
+    }
+
+    /**
+     * Drops every cached tile that a circle could touch, at every zoom level in use
+     * @param lat Latitude of the circle centre
+     * @param lon Longitude of the circle centre
+     * @param radiusMeters Circle radius
+     */
+    void invalidateAround(double lat, double lon, double radiusMeters) {
+        forEachTileAround(lat, lon, radiusMeters, remover);
+    }
+
+    /**
+     * Erases a circle directly from the cached tiles it touches, leaving the rest of each tile
+     * untouched. Tiles that aren't cached will include the circle when they are rendered.
+     * @param lat Latitude of the circle centre
+     * @param lon Longitude of the circle centre
+     * @param radiusMeters Circle radius
+     * @param eraser Paint that clears the fog (e.g. DST_OUT)
+     */
+    void revealCircle(double lat, double lon, double radiusMeters, Paint eraser) {
+        revealEraser = eraser;
+        revealLat = lat;
+        revealLon = lon;
+        revealRadiusMeters = radiusMeters;
+        forEachTileAround(lat, lon, radiusMeters, revealer);
+        revealEraser = null;
+    }
+
+    /** Drops every cached tile */
+    void invalidateAll() {
+        tiles.evictAll();
+        cachedZooms = 0;
+    }
+
+    private interface TileAction {
+        void apply(int zoom, int x, int y, long key);
+    }
+
+    private void removeTile(int zoom, int x, int y, long key) {
+        tiles.remove(key);
+    }
+
+    /** Erase the circle set up by {@link #revealCircle} from one tile, if it is cached */
+    private void revealInTile(int zoom, int x, int y, long key) {
+        Bitmap tile = tiles.get(key);
+        if (tile == null) return;
+
+        revealCircles.setTile(zoom, x, y, revealRadiusMeters);
+        renderCanvas.setBitmap(tile);
+        revealCircles.visit(revealLat, revealLon);
+        renderCanvas.setBitmap(null);
+    }
+
+    /**
+     * Runs an action for each tile a circle could touch, at every zoom level with cached tiles.
+     * x is left unwrapped (may be -1 or 2^zoom near the antimeridian) so pixel offsets stay
+     * continuous; the key is wrapped.
+     */
+    private void forEachTileAround(double lat, double lon, double radiusMeters, TileAction action) {
+        if (cachedZooms == 0) return;
+
+        double padLat = radiusMeters / 111320.0;
+        double padLon = padLat / Math.cos(Math.toRadians(Math.min(89.0, Math.abs(lat) + padLat)));
+
+        for (int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+            if ((cachedZooms & (1 << zoom)) == 0) continue;
+
+            int n = 1 << zoom;
+            double world = worldSizePx(zoom);
+            int x0 = (int) Math.floor(worldX(lon - padLon, world) / TILE_SIZE_PX);
+            int x1 = (int) Math.floor(worldX(lon + padLon, world) / TILE_SIZE_PX);
+            int y0 = tileY(lat + padLat, zoom);
+            int y1 = tileY(lat - padLat, zoom);
+
+            for (int y = y0; y <= y1; y++) {
+                for (int x = x0; x <= x1; x++) {
+                    int wrappedX = ((x % n) + n) % n;
+                    action.apply(zoom, x, y, key(zoom, wrappedX, y));
+                }
+            }
+        }
+    }
+
+    // ---- Web Mercator helpers (slippy-map tiles of TILE_SIZE_PX) ----
+
+    /** Size of the whole world in pixels at a zoom level */
+    static double worldSizePx(int zoom) {
+        return (double) TILE_SIZE_PX * (1L << zoom);
+    }
+
+    /** Horizontal world pixel of a longitude */
+    static double worldX(double lon, double worldSizePx) {
+        return (lon + 180.0) / 360.0 * worldSizePx;
+    }
+
+    /** Vertical world pixel of a latitude */
+    static double worldY(double lat, double worldSizePx) {
+        double clipped = Math.max(-MAX_LAT, Math.min(MAX_LAT, lat));
+        double sin = Math.sin(Math.toRadians(clipped));
+        return (0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI)) * worldSizePx;
+    }
+
+    /** Meters covered by one pixel at a latitude */
+    static double metersPerPixel(double lat, double worldSizePx) {
+        return Math.cos(Math.toRadians(lat)) * 2 * Math.PI * EARTH_RADIUS_M / worldSizePx;
+    }
+
+    static int tileX(double lon, int zoom) {
+        int n = 1 << zoom;
+        double wrapped = ((lon + 180.0) % 360.0 + 360.0) % 360.0;
+        return Math.min(n - 1, (int) Math.floor(wrapped / 360.0 * n));
+    }
+
+    static int tileY(double lat, int zoom) {
+        int n = 1 << zoom;
+        int y = (int) Math.floor(worldY(lat, worldSizePx(zoom)) / TILE_SIZE_PX);
+        return Math.max(0, Math.min(n - 1, y));
+    }
+
+    static double tileLonWest(int x, int zoom) {
+        return x * 360.0 / (1 << zoom) - 180.0;
+    }
+
+    static double tileLatNorth(int y, int zoom) {
+        double n = Math.PI * (1 - 2.0 * y / (1 << zoom));
+        return Math.toDegrees(Math.atan(Math.sinh(n)));
+    }
+
+    private static long key(int zoom, int x, int y) {
+        return ((long) zoom << 58) | ((long) x << 29) | y;
+    }
+}
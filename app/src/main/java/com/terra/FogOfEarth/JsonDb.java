@@ -1,108 +1,71 @@
 package com.terra.FogOfEarth;
 
-import android.content.Context;
 import android.util.Log;
 
-import org.json.JSONObject;
-
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.nio.charset.StandardCharsets;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
-public class JsonDb {
+/**
+ * <p>The gzip JSON fog DB used before the binary {@link FogStore}.</p>
+ * <p>Nothing writes it any more: it is only read by {@link FogLayerDb} to migrate older installs,
+ * and deleted when the fog is cleared.</p>
+ */
+final class JsonDb {
 
     // Database file name
-    private static final String FILE_NAME = "fog_db.json";
-    private static final String FILE_NAME_GZ = "fog_db.json.gz";
+    static final String FILE_NAME = "fog_db.json";
+    static final String FILE_NAME_GZ = "fog_db.json.gz";
 
     private static final String TAG = "JsonDb";
 
+    private JsonDb() {}
+
     /**
-     * loads json file into a JSONObject
-     * @param context used to access the app’s internal storage
-     * @return JSONObject
+     * opens the DB file for streaming, so callers can read what they need without loading it
+     * all into one JSONObject
+     * @param dir directory holding the DB file
+     * @return reader over the JSON text (caller closes it), or null if there is no DB file
      */
-    public static JSONObject load(Context context) {
-        File gz = new File(context.getFilesDir(), FILE_NAME_GZ);
-        File legacy = new File(context.getFilesDir(), FILE_NAME);
+    static Reader openReader(File dir) throws IOException {
+        File gz = new File(dir, FILE_NAME_GZ);
+        File legacy = new File(dir, FILE_NAME);
+        if (!gz.exists() && !legacy.exists()) return null;
 
         // Prefer gzip; fallback to legacy json
         if (gz.exists()) {
-            try (FileInputStream fis = new FileInputStream(gz);
-                 GZIPInputStream gis = new GZIPInputStream(fis);
-                 InputStreamReader isr = new InputStreamReader(gis, StandardCharsets.UTF_8);
-                 BufferedReader br = new BufferedReader(isr)) {
-
-                StringBuilder sb = new StringBuilder();
-                String line;
-                while ((line = br.readLine()) != null) sb.append(line);
-                String raw = sb.toString().trim();
-                if (raw.isEmpty()) return new JSONObject();
-                return new JSONObject(raw);
-
-            } catch (Exception e) {
-                return new JSONObject();
+            FileInputStream fis = new FileInputStream(gz);
+            try {
+                return new BufferedReader(new InputStreamReader(new GZIPInputStream(fis), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                fis.close();
+                throw e;
             }
         }
-
-        if (!legacy.exists()) return new JSONObject();
-
-        // Parse legacy file into JSONObject
-        try (FileInputStream fis = new FileInputStream(legacy);
-             InputStreamReader isr = new InputStreamReader(fis, StandardCharsets.UTF_8);
-             BufferedReader br = new BufferedReader(isr)) {
-
-            StringBuilder sb = new StringBuilder();
-            String line;
-            while ((line = br.readLine()) != null) sb.append(line);
-            String raw = sb.toString().trim();
-            if (raw.isEmpty()) return new JSONObject();
-
-            return new JSONObject(raw);
-
-        } catch (Exception e) {
-            // Corrupt file or parse fail
-            return new JSONObject();
-        }
+        return new BufferedReader(new InputStreamReader(new FileInputStream(legacy), StandardCharsets.UTF_8));
     }
 
     /**
-     * saves JSONObject to file
-     * @param context used to access the app’s internal storage
-     * @param root JSONObject to save
+     * checks whether there is a DB file to load
+     * @param dir directory holding the DB file
+     * @return true if either the gzip or legacy file exists
      */
-    public static void save(Context context, JSONObject root) {
-        File gz = new File(context.getFilesDir(), FILE_NAME_GZ);
-        File legacy = new File(context.getFilesDir(), FILE_NAME);
-
-        try (FileOutputStream fos = new FileOutputStream(gz);
-             GZIPOutputStream gos = new GZIPOutputStream(fos)) {
-
-            byte[] bytes = root.toString().getBytes(StandardCharsets.UTF_8);
-            gos.write(bytes);
-            gos.finish();
-
-        } catch (Exception ignored) {}
-
-        // Remove legacy file once gz exists (best effort)
-        if (legacy.exists()) {
-            //noinspection ResultOfMethodCallIgnored
-            legacy.delete();
-        }
+    static boolean exists(File dir) {
+        return new File(dir, FILE_NAME_GZ).exists() || new File(dir, FILE_NAME).exists();
     }
 
     /**
      * deletes the file
-     * @param context used to access the app’s internal storage
+     * @param dir directory holding the DB file
      */
-    public static void clear(Context context) {
-        File legacy = new File(context.getFilesDir(), FILE_NAME);
-        File gz = new File(context.getFilesDir(), FILE_NAME_GZ);
+    static void clear(File dir) {
+        File legacy = new File(dir, FILE_NAME);
+        File gz = new File(dir, FILE_NAME_GZ);
 
         if (legacy.exists() && !legacy.delete()) {
             Log.w(TAG, "Failed to delete db file: " + legacy.getAbsolutePath());
@@ -4,17 +4,20 @@ import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
-import android.os.SystemClock;
+import android.os.Process;
 
 import androidx.core.app.NotificationCompat;
 
-import org.osmdroid.util.GeoPoint;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class LocationFogService extends Service {
 
@@ -30,12 +33,21 @@ public class LocationFogService extends Service {
     private boolean foregroundStarted = false;
     private boolean trackingStarted = false;
 
-    // Cached fog + filtering + save throttling
-    private FogOverlay cachedFog = null;
-
-    private long lastSaveElapsedMs = 0L;
+    // Shared fog model, fed by the fix pipeline on its own thread
+    private FogModel fogModel = null;
+    private HandlerThread fixThread = null;
+    private FixPipeline fixPipeline = null;
     private static final long SAVE_THROTTLE_MS = 15_000;
 
+    // Fix rate follows what fixes reveal (used on the fix thread); samplingLock stops a late mode
+    // change re-registering updates after stopTracking removed them
+    private SamplingController sampling = null;
+    private final Object samplingLock = new Object();
+    private boolean samplingStopped = false;
+
+    // Longest onDestroy waits for queued fog saves to reach disk
+    private static final long DESTROY_FLUSH_TIMEOUT_MS = 1_000;
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         createChannel();
@@ -66,57 +78,147 @@ public class LocationFogService extends Service {
 
         locationManager = (LocationManager) getSystemService(LOCATION_SERVICE);
 
-        cachedFog = new FogOverlay(100.0f, 255, 170, 4.5);
-        cachedFog.loadAll(getApplicationContext());
+        fogModel = FogModel.get(getApplicationContext());
 
-        locationListener = location -> {
-            if (location == null || cachedFog == null) return;
+        // Fixes are delivered to, and handled on, a background thread; the main thread never sees them
+        fixThread = new HandlerThread("FogFixPipeline", Process.THREAD_PRIORITY_BACKGROUND);
+        fixThread.start();
+        Handler fixHandler = new Handler(fixThread.getLooper());
+
+        final Context app = getApplicationContext();
+        final FogModel model = fogModel;
+        final SamplingController controller = new SamplingController(System.currentTimeMillis());
+        sampling = controller;
+        synchronized (samplingLock) {
+            samplingStopped = false;
+        }
+        fixPipeline = new FixPipeline(fixHandler::post, new FixPipeline.Stages() {
+            @Override
+            public void addDistance(double lat, double lon, long timeMs) {
+                // ✅ keep distance logging while minimised/backgrounded
+                StudyLogger.addDistanceSample(app, lat, lon);
+            }
 
-            // ✅ keep distance logging while minimised/backgrounded
-            StudyLogger.addDistanceSample(getApplicationContext(), location);
+            @Override
+            public boolean reveal(double lat, double lon) {
+                return model.addPrimary(lat, lon);
+            }
+
+            @Override
+            public void record(long timeMs, double lat, double lon, float accuracyMeters, float speedMps,
+                               boolean revealed) {
+                StudyLogger.recordFix(app, timeMs, lat, lon, accuracyMeters, speedMps, revealed);
 
-            GeoPoint p = new GeoPoint(location.getLatitude(), location.getLongitude());
-            cachedFog.addPrimary(p);
+                SamplingController.Mode mode = controller.getMode();
+                if (controller.onFix(timeMs, lat, lon, speedMps, revealed) != mode) {
+                    requestUpdates(controller.getMode());
+                }
+            }
 
-            long now = SystemClock.elapsedRealtime();
-            if (now - lastSaveElapsedMs >= SAVE_THROTTLE_MS) {
-                lastSaveElapsedMs = now;
-                cachedFog.saveAll(getApplicationContext());
+            @Override
+            public void persist() {
+                model.save();
             }
+        }, SAVE_THROTTLE_MS);
+
+        final FixPipeline pipeline = fixPipeline;
+        locationListener = location -> {
+            if (location == null) return;
+
+            // Network fixes are too coarse to reveal fog; they only tell a still user has moved on
+            if (!LocationManager.GPS_PROVIDER.equals(location.getProvider())) {
+                SamplingController.Mode mode = controller.getMode();
+                if (controller.onCoarseFix(location.getTime(), location.getLatitude(), location.getLongitude()) != mode) {
+                    requestUpdates(controller.getMode());
+                }
+                return;
+            }
+            pipeline.submit(location.getLatitude(), location.getLongitude(),
+                    location.hasAccuracy() ? location.getAccuracy() : Float.NaN,
+                    location.hasSpeed() ? location.getSpeed() : Float.NaN, location.getTime());
         };
 
-        try {
-            if (locationManager != null) {
+        requestUpdates(controller.getMode());
+    }
+
+    /**
+     * (Re-)requests location updates for a sampling mode: GPS at the mode's rate, or the network
+     * provider when standing still (GPS at the slow rate if network location is off)
+     */
+    private void requestUpdates(SamplingController.Mode mode) {
+        synchronized (samplingLock) {
+            if (samplingStopped || locationManager == null || locationListener == null || fixThread == null) return;
+            try {
+                locationManager.removeUpdates(locationListener);
+                String provider = LocationManager.GPS_PROVIDER;
+                if (!mode.gps && locationManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER)) {
+                    provider = LocationManager.NETWORK_PROVIDER;
+                }
                 locationManager.requestLocationUpdates(
-                        LocationManager.GPS_PROVIDER,
-                        2000,
-                        2,
+                        provider,
+                        mode.intervalMs,
+                        mode.minDistanceMeters,
                         locationListener,
-                        Looper.getMainLooper()
+                        fixThread.getLooper()
                 );
-            }
-        } catch (SecurityException ignored) {}
+            } catch (SecurityException ignored) {}
+        }
     }
 
-    private void stopTracking() {
-        if (!trackingStarted) return;
+    /**
+     * Stops location updates and shuts the fix thread down once it has saved
+     * @return Counted down when the final save has been queued, or null if nothing was tracking
+     */
+    private CountDownLatch stopTracking() {
+        if (!trackingStarted) return null;
         trackingStarted = false;
 
-        if (locationManager != null && locationListener != null) {
-            try {
-                locationManager.removeUpdates(locationListener);
-            } catch (SecurityException ignored) {}
+        synchronized (samplingLock) {
+            samplingStopped = true;
+            if (locationManager != null && locationListener != null) {
+                try {
+                    locationManager.removeUpdates(locationListener);
+                } catch (SecurityException ignored) {}
+            }
         }
 
-        if (cachedFog != null) {
-            cachedFog.saveAll(getApplicationContext());
+        // Let queued fixes through, then save and log as the fix thread's last message. The main
+        // thread doesn't wait here: quitSafely still runs everything queued before it
+        CountDownLatch finished = null;
+        if (fixPipeline != null) {
+            final Context app = getApplicationContext();
+            final FogModel model = fogModel;
+            final SamplingController controller = sampling;
+            finished = fixPipeline.finish(() -> {
+                StudyLogger.logSampling(app, "background", controller);
+                if (model != null) model.save();
+
+                // Don't leave the last stretch of distance only in memory
+                StudyLogger.checkpointDistance(app);
+            });
         }
-        cachedFog = null;
+        if (fixThread != null) fixThread.quitSafely();
+        fixPipeline = null;
+        fixThread = null;
+        sampling = null;
+        fogModel = null;
+        return finished;
     }
 
     @Override
     public void onDestroy() {
-        stopTracking();
+        // The final save is only queued once the fix thread gets to it; wait for that before
+        // flushing, or the flush could finish first and the last points be lost
+        CountDownLatch finished = stopTracking();
+        if (finished != null) {
+            try {
+                finished.await(DESTROY_FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        FogDbWriter.flush(DESTROY_FLUSH_TIMEOUT_MS);
+        StudyLogger.flushLogs(getApplicationContext(), DESTROY_FLUSH_TIMEOUT_MS);
         super.onDestroy();
     }
 
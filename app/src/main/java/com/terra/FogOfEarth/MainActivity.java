@@ -43,13 +43,18 @@ public class MainActivity extends AppCompatActivity {
     private IMapController mapController;
 
     // -- Fog Layer --
+    private FogModel fogModel;
     private FogOverlay fogOverlay;
 
+    // Longest onDestroy waits for queued fog saves to reach disk
+    private static final long DESTROY_FLUSH_TIMEOUT_MS = 1_000;
+
     private Bitmap userMarkerBitmap;
 
     // -- GPS updates --
     private LocationManager locationManager;
     private LocationListener locationListener;
+    private SamplingController sampling = null;
 
     // -- Permissions --
     private final ActivityResultLauncher<String[]> requestPermissionLauncher =
@@ -125,8 +130,8 @@ public class MainActivity extends AppCompatActivity {
             userMarkerBitmap = scaleBitmapToDp(raw);
         }
 
-        fogOverlay = new FogOverlay(50.0f, 255, 170, 4.5);
-        fogOverlay.loadAll(this);
+        fogModel = FogModel.get(this);
+        fogOverlay = new FogOverlay(fogModel, 255, 170);
         map.getOverlays().add(fogOverlay);
 
         FloatingActionButton centerLocationButton = findViewById(R.id.centerLocationButton);
@@ -178,13 +183,18 @@ public class MainActivity extends AppCompatActivity {
             if (myLocationOverlay != null) myLocationOverlay.enableMyLocation();
         }
 
-        if (fogOverlay != null) fogOverlay.loadAll(this);
+        // The service adds to the same model, so this only checks nothing else changed on disk;
+        // the check runs in the background and redraws if it found anything, including the
+        // first load that FogModel.get started
+        if (fogModel != null) fogModel.reloadChanges(() -> runOnUiThread(() -> {
+            if (map != null) map.invalidate();
+        }));
 
         checkLocationPermission();
 
         if (map != null) map.invalidate();
 
-        // Avoid double-writes while UI is visible
+        // Both feed the same fog model; only one GPS listener is needed while the UI is visible
         sendFogServiceCommand(LocationFogService.ACTION_PAUSE);
     }
 
@@ -192,13 +202,15 @@ public class MainActivity extends AppCompatActivity {
     protected void onPause() {
         super.onPause();
 
-        if (fogOverlay != null) fogOverlay.saveAll(this);
+        if (fogModel != null) fogModel.save();
 
         if (locationManager != null && locationListener != null) {
             try {
                 locationManager.removeUpdates(locationListener);
             } catch (SecurityException ignored) {}
         }
+        StudyLogger.logSampling(getApplicationContext(), "foreground", sampling);
+        sampling = null;
 
         if (map != null) {
             Configuration.getInstance().save(this, PreferenceManager.getDefaultSharedPreferences(this));
@@ -217,7 +229,8 @@ public class MainActivity extends AppCompatActivity {
     protected void onDestroy() {
         super.onDestroy();
 
-        if (fogOverlay != null) fogOverlay.saveAll(this);
+        if (fogModel != null) fogModel.save();
+        FogDbWriter.flush(DESTROY_FLUSH_TIMEOUT_MS);
 
         if (locationManager != null && locationListener != null) {
             try { locationManager.removeUpdates(locationListener); } catch (SecurityException ignored) {}
@@ -248,7 +261,7 @@ public class MainActivity extends AppCompatActivity {
             if (location != null) {
                 mapController.animateTo(location);
                 mapController.setZoom(16.0);
-                fogOverlay.addPrimary(location);
+                fogModel.addPrimary(location);
                 map.invalidate();
             }
         }));
@@ -258,23 +271,60 @@ public class MainActivity extends AppCompatActivity {
         }
 
         locationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
+        if (sampling == null) sampling = new SamplingController(System.currentTimeMillis());
 
         locationListener = location -> runOnUiThread(() -> {
             if (location == null) return;
 
+            // Network fixes are too coarse to reveal fog; they only tell a still user has moved on
+            if (!LocationManager.GPS_PROVIDER.equals(location.getProvider())) {
+                if (sampling == null) return;
+                SamplingController.Mode mode = sampling.getMode();
+                if (sampling.onCoarseFix(location.getTime(), location.getLatitude(), location.getLongitude()) != mode) {
+                    requestLocationUpdates(sampling.getMode());
+                }
+                return;
+            }
+
             // ✅ distance tracking in foreground (background handled by LocationFogService)
             StudyLogger.addDistanceSample(getApplicationContext(), location);
 
             GeoPoint p = new GeoPoint(location.getLatitude(), location.getLongitude());
-            fogOverlay.addPrimary(p);
-            map.invalidate();
+
+            // The fog tiles erase just the new circle in place (FogTileCache.revealCircle), so
+            // redrawing the map only blits cached tiles
+            boolean revealed = fogModel.addPrimary(p);
+            if (revealed) map.invalidate();
+            StudyLogger.recordFix(getApplicationContext(), location, revealed);
+
+            // Slow down inside revealed fog, speed up again at the frontier
+            if (sampling == null) return;
+            SamplingController.Mode mode = sampling.getMode();
+            if (sampling.onFix(location.getTime(), location.getLatitude(), location.getLongitude(),
+                    location.hasSpeed() ? location.getSpeed() : Float.NaN, revealed) != mode) {
+                requestLocationUpdates(sampling.getMode());
+            }
         });
 
+        requestLocationUpdates(sampling.getMode());
+    }
+
+    /**
+     * (Re-)requests location updates for a sampling mode: GPS at the mode's rate, or the network
+     * provider when standing still (GPS at the slow rate if network location is off)
+     */
+    private void requestLocationUpdates(SamplingController.Mode mode) {
+        if (locationManager == null || locationListener == null) return;
         try {
+            locationManager.removeUpdates(locationListener);
+            String provider = LocationManager.GPS_PROVIDER;
+            if (!mode.gps && locationManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER)) {
+                provider = LocationManager.NETWORK_PROVIDER;
+            }
             locationManager.requestLocationUpdates(
-                    LocationManager.GPS_PROVIDER,
-                    2000,
-                    2,
+                    provider,
+                    mode.intervalMs,
+                    mode.minDistanceMeters,
                     locationListener,
                     Looper.getMainLooper()
             );
@@ -0,0 +1,269 @@
+package com.terra.FogOfEarth;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Long-lived, buffered writer for an NDJSON log (one JSON object per line).</p>
+ * <p>{@link #append} only copies the line into a memory buffer. The buffer is written by the
+ * log's background thread once it holds {@code bufferBytes}, or {@code flushIntervalMs} after
+ * its first line, whichever comes first, through one file stream kept open between writes. So
+ * events can be logged at fix rate without the caller waiting on the disk.</p>
+ * <p>When the current file ({@code name.ndjson}) passes {@code maxSegmentBytes} it is renamed to
+ * the next numbered segment ({@code name.1.ndjson}, {@code name.2.ndjson}, ...) and a new file
+ * is started.</p>
+ * <p>A crash can leave the last line half written. Opening the log cuts such a torn tail off
+ * before appending, and {@link #readLines} skips one, so a reader only ever sees whole lines.</p>
+ */
+final class NdjsonLog {
+
+    private static final String EXT = ".ndjson";
+
+    private final File dir;
+    private final String name;
+    private final long maxSegmentBytes;
+    private final int bufferBytes;
+    private final long flushIntervalMs;
+    private final ScheduledExecutorService writer;
+
+    // Lines waiting for the writer thread
+    private final Object lock = new Object();
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private ByteArrayOutputStream spare = new ByteArrayOutputStream();
+    private boolean flushQueued = false;
+    private Future<?> timedFlush = null;
+
+    // Only touched on the writer thread
+    private FileOutputStream out = null;
+    private long outBytes = 0;
+
+    /**
+     * @param dir Directory holding the log's files
+     * @param name File name without extension
+     * @param maxSegmentBytes Size at which the current file is rotated into a numbered segment
+     * @param bufferBytes Buffered bytes that trigger a write
+     * @param flushIntervalMs Longest a line waits in the buffer
+     * @param writer Single thread that does the file IO
+     */
+    NdjsonLog(File dir, String name, long maxSegmentBytes, int bufferBytes, long flushIntervalMs,
+              ScheduledExecutorService writer) {
+        this.dir = dir;
+        this.name = name;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.bufferBytes = bufferBytes;
+        this.flushIntervalMs = flushIntervalMs;
+        this.writer = writer;
+    }
+
+    /**
+     * Queue one line; it must not contain a newline (JSONObject.toString never does)
+     * @param line JSON text of the event
+     */
+    void append(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        synchronized (lock) {
+            buffer.write(bytes, 0, bytes.length);
+            buffer.write('\n');
+
+            if (buffer.size() >= bufferBytes) {
+                queueFlush();
+            } else if (timedFlush == null && !flushQueued) {
+                timedFlush = writer.schedule(this::writeBuffered, flushIntervalMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /** Start writing everything appended so far without waiting for it */
+    void requestFlush() {
+        synchronized (lock) {
+            if (buffer.size() > 0) queueFlush();
+        }
+    }
+
+    /**
+     * Write everything appended so far and wait for it to reach the file
+     * @param timeoutMs Longest to wait
+     * @return true if it was written in time
+     */
+    boolean flush(long timeoutMs) {
+        try {
+            writer.submit(this::writeBuffered).get(timeoutMs, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /** The log's files, oldest first: numbered segments, then the current file */
+    List<File> segments() {
+        List<File> files = new ArrayList<>();
+        int last = lastSegmentNumber();
+        for (int n = 1; n <= last; n++) {
+            File f = segmentFile(n);
+            if (f.exists()) files.add(f);
+        }
+        File current = currentFile();
+        if (current.exists()) files.add(current);
+        return files;
+    }
+
+    /** The file new lines go to */
+    File currentFile() {
+        return new File(dir, name + EXT);
+    }
+
+    /**
+     * Read the whole lines of a log file, skipping a torn last line (one with no newline, or
+     * with the zero bytes a crash can leave in a file's last block)
+     * @param file Log file
+     * @return Lines without their newlines
+     */
+    static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (InputStream in = new FileInputStream(file)) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            boolean torn = false;
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    byte b = buf[i];
+                    if (b == '\n') {
+                        if (!torn && line.size() > 0) lines.add(line.toString(StandardCharsets.UTF_8.name()));
+                        line.reset();
+                        torn = false;
+                    } else {
+                        if (b == 0) torn = true;
+                        line.write(b);
+                    }
+                }
+            }
+        }
+        return lines;
+    }
+
+    // -- Method Helpers --
+
+    private void queueFlush() {
+        if (flushQueued) return;
+        flushQueued = true;
+        if (timedFlush != null) {
+            timedFlush.cancel(false);
+            timedFlush = null;
+        }
+        writer.execute(this::writeBuffered);
+    }
+
+    /** Runs on the writer thread */
+    private void writeBuffered() {
+        ByteArrayOutputStream toWrite;
+        synchronized (lock) {
+            flushQueued = false;
+            if (timedFlush != null) {
+                timedFlush.cancel(false);
+                timedFlush = null;
+            }
+            if (buffer.size() == 0) return;
+
+            // Swap buffers so appends carry on while this one is written
+            toWrite = buffer;
+            buffer = spare;
+            spare = toWrite;
+        }
+
+        try {
+            if (out == null) open();
+            toWrite.writeTo(out);
+            out.flush();
+            outBytes += toWrite.size();
+            if (outBytes >= maxSegmentBytes) rotate();
+        } catch (IOException e) {
+            // Drop the stream; the next write reopens it (and trims anything torn)
+            closeQuietly();
+        } finally {
+            toWrite.reset();
+        }
+    }
+
+    /** Open the current file for appending, first cutting off a torn last line */
+    private void open() throws IOException {
+        if (!dir.exists()) //noinspection ResultOfMethodCallIgnored
+            dir.mkdirs();
+        File file = currentFile();
+        long length = trimTornTail(file);
+        out = new FileOutputStream(file, true);
+        outBytes = length;
+    }
+
+    private void rotate() throws IOException {
+        closeQuietly();
+        File next = segmentFile(lastSegmentNumber() + 1);
+        if (!currentFile().renameTo(next)) throw new IOException("Failed to rotate " + currentFile());
+        open();
+    }
+
+    private void closeQuietly() {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException ignored) {}
+        out = null;
+    }
+
+    /**
+     * Truncate a file after its last newline if what follows it is torn
+     * @return The file's length afterwards
+     */
+    private static long trimTornTail(File file) throws IOException {
+        if (!file.exists()) return 0;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long length = raf.length();
+            long end = length;
+            byte[] buf = new byte[4096];
+            while (end > 0) {
+                int n = (int) Math.min(buf.length, end);
+                raf.seek(end - n);
+                raf.readFully(buf, 0, n);
+                int i = n - 1;
+                while (i >= 0 && buf[i] != '\n') i--;
+                if (i >= 0) {
+                    end = end - n + i + 1;
+                    break;
+                }
+                end -= n;
+            }
+            if (end < length) raf.setLength(end);
+            return end;
+        }
+    }
+
+    private File segmentFile(int number) {
+        return new File(dir, name + "." + number + EXT);
+    }
+
+    private int lastSegmentNumber() {
+        String[] files = dir.list();
+        if (files == null) return 0;
+        int last = 0;
+        String prefix = name + ".";
+        for (String f : files) {
+            if (f.length() <= prefix.length() + EXT.length() || !f.startsWith(prefix) || !f.endsWith(EXT)) continue;
+            String number = f.substring(prefix.length(), f.length() - EXT.length());
+            try {
+                last = Math.max(last, Integer.parseInt(number));
+            } catch (NumberFormatException ignored) {}
+        }
+        return last;
+    }
+}
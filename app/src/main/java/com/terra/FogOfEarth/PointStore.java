@@ -0,0 +1,112 @@
+package com.terra.FogOfEarth;
+
+import java.util.Arrays;
+
+/**
+ * <p>Compact list of lat/lon points.</p>
+ * <p>Coordinates are kept as fixed-point ints scaled by 1e5, the same precision the polyline
+ * codec stores, in two growable arrays. That is 8 bytes per point instead of a GeoPoint object
+ * per point, and reading a point by index allocates nothing.</p>
+ */
+public final class PointStore {
+
+    /** Fixed-point scale of stored coordinates (1e-5 degrees, about a meter) */
+    public static final double SCALE = 1e5;
+
+    private int[] lats;
+    private int[] lons;
+    private int size = 0;
+
+    public PointStore() {
+        this(16);
+    }
+
+    /**
+     * @param capacity Number of points to make room for up front
+     */
+    public PointStore(int capacity) {
+        lats = new int[Math.max(1, capacity)];
+        lons = new int[Math.max(1, capacity)];
+    }
+
+    /** Number of points */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Remove every point, keeping the allocated capacity */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Add a point, rounding it to the store's fixed-point precision
+     * @param lat Latitude in degrees
+     * @param lon Longitude in degrees
+     * @return Index of the new point
+     */
+    public int add(double lat, double lon) {
+        return addE5((int) Math.round(lat * SCALE), (int) Math.round(lon * SCALE));
+    }
+
+    /**
+     * Add a point already in fixed-point form
+     * @param latE5 Latitude in 1e-5 degrees
+     * @param lonE5 Longitude in 1e-5 degrees
+     * @return Index of the new point
+     */
+    public int addE5(int latE5, int lonE5) {
+        if (size == lats.length) {
+            int capacity = size + (size >> 1) + 1;
+            lats = Arrays.copyOf(lats, capacity);
+            lons = Arrays.copyOf(lons, capacity);
+        }
+        lats[size] = latE5;
+        lons[size] = lonE5;
+        return size++;
+    }
+
+    /**
+     * Drop points from the end
+     * @param newSize Number of points to keep
+     */
+    public void truncate(int newSize) {
+        if (newSize < size) size = Math.max(0, newSize);
+    }
+
+    /** Append every point from another store */
+    public void addAll(PointStore other) {
+        for (int i = 0; i < other.size; i++) addE5(other.lats[i], other.lons[i]);
+    }
+
+    public int latE5(int index) {
+        return lats[index];
+    }
+
+    public int lonE5(int index) {
+        return lons[index];
+    }
+
+    /** Latitude of a point in degrees */
+    public double lat(int index) {
+        return lats[index] / SCALE;
+    }
+
+    /** Longitude of a point in degrees */
+    public double lon(int index) {
+        return lons[index] / SCALE;
+    }
+
+    /** Copy of this store, trimmed to its size */
+    public PointStore copy() {
+        PointStore out = new PointStore(size);
+        System.arraycopy(lats, 0, out.lats, 0, size);
+        System.arraycopy(lons, 0, out.lons, 0, size);
+        out.size = size;
+        return out;
+    }
+}
@@ -0,0 +1,340 @@
+package com.terra.FogOfEarth;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>Encoded polyline format used to store and share fog points.</p>
+ * <p>Lat/lon are scaled by 1e5 and written as zig-zag deltas in base-64 characters offset by 63,
+ * the same precision {@link PointStore} keeps.</p>
+ * <p>Besides Strings, points can be encoded from and decoded into int[] lat/lon arrays, char[]s
+ * and ByteBuffers (one ASCII byte per character). None of these allocate per point; an
+ * {@link Encoder} keeps its buffer between calls so repeated encodes only allocate the result.</p>
+ */
+final class PolylineCodec {
+
+    // Most characters one point can take: two deltas of up to 33 zig-zag bits, 5 bits a character
+    static final int MAX_CHARS_PER_POINT = 14;
+
+    private PolylineCodec() {}
+
+    /**
+     * Encodes points[from, to) as one polyline
+     */
+    static String encode(PointStore points, int from, int to) {
+        char[] out = new char[encodedLength(points, from, to)];
+        encode(points, from, to, out, 0);
+        return new String(out);
+    }
+
+    /**
+     * Number of characters {@link #encode} writes for points[from, to)
+     */
+    static int encodedLength(PointStore points, int from, int to) {
+        int length = 0;
+        long lastLat = 0;
+        long lastLon = 0;
+        for (int i = from; i < to; i++) {
+            long lat = points.latE5(i);
+            long lon = points.lonE5(i);
+            length += deltaLength(lat - lastLat) + deltaLength(lon - lastLon);
+            lastLat = lat;
+            lastLon = lon;
+        }
+        return length;
+    }
+
+    /** Characters one encoded delta takes */
+    static int deltaLength(long value) {
+        long s = value << 1;
+        if (value < 0) s = ~s;
+        int length = 1;
+        while (s >= 0x20) {
+            length++;
+            s >>= 5;
+        }
+        return length;
+    }
+
+    /**
+     * Encodes points[from, to) into a char array
+     * @param out Array to write into, with room for {@link #encodedLength} characters from offset
+     * @param offset Where to start writing
+     * @return Offset just past the last character written
+     */
+    static int encode(PointStore points, int from, int to, char[] out, int offset) {
+        long lastLat = 0;
+        long lastLon = 0;
+        for (int i = from; i < to; i++) {
+            long lat = points.latE5(i);
+            long lon = points.lonE5(i);
+            offset = encodeSigned(lat - lastLat, out, offset);
+            offset = encodeSigned(lon - lastLon, out, offset);
+            lastLat = lat;
+            lastLon = lon;
+        }
+        return offset;
+    }
+
+    /**
+     * Encodes points[from, to) of fixed-point lat/lon arrays into a char array
+     * @param latsE5 Latitudes in 1e-5 degrees
+     * @param lonsE5 Longitudes in 1e-5 degrees
+     * @param out Array to write into, with room for {@link #MAX_CHARS_PER_POINT} per point
+     * @param offset Where to start writing
+     * @return Offset just past the last character written
+     */
+    static int encode(int[] latsE5, int[] lonsE5, int from, int to, char[] out, int offset) {
+        long lastLat = 0;
+        long lastLon = 0;
+        for (int i = from; i < to; i++) {
+            long lat = latsE5[i];
+            long lon = lonsE5[i];
+            offset = encodeSigned(lat - lastLat, out, offset);
+            offset = encodeSigned(lon - lastLon, out, offset);
+            lastLat = lat;
+            lastLon = lon;
+        }
+        return offset;
+    }
+
+    /**
+     * Encodes points[from, to) of fixed-point lat/lon arrays as ASCII bytes at the buffer's position
+     * @param latsE5 Latitudes in 1e-5 degrees
+     * @param lonsE5 Longitudes in 1e-5 degrees
+     * @param out Buffer to write into; its position is advanced
+     * @throws java.nio.BufferOverflowException if the buffer runs out of room
+     */
+    static void encode(int[] latsE5, int[] lonsE5, int from, int to, ByteBuffer out) {
+        long lastLat = 0;
+        long lastLon = 0;
+        for (int i = from; i < to; i++) {
+            long lat = latsE5[i];
+            long lon = lonsE5[i];
+            encodeSigned(lat - lastLat, out);
+            encodeSigned(lon - lastLon, out);
+            lastLat = lat;
+            lastLon = lon;
+        }
+    }
+
+    /**
+     * Decodes a polyline and appends its points to a store. On a malformed string nothing is
+     * appended and the exception is rethrown.
+     */
+    static void decode(String encoded, PointStore out) {
+        int start = out.size();
+        int length = encoded.length();
+        int index = 0;
+        long lat = 0;
+        long lon = 0;
+
+        try {
+            while (index < length) {
+                // Latitude delta; a value cut short at the very end still counts
+                long result = 0;
+                int shift = 0;
+                int b;
+                do {
+                    b = encoded.charAt(index++) - 63;
+                    result |= (long) (b & 0x1f) << shift;
+                    shift += 5;
+                } while (b >= 0x20 && index < length);
+                long dLat = unzigzag(result);
+
+                // Longitude delta; a latitude with no longitude is malformed
+                result = 0;
+                shift = 0;
+                do {
+                    b = encoded.charAt(index++) - 63;
+                    result |= (long) (b & 0x1f) << shift;
+                    shift += 5;
+                } while (b >= 0x20 && index < length);
+
+                lat += dLat;
+                lon += unzigzag(result);
+                out.addE5((int) lat, (int) lon);
+            }
+        } catch (RuntimeException e) {
+            out.truncate(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Decodes a polyline of ASCII bytes from the buffer's position to its limit into fixed-point
+     * lat/lon arrays. Reads like {@link #decode(String, PointStore)}.
+     * @param in Buffer to read; its position is moved to the limit
+     * @param latsE5 Latitudes are written here, in 1e-5 degrees
+     * @param lonsE5 Longitudes are written here, in 1e-5 degrees
+     * @param offset Index of the first point to write; the arrays need room for remaining / 2
+     * @return Number of points decoded
+     * @throws IllegalArgumentException if the polyline is malformed (the position is left alone)
+     */
+    static int decode(ByteBuffer in, int[] latsE5, int[] lonsE5, int offset) {
+        int index = in.position();
+        int limit = in.limit();
+        int count = 0;
+        long lat = 0;
+        long lon = 0;
+
+        while (index < limit) {
+            long result = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = (in.get(index++) & 0xff) - 63;
+                result |= (long) (b & 0x1f) << shift;
+                shift += 5;
+            } while (b >= 0x20 && index < limit);
+            long dLat = unzigzag(result);
+
+            if (index >= limit) throw new IllegalArgumentException("Polyline ends without a longitude");
+            result = 0;
+            shift = 0;
+            do {
+                b = (in.get(index++) & 0xff) - 63;
+                result |= (long) (b & 0x1f) << shift;
+                shift += 5;
+            } while (b >= 0x20 && index < limit);
+
+            lat += dLat;
+            lon += unzigzag(result);
+            latsE5[offset + count] = (int) lat;
+            lonsE5[offset + count] = (int) lon;
+            count++;
+        }
+
+        in.position(limit);
+        return count;
+    }
+
+    /**
+     * <p>Encodes polylines into a buffer it keeps between calls.</p>
+     * <p>Encoding many segments (e.g. one per QR code) only allocates each result String, and
+     * {@link #length} lets a caller measure a segment without making a String at all.</p>
+     */
+    static final class Encoder {
+        private char[] buf = new char[256];
+        private int length = 0;
+
+        /**
+         * Encodes points[from, to) into the buffer, replacing what was there
+         * @return This encoder
+         */
+        Encoder encode(PointStore points, int from, int to) {
+            ensureCapacity(encodedLength(points, from, to));
+            length = PolylineCodec.encode(points, from, to, buf, 0);
+            return this;
+        }
+
+        /** Number of characters last encoded */
+        int length() {
+            return length;
+        }
+
+        /** The last encoded polyline as a String */
+        @Override
+        public String toString() {
+            return new String(buf, 0, length);
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (buf.length < capacity) buf = new char[Math.max(capacity, buf.length * 2)];
+        }
+    }
+
+    /**
+     * <p>Decodes a polyline fed one character at a time, e.g. straight from a file being parsed,
+     * so the encoded string is never held in memory.</p>
+     * <p>Accepts exactly what {@link #decode} does. If the polyline turns out to be malformed,
+     * {@link #finish} removes the points it appended and returns false.</p>
+     */
+    static final class Decoder {
+        private final PointStore out;
+        private final int start;
+        private long result = 0;
+        private int shift = 0;
+        private boolean haveLat = false;
+        private long dLat = 0;
+        private long lat = 0;
+        private long lon = 0;
+        private boolean empty = true;
+
+        /** @param out Store the points are appended to */
+        Decoder(PointStore out) {
+            this.out = out;
+            this.start = out.size();
+        }
+
+        /** Feed the next character of the polyline */
+        void feed(char c) {
+            empty = false;
+            int b = c - 63;
+            result |= (long) (b & 0x1f) << shift;
+            shift += 5;
+            if (b < 0x20) endValue();
+        }
+
+        /** True until the first character is fed */
+        boolean isEmpty() {
+            return empty;
+        }
+
+        /**
+         * End of the polyline
+         * @return true if it decoded cleanly, false if it was malformed (nothing is appended)
+         */
+        boolean finish() {
+            // Like decode, a value cut short at the very end still counts
+            if (shift > 0) endValue();
+            if (haveLat) {
+                out.truncate(start);
+                return false;
+            }
+            return true;
+        }
+
+        private void endValue() {
+            long delta = unzigzag(result);
+            result = 0;
+            shift = 0;
+            if (!haveLat) {
+                dLat = delta;
+                haveLat = true;
+                return;
+            }
+            lat += dLat;
+            lon += delta;
+            haveLat = false;
+            out.addE5((int) lat, (int) lon);
+        }
+    }
+
+    // -- Method Helpers --
+
+    private static int encodeSigned(long value, char[] out, int offset) {
+        long s = value << 1;
+        if (value < 0) s = ~s;
+        while (s >= 0x20) {
+            out[offset++] = (char) ((0x20 | (s & 0x1f)) + 63);
+            s >>= 5;
+        }
+        out[offset++] = (char) (s + 63);
+        return offset;
+    }
+
+    private static void encodeSigned(long value, ByteBuffer out) {
+        long s = value << 1;
+        if (value < 0) s = ~s;
+        while (s >= 0x20) {
+            out.put((byte) ((0x20 | (s & 0x1f)) + 63));
+            s >>= 5;
+        }
+        out.put((byte) (s + 63));
+    }
+
+    /** Signed delta of a zig-zag value, cut to 32 bits as the format always has */
+    private static long unzigzag(long result) {
+        return (int) (((result & 1) != 0) ? ~(result >> 1) : (result >> 1));
+    }
+}
@@ -0,0 +1,147 @@
+package com.terra.FogOfEarth;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.util.LruCache;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.EncodeHintType;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeWriter;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * <p>Builds and renders the QR codes for sharing fog progress on a background thread, and keeps
+ * the rendered parts.</p>
+ * <p>Parts are {@link Fog4Codec FOG4} payloads, whose binary bodies go into byte-mode QR codes as
+ * ISO-8859-1.</p>
+ * <p>The transfer id is derived from the points being shared ({@link QrSegmenter#transferId}),
+ * so opening the settings screen again with unchanged progress finds its parts already rendered.
+ * Each part's pixels are built in one int[] and copied into the bitmap with a single setPixels
+ * call.</p>
+ */
+final class QrPartCache {
+
+    private static final String TAG = "QrPartCache";
+
+    /** Gets the rendered parts of a transfer */
+    interface Callback {
+        /**
+         * @param transferId Id in the payloads
+         * @param parts One bitmap per QR code; an entry is null if that part failed to render
+         */
+        void onReady(String transferId, Bitmap[] parts);
+    }
+
+    // Upper bound on memory held by rendered parts; a transfer is kept or dropped as a whole
+    private static final int MAX_BYTES =
+            (int) Math.min(Runtime.getRuntime().maxMemory() / 8, 32L * 1024 * 1024);
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, TAG);
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Made on first use (only touched on the executor and in clear)
+    private static LruCache<String, Bitmap[]> cache;
+
+    private QrPartCache() {}
+
+    /**
+     * Get the rendered QR parts for the primary layer, rendering them first if they aren't cached
+     * @param model Layers to share
+     * @param maxBodyBytes Most compressed bytes per part
+     * @param sizePx Width and height of each part
+     * @param resultExecutor Where the callback runs (e.g. the activity's runOnUiThread)
+     * @param callback Gets the parts
+     */
+    static void load(FogModel model, int maxBodyBytes, int sizePx, Executor resultExecutor, Callback callback) {
+        executor.execute(() -> {
+            PointStore points = model.getPrimaryPointsCopy();
+            String transferId = QrSegmenter.transferId(points);
+            String key = transferId + "@" + maxBodyBytes + "@" + sizePx;
+
+            Bitmap[] parts = cache().get(key);
+            if (parts == null) {
+                String[] payloads = Fog4Codec.payloads(points, FogModel.RADIUS_METERS, maxBodyBytes, transferId);
+                parts = new Bitmap[payloads.length];
+                for (int i = 0; i < payloads.length; i++) parts[i] = render(payloads[i], sizePx);
+                cache().put(key, parts);
+            }
+
+            Bitmap[] result = parts;
+            resultExecutor.execute(() -> callback.onReady(transferId, result));
+        });
+    }
+
+    /** Drop every rendered part (e.g. after the fog data is cleared) */
+    static void clear() {
+        executor.execute(() -> cache().evictAll());
+    }
+
+    /**
+     * Pixels of a QR matrix, row by row, ready for {@link Bitmap#setPixels}
+     * @param matrix Rendered QR code
+     * @return width * height ARGB colours
+     */
+    static int[] toPixels(BitMatrix matrix) {
+        int width = matrix.getWidth();
+        int height = matrix.getHeight();
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                pixels[row + x] = matrix.get(x, y) ? Color.BLACK : Color.WHITE;
+            }
+        }
+        return pixels;
+    }
+
+    // -- Method Helpers --
+
+    /** One part as a bitmap, or null if it can't be made into a QR code */
+    private static Bitmap render(String content, int sizePx) {
+        Map<EncodeHintType, Object> hints = new EnumMap<>(EncodeHintType.class);
+        hints.put(EncodeHintType.ERROR_CORRECTION, ErrorCorrectionLevel.L); // max capacity
+        // One byte per char, so the binary body comes back out of the scanner unchanged
+        hints.put(EncodeHintType.CHARACTER_SET, StandardCharsets.ISO_8859_1.name());
+        // Reduce quiet zone a bit (default is 4). Lower = more dense, sometimes harder to scan.
+        hints.put(EncodeHintType.MARGIN, 2);
+
+        try {
+            BitMatrix bitMatrix = new QRCodeWriter().encode(content, BarcodeFormat.QR_CODE, sizePx, sizePx, hints);
+            int width = bitMatrix.getWidth();
+            int height = bitMatrix.getHeight();
+
+            Bitmap bmp = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+            bmp.setPixels(toPixels(bitMatrix), 0, width, 0, 0, width, height);
+            return bmp;
+        } catch (IllegalArgumentException | WriterException e) {
+            // Too much data for one QR code, or the writer failed
+            return null;
+        }
+    }
+
+    private static LruCache<String, Bitmap[]> cache() {
+        if (cache == null) {
+            cache = new LruCache<String, Bitmap[]>(MAX_BYTES) {
+                @Override
+                protected int sizeOf(String key, Bitmap[] value) {
+                    int bytes = 0;
+                    for (Bitmap bmp : value) if (bmp != null) bytes += bmp.getByteCount();
+                    return Math.max(1, bytes);
+                }
+            };
+        }
+        return cache;
+    }
+}
@@ -0,0 +1,81 @@
+package com.terra.FogOfEarth;
+
+/**
+ * <p>Splits fog points into self-contained encoded polyline segments, one per QR code.</p>
+ * <p>Each segment starts from absolute coordinates so it can be decoded (and applied) on its own,
+ * and is kept within a character limit unless it is a single point. The encoded length of a
+ * segment is tracked as points are added, since each point only adds its own two deltas, so one
+ * pass over the points decides every segment and a second encodes them.</p>
+ */
+final class QrSegmenter {
+
+    /** Called with each segment's point range, in order */
+    interface Visitor {
+        void segment(int from, int to);
+    }
+
+    // Payload format: FOG3|transferId|part/total|encodedSegment. Only read now, from older versions
+    static final String FORMAT = "FOG3";
+    static final String EMPTY_PAYLOAD = FORMAT + "|EMPTY|1/1|";
+
+    private QrSegmenter() {}
+
+    /**
+     * Visit the segments of points[0, size) in one pass
+     * @param points Points to split
+     * @param maxSegmentLen Most encoded characters per segment
+     * @param visitor Gets each segment's range
+     * @return Number of segments
+     */
+    static int segments(PointStore points, int maxSegmentLen, Visitor visitor) {
+        int count = 0;
+        int segStart = 0;
+        int segLen = 0;
+        for (int i = 0; i < points.size(); i++) {
+            // Relative to the previous point, or absolute if it starts the segment
+            int added = i == segStart
+                    ? PolylineCodec.encodedLength(points, i, i + 1)
+                    : pointLength(points, i);
+
+            if (segLen + added > maxSegmentLen && i > segStart) {
+                visitor.segment(segStart, i);
+                count++;
+                segStart = i;
+                segLen = PolylineCodec.encodedLength(points, i, i + 1);
+            } else {
+                segLen += added;
+            }
+        }
+
+        if (segStart < points.size()) {
+            visitor.segment(segStart, points.size());
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Transfer id for a set of points: the same points always get the same id, and different
+     * points (practically) never do
+     * @param points Points being shared
+     * @return Short base-36 id
+     */
+    static String transferId(PointStore points) {
+        // 64-bit FNV-1a over the count and every coordinate
+        long hash = 0xcbf29ce484222325L;
+        hash = (hash ^ points.size()) * 0x100000001b3L;
+        for (int i = 0; i < points.size(); i++) {
+            hash = (hash ^ points.latE5(i)) * 0x100000001b3L;
+            hash = (hash ^ points.lonE5(i)) * 0x100000001b3L;
+        }
+        return Long.toString(hash >>> 1, 36);
+    }
+
+    // -- Method Helpers --
+
+    /** Characters point i adds to a segment it doesn't start */
+    private static int pointLength(PointStore points, int i) {
+        return PolylineCodec.deltaLength(points.latE5(i) - (long) points.latE5(i - 1))
+                + PolylineCodec.deltaLength(points.lonE5(i) - (long) points.lonE5(i - 1));
+    }
+}
@@ -0,0 +1,170 @@
+package com.terra.FogOfEarth;
+
+/**
+ * <p>Picks how often to ask for location fixes from what recent fixes did.</p>
+ * <p>At the fog frontier every fix can reveal something, so GPS runs at the full rate. Once
+ * {@link #QUIET_FIXES} fixes in a row reveal nothing, the user is walking through explored fog
+ * and GPS drops to a slower rate; the first fix that reveals anything brings the full rate back.
+ * If the user also stays within {@link #STILL_RADIUS_METERS} (or reports near-zero speed) for
+ * {@link #STILL_MS}, GPS is switched off and the cheap network provider is only used to notice
+ * when they move again. Network fixes are too coarse to reveal fog with, so they only wake GPS.</p>
+ * <p>Counts fixes, time in each mode and the fixes saved against always running at the full
+ * rate, for the study logs. Not thread-safe on its own; callers use it from one thread.</p>
+ */
+final class SamplingController {
+
+    /** How to ask for fixes */
+    enum Mode {
+        /** At the frontier: full rate GPS */
+        FRONTIER(2_000, 2f, true),
+        /** Moving through revealed fog: slower GPS, with no distance filter so stopping is noticed */
+        EXPLORED(10_000, 0f, true),
+        /** Standing still in revealed fog: network provider only, to notice moving again */
+        STATIONARY(60_000, 25f, false);
+
+        final long intervalMs;
+        final float minDistanceMeters;
+        final boolean gps;
+
+        Mode(long intervalMs, float minDistanceMeters, boolean gps) {
+            this.intervalMs = intervalMs;
+            this.minDistanceMeters = minDistanceMeters;
+            this.gps = gps;
+        }
+    }
+
+    // Fixes in a row that reveal nothing before slowing down
+    static final int QUIET_FIXES = 5;
+
+    // Staying within this of where the user stopped, for this long, counts as standing still
+    static final double STILL_RADIUS_METERS = 15;
+    static final long STILL_MS = 60_000;
+
+    // Speed below this counts as standing still
+    static final float STILL_SPEED_MPS = 0.5f;
+
+    // A network fix this far from where the user stopped means they are moving again
+    static final double WAKE_METERS = 75;
+
+    private Mode mode = Mode.FRONTIER;
+    private long modeSinceMs;
+    private int quietFixes = 0;
+
+    // Where and when the user last started standing still
+    private boolean hasAnchor = false;
+    private double anchorLat;
+    private double anchorLon;
+    private long anchorTimeMs;
+
+    // Counters
+    private final long[] timeInMode = new long[Mode.values().length];
+    private final long[] fixesInMode = new long[Mode.values().length];
+    private long modeChanges = 0;
+
+    /** @param nowMs When sampling starts, at the full rate */
+    SamplingController(long nowMs) {
+        modeSinceMs = nowMs;
+    }
+
+    Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Account for a GPS fix once it has been revealed
+     * @param speedMps Speed, or NaN if unknown
+     * @param revealed Whether the fix revealed new fog
+     * @return The mode to use now; if it isn't the one in use, re-request updates with it
+     */
+    Mode onFix(long timeMs, double lat, double lon, float speedMps, boolean revealed) {
+        fixesInMode[mode.ordinal()]++;
+
+        // Moving, or drifted away from where the user stopped: start the still clock again
+        boolean moving = !Float.isNaN(speedMps) && speedMps > STILL_SPEED_MPS;
+        if (!hasAnchor || moving
+                || DistanceAccumulator.distanceMeters(anchorLat, anchorLon, lat, lon) > STILL_RADIUS_METERS) {
+            setAnchor(timeMs, lat, lon);
+        }
+
+        if (revealed) {
+            quietFixes = 0;
+            return switchTo(Mode.FRONTIER, timeMs);
+        }
+
+        quietFixes++;
+        if (quietFixes < QUIET_FIXES) return mode;
+        if (!moving && timeMs - anchorTimeMs >= STILL_MS) return switchTo(Mode.STATIONARY, timeMs);
+        return switchTo(Mode.EXPLORED, timeMs);
+    }
+
+    /**
+     * Account for a network fix while standing still
+     * @return The mode to use now; if it isn't the one in use, re-request updates with it
+     */
+    Mode onCoarseFix(long timeMs, double lat, double lon) {
+        fixesInMode[mode.ordinal()]++;
+        if (mode != Mode.STATIONARY) return mode;
+
+        if (!hasAnchor || DistanceAccumulator.distanceMeters(anchorLat, anchorLon, lat, lon) > WAKE_METERS) {
+            // GPS back on; the first fix that reveals anything brings the full rate back
+            setAnchor(timeMs, lat, lon);
+            quietFixes = 0;
+            return switchTo(Mode.EXPLORED, timeMs);
+        }
+        return mode;
+    }
+
+    /** Fixes received, in every mode */
+    long getFixes() {
+        long total = 0;
+        for (long n : fixesInMode) total += n;
+        return total;
+    }
+
+    /** Fixes received while in a mode */
+    long getFixes(Mode m) {
+        return fixesInMode[m.ordinal()];
+    }
+
+    /** Time spent in a mode, up to now */
+    long getTimeInMode(Mode m, long nowMs) {
+        long t = timeInMode[m.ordinal()];
+        if (m == mode && nowMs > modeSinceMs) t += nowMs - modeSinceMs;
+        return t;
+    }
+
+    /**
+     * Fixes not taken compared with always asking at the full rate: the fixes full rate would
+     * have given while in a slower mode, less the fixes that actually came
+     */
+    long getFixesSaved(long nowMs) {
+        long saved = 0;
+        for (Mode m : Mode.values()) {
+            if (m == Mode.FRONTIER) continue;
+            saved += getTimeInMode(m, nowMs) / Mode.FRONTIER.intervalMs - fixesInMode[m.ordinal()];
+        }
+        return Math.max(0, saved);
+    }
+
+    long getModeChanges() {
+        return modeChanges;
+    }
+
+    // -- Method Helpers --
+
+    private Mode switchTo(Mode next, long timeMs) {
+        if (next == mode) return mode;
+        if (timeMs > modeSinceMs) timeInMode[mode.ordinal()] += timeMs - modeSinceMs;
+        modeSinceMs = Math.max(modeSinceMs, timeMs);
+        mode = next;
+        modeChanges++;
+        return mode;
+    }
+
+    private void setAnchor(long timeMs, double lat, double lon) {
+        hasAnchor = true;
+        anchorLat = lat;
+        anchorLon = lon;
+        anchorTimeMs = timeMs;
+    }
+}
@@ -1,20 +1,15 @@
 package com.terra.FogOfEarth;
 
-import com.google.zxing.EncodeHintType;
-import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
-
-import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.Map;
 import android.Manifest;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
-import android.graphics.Color;
 import android.os.Bundle;
 import android.widget.ImageButton;
 import android.widget.ImageView;
 import android.widget.Toast;
 
+import java.nio.charset.StandardCharsets;
+
 import androidx.activity.EdgeToEdge;
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
@@ -25,18 +20,12 @@ import androidx.core.view.ViewCompat;
 import androidx.core.view.WindowInsetsCompat;
 
 import com.google.android.material.button.MaterialButton;
-import com.google.zxing.BarcodeFormat;
-import com.google.zxing.WriterException;
-import com.google.zxing.common.BitMatrix;
-import com.google.zxing.qrcode.QRCodeWriter;
+import com.google.zxing.client.android.Intents;
 import com.journeyapps.barcodescanner.ScanContract;
 import com.journeyapps.barcodescanner.ScanOptions;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
-import java.util.ArrayList;
-import java.util.List;
-import org.osmdroid.util.GeoPoint;
 
 public class SettingsActivity extends AppCompatActivity {
 
@@ -63,10 +52,13 @@ public class SettingsActivity extends AppCompatActivity {
                 }
             });
 
-    // Multipart QR state (FOG2)
-    private String[] qrParts = null;
+    // Multipart QR state (FOG4), rendered in the background by QrPartCache
+    private Bitmap[] qrParts = null;
     private int qrPartIndex = 0;
 
+    // Bumped to ignore QR parts still being rendered for data that has since been cleared
+    private int qrRequest = 0;
+
     // Import multipart collector (in-memory for this session)
     private String importTransferId = null;
     private String[] importParts = null;
@@ -103,69 +95,45 @@ public class SettingsActivity extends AppCompatActivity {
         ImageButton returnButton = findViewById(R.id.returnButton);
         returnButton.setOnClickListener(v -> finish());
 
-        // Generate QR from saved PRIMARY layer points
-        FogOverlay tmp = new FogOverlay(100.0f, 255, 170, 4.5);
-        tmp.loadAll(this);
-
-        // QR image size in pixels
-        int qrSize = 900;
-
-        // Build QR payload(s) - NEW: self-contained segments (FOG3)
-        final int MAX_SEG_LEN = 800; // keep it smaller = scans easier
-        String transferId = String.valueOf(System.currentTimeMillis());
-
-        List<GeoPoint> primaryPts = tmp.getPrimaryPointsCopy();
-
-        if (primaryPts.isEmpty()) {
-            qrParts = new String[] { "FOG3|EMPTY|1/1|" };
-        } else {
-            ArrayList<String> chunks = new ArrayList<>();
-            ArrayList<GeoPoint> seg = new ArrayList<>();
-
-            for (GeoPoint p : primaryPts) {
-                seg.add(p);
-                String enc = FogOverlay.encodePolylinePublic(seg);
-
-                // If segment got too big, finalise previous segment and start a new one
-                if (enc.length() > MAX_SEG_LEN && seg.size() > 1) {
-                    GeoPoint last = seg.remove(seg.size() - 1);
-                    chunks.add(FogOverlay.encodePolylinePublic(seg));
-                    seg.clear();
-                    seg.add(last);
-                }
-            }
-
-            if (!seg.isEmpty()) chunks.add(FogOverlay.encodePolylinePublic(seg));
-
-            int total = chunks.size();
-            qrParts = new String[total];
-            for (int i = 0; i < total; i++) {
-                qrParts[i] = "FOG3|" + transferId + "|" + (i + 1) + "/" + total + "|" + chunks.get(i);
-            }
-        }
-
+        // Generate QR from saved PRIMARY layer points, and again if they were still loading
+        FogModel fogModel = FogModel.get(this);
         ImageView qrView = findViewById(R.id.imgQr);
-        renderQrPart(qrView, qrParts[0], qrSize);
+        loadQr(fogModel, qrView);
+        fogModel.reloadChanges(() -> runOnUiThread(() -> {
+            if (!isDestroyed()) loadQr(fogModel, qrView);
+        }));
 
         // Tap QR to cycle parts if multiple
         qrView.setOnClickListener(v -> {
             if (qrParts == null || qrParts.length <= 1) return;
             qrPartIndex = (qrPartIndex + 1) % qrParts.length;
-            renderQrPart(qrView, qrParts[qrPartIndex], qrSize);
+            showQrPart(qrView);
             Toast.makeText(this,
                     "QR part " + (qrPartIndex + 1) + " / " + qrParts.length,
                     Toast.LENGTH_SHORT).show();
         });
 
+        // Export is streamed to the chosen app in the background; show how far it has got
         MaterialButton exportButton = findViewById(R.id.exportLogsButton);
+        CharSequence exportLabel = exportButton.getText();
+        StudyExport.setProgressListener(new StudyExport.Progress() {
+            @Override
+            public void onProgress(long doneBytes, long totalBytes) {
+                int percent = totalBytes > 0 ? (int) (doneBytes * 100 / totalBytes) : 100;
+                runOnUiThread(() -> exportButton.setText("Exporting… " + percent + "%"));
+            }
+
+            @Override
+            public void onFinished(boolean ok) {
+                runOnUiThread(() -> {
+                    exportButton.setText(exportLabel);
+                    if (!ok) Toast.makeText(SettingsActivity.this, "Export failed.", Toast.LENGTH_LONG).show();
+                });
+            }
+        });
         exportButton.setOnClickListener(v -> {
             try {
-                java.io.File zip = StudyExport.exportZip(this);
-                if (zip == null || !zip.exists()) {
-                    Toast.makeText(this, "Export failed: zip not created.", Toast.LENGTH_LONG).show();
-                    return;
-                }
-                StudyExport.shareZip(this, zip);
+                StudyExport.share(this, false);
             } catch (Exception e) {
                 Toast.makeText(this, "Export failed: " + e.getClass().getSimpleName(), Toast.LENGTH_LONG).show();
                 e.printStackTrace();
@@ -177,7 +145,10 @@ public class SettingsActivity extends AppCompatActivity {
         // Button: clear cached / saved fog data
         MaterialButton clearCacheButton = findViewById(R.id.clearCacheButton);
         clearCacheButton.setOnClickListener(v -> {
-            JsonDb.clear(this);
+            FogModel.get(this).clear();
+            QrPartCache.clear();
+            qrRequest++;
+            qrParts = null;
             ((ImageView) findViewById(R.id.imgQr)).setImageResource(R.drawable.placeholder_qr);
             Toast.makeText(this, "Cache cleared.", Toast.LENGTH_SHORT).show();
         });
@@ -185,6 +156,30 @@ public class SettingsActivity extends AppCompatActivity {
 
     }
 
+    @Override
+    protected void onDestroy() {
+        StudyExport.setProgressListener(null);
+        super.onDestroy();
+    }
+
+    /**
+     * Build the QR payload(s) for the primary layer - self-contained compressed segments (FOG4) -
+     * and render them off the main thread
+     */
+    private void loadQr(FogModel fogModel, ImageView qrView) {
+        // QR image size in pixels
+        int qrSize = 900;
+
+        final int MAX_BODY_BYTES = 800; // keep it smaller = scans easier
+        int request = ++qrRequest;
+        QrPartCache.load(fogModel, MAX_BODY_BYTES, qrSize, this::runOnUiThread, (transferId, parts) -> {
+            if (isDestroyed() || request != qrRequest) return;
+            qrParts = parts;
+            qrPartIndex = 0;
+            showQrPart(qrView);
+        });
+    }
+
     /**
      * <p>Launches the QR Scanner Activity</p>
      * <p>If camera permission is not granted, requests it</p>
@@ -195,6 +190,8 @@ public class SettingsActivity extends AppCompatActivity {
         options.setBeepEnabled(true);
         options.setOrientationLocked(true);
         options.setDesiredBarcodeFormats(ScanOptions.QR_CODE);
+        // FOG4 bodies are binary, one byte per char
+        options.addExtra(Intents.Scan.CHARACTER_SET, StandardCharsets.ISO_8859_1.name());
 
         pendingScanOptions = options;
 
@@ -212,15 +209,17 @@ public class SettingsActivity extends AppCompatActivity {
      * @param jsonData scanned data
      */
     private void handleScannedMapData(String jsonData) {
-        // NEW format: FOG3|transferId|part/total|encodedSegment
-        if (jsonData != null && jsonData.startsWith("FOG3|")) {
-            if (jsonData.equals("FOG3|EMPTY|1/1|")) {
+        // FOG4|transferId|part/total|compressedBody, or the older
+        // FOG3|transferId|part/total|encodedSegment
+        boolean fog4 = jsonData != null && jsonData.startsWith(Fog4Codec.FORMAT + "|");
+        if (fog4 || (jsonData != null && jsonData.startsWith(QrSegmenter.FORMAT + "|"))) {
+            if (jsonData.equals(Fog4Codec.EMPTY_PAYLOAD) || jsonData.equals(QrSegmenter.EMPTY_PAYLOAD)) {
                 Toast.makeText(this, "That QR contains no progress.", Toast.LENGTH_LONG).show();
                 return;
             }
 
             String[] parts = jsonData.split("\\|", 4);
-            if (parts.length < 4) throw new IllegalArgumentException("Bad FOG3 payload");
+            if (parts.length < 4) throw new IllegalArgumentException("Bad " + parts[0] + " payload");
 
             String tId = parts[1];
             String frac = parts[2];
@@ -248,13 +247,22 @@ public class SettingsActivity extends AppCompatActivity {
                 return;
             }
 
-            importParts[partNum - 1] = chunk;
-
             // ✅ Append this scanned QR immediately
-            FogOverlay tmp = new FogOverlay(100.0f, 255, 170, 4.5);
-            tmp.loadAll(this);
-            int added = tmp.appendSharedFromEncodedPolyline(chunk);
-            tmp.saveAll(this);
+            FogModel fogModel = FogModel.get(this);
+            int added;
+            if (fog4) {
+                PointStore points = new PointStore();
+                if (!Fog4Codec.decode(chunk, points)) {
+                    Toast.makeText(this, "Couldn't read QR part " + partNum + ", try scanning it again.", Toast.LENGTH_LONG).show();
+                    return;
+                }
+                added = fogModel.appendShared(points);
+            } else {
+                added = fogModel.appendSharedFromEncodedPolyline(chunk);
+            }
+            fogModel.save();
+
+            importParts[partNum - 1] = chunk;
 
             int have = 0;
             for (String s : importParts) if (s != null) have++;
@@ -276,33 +284,14 @@ public class SettingsActivity extends AppCompatActivity {
         Toast.makeText(this, "Unrecognised QR format.", Toast.LENGTH_LONG).show();
     }
 
-    private void renderQrPart(ImageView view, String content, int sizePx) {
-        QRCodeWriter writer = new QRCodeWriter();
-        try {
-            Map<EncodeHintType, Object> hints = new HashMap<>();
-            hints.put(EncodeHintType.ERROR_CORRECTION, ErrorCorrectionLevel.L); // max capacity
-            hints.put(EncodeHintType.CHARACTER_SET, StandardCharsets.UTF_8.name());
-            // Optional: reduce quiet zone a bit (default is 4). Lower = more dense, sometimes harder to scan.
-            hints.put(EncodeHintType.MARGIN, 2);
-
-            BitMatrix bitMatrix = writer.encode(content, BarcodeFormat.QR_CODE, sizePx, sizePx, hints);
-
-            int width = bitMatrix.getWidth();
-            int height = bitMatrix.getHeight();
-            Bitmap bmp = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
-
-            for (int x = 0; x < width; x++) {
-                for (int y = 0; y < height; y++) {
-                    bmp.setPixel(x, y, bitMatrix.get(x, y) ? Color.BLACK : Color.WHITE);
-                }
-            }
-
-            view.setImageBitmap(bmp);
-        } catch (IllegalArgumentException e) {
-            Toast.makeText(this, "Shared data too large for a single QR.", Toast.LENGTH_LONG).show();
-        } catch (WriterException e) {
+    /** Swap in the current QR part's bitmap */
+    private void showQrPart(ImageView view) {
+        Bitmap bmp = qrParts[qrPartIndex];
+        if (bmp == null) {
             Toast.makeText(this, "Failed to generate QR.", Toast.LENGTH_LONG).show();
+            return;
         }
+        view.setImageBitmap(bmp);
     }
 
 }
@@ -0,0 +1,309 @@
+package com.terra.FogOfEarth;
+
+import java.util.Arrays;
+
+/**
+ * <p>Spatial hash over the points of a {@link PointStore}.</p>
+ * <p>Point indices are bucketed into fixed-size lat/lon cells, so asking "is there already a
+ * point near here?" only visits the few cells around the query instead of the whole history.</p>
+ */
+final class SpatialGrid {
+
+    // Same constants as osmdroid's GeoPoint.distanceToAsDouble so distances match exactly
+    private static final double DEG2RAD = 0.017453292519943295;
+    private static final double EARTH_RADIUS_M = 6378137.0;
+    private static final double EARTH_DIAMETER_M = 2 * EARTH_RADIUS_M;
+    private static final double METERS_PER_DEG_LAT = EARTH_RADIUS_M * DEG2RAD;
+
+    private final PointStore points;
+    private final double cellDeg;
+    private final int colsAroundGlobe;
+
+    // Open-addressing table keyed by packed (row, col), so lookups don't box keys
+    private long[] keys = new long[64];
+    private Cell[] cells = new Cell[64];
+    private int cellCount = 0;
+    private int size = 0;
+
+    /** Receives the points found by {@link #forEachInBounds} */
+    interface Visitor {
+        void visit(double lat, double lon);
+    }
+
+    private static final class Cell {
+        final int row;
+        final int col;
+        int[] indices = new int[4];
+        int size = 0;
+
+        Cell(int row, int col) {
+            this.row = row;
+            this.col = col;
+        }
+
+        void add(int index) {
+            if (size == indices.length) indices = Arrays.copyOf(indices, size * 2);
+            indices[size++] = index;
+        }
+    }
+
+    /**
+     * @param cellMeters Approximate cell edge length. Should be at least the typical query radius
+     * @param points Store holding the points this grid indexes
+     */
+    SpatialGrid(double cellMeters, PointStore points) {
+        this.points = points;
+        // Snap the cell size so a whole number of columns wraps around the globe
+        int cols = (int) Math.ceil(360.0 / (Math.max(1.0, cellMeters) / METERS_PER_DEG_LAT));
+        this.colsAroundGlobe = cols;
+        this.cellDeg = 360.0 / cols;
+    }
+
+    /** Number of points indexed by the grid */
+    int size() {
+        return size;
+    }
+
+    /** Remove every point from the grid (the store is left alone) */
+    void clear() {
+        keys = new long[64];
+        cells = new Cell[64];
+        cellCount = 0;
+        size = 0;
+    }
+
+    /**
+     * Index a point of the store
+     * @param index Index of the point in the store
+     */
+    void add(int index) {
+        int row = rowOf(points.lat(index));
+        int col = colOf(points.lon(index));
+        Cell cell = find(row, col);
+        if (cell == null) cell = insert(row, col);
+        cell.add(index);
+        size++;
+    }
+
+    /** Clear the grid and index every point currently in the store */
+    void rebuild() {
+        clear();
+        for (int i = 0; i < points.size(); i++) add(i);
+    }
+
+    /**
+     * Checks whether any point in the grid is strictly closer than {@code meters} to the given point.
+     * Gives exactly the same answer as comparing against every point with
+     * {@link org.osmdroid.util.GeoPoint#distanceToAsDouble}.
+     * @param lat Latitude in degrees
+     * @param lon Longitude in degrees
+     * @param meters Distance threshold
+     * @return true if a point lies within the threshold
+     */
+    boolean containsWithin(double lat, double lon, double meters) {
+        if (size == 0) return false;
+
+        // Haversine bounds: |dLat| < d/R, and sin(dLon/2) < sin(d/2R) / sqrt(cos(lat1) * cos(lat2))
+        double angular = meters / EARTH_RADIUS_M;
+        double dLatDeg = angular / DEG2RAD;
+        double dLonDeg = 360.0;
+
+        double maxAbsLat = Math.min(90.0, Math.abs(lat) + dLatDeg);
+        double cosProduct = Math.cos(lat * DEG2RAD) * Math.cos(maxAbsLat * DEG2RAD);
+        if (cosProduct > 0 && angular < Math.PI) {
+            double ratio = Math.sin(angular / 2) / Math.sqrt(cosProduct);
+            if (ratio < 1.0) dLonDeg = 2 * Math.asin(ratio) / DEG2RAD;
+        }
+
+        // Small slack so floating point rounding never drops a boundary cell
+        dLatDeg = dLatDeg * (1 + 1e-9) + 1e-12;
+        dLonDeg = dLonDeg * (1 + 1e-9) + 1e-12;
+
+        int row0 = rowOf(lat - dLatDeg);
+        int row1 = rowOf(lat + dLatDeg);
+        int col0 = 0;
+        int colSpan = colsAroundGlobe;
+        if (dLonDeg < 180.0) {
+            col0 = (int) Math.floor((lon - dLonDeg + 180.0) / cellDeg);
+            colSpan = colSpan(col0, lon + dLonDeg);
+        }
+
+        if (shouldScanAllCells(row0, row1, colSpan)) {
+            for (Cell cell : cells) {
+                if (cell == null || !cellInRange(cell, row0, row1, col0, colSpan)) continue;
+                if (cellContainsWithin(cell, lat, lon, meters)) return true;
+            }
+            return false;
+        }
+
+        for (int row = row0; row <= row1; row++) {
+            for (int i = 0; i < colSpan; i++) {
+                Cell cell = find(row, wrapCol(col0 + i));
+                if (cell != null && cellContainsWithin(cell, lat, lon, meters)) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Visits every point inside a lat/lon box. Handles boxes that cross the antimeridian
+     * (west &gt; east).
+     * @param south Southern edge in degrees
+     * @param north Northern edge in degrees
+     * @param west Western edge in degrees
+     * @param east Eastern edge in degrees
+     * @param visitor Called once per point inside the box
+     */
+    void forEachInBounds(double south, double north, double west, double east, Visitor visitor) {
+        if (size == 0 || north < south) return;
+
+        double lonSpan = east - west;
+        if (lonSpan < 0) lonSpan += 360.0;  // crosses the antimeridian
+        if (lonSpan > 360.0) lonSpan = 360.0;
+
+        int row0 = rowOf(south);
+        int row1 = rowOf(north);
+        int col0 = 0;
+        int colSpan = colsAroundGlobe;
+        if (lonSpan < 360.0) {
+            col0 = (int) Math.floor((west + 180.0) / cellDeg);
+            colSpan = colSpan(col0, west + lonSpan);
+        }
+
+        if (shouldScanAllCells(row0, row1, colSpan)) {
+            for (Cell cell : cells) {
+                if (cell == null || !cellInRange(cell, row0, row1, col0, colSpan)) continue;
+                visitCell(cell, south, north, west, lonSpan, visitor);
+            }
+            return;
+        }
+
+        for (int row = row0; row <= row1; row++) {
+            for (int i = 0; i < colSpan; i++) {
+                Cell cell = find(row, wrapCol(col0 + i));
+                if (cell != null) visitCell(cell, south, north, west, lonSpan, visitor);
+            }
+        }
+    }
+
+    /**
+     * Great-circle distance, computed exactly as osmdroid's
+     * {@link org.osmdroid.util.GeoPoint#distanceToAsDouble} does
+     * @return Distance in meters
+     */
+    static double distanceMeters(double lat1Deg, double lon1Deg, double lat2Deg, double lon2Deg) {
+        final double lat1 = DEG2RAD * lat1Deg;
+        final double lat2 = DEG2RAD * lat2Deg;
+        final double lon1 = DEG2RAD * lon1Deg;
+        final double lon2 = DEG2RAD * lon2Deg;
+        return EARTH_DIAMETER_M * Math.asin(Math.min(1, Math.sqrt(
+                Math.pow(Math.sin((lat2 - lat1) / 2), 2)
+                        + Math.cos(lat1) * Math.cos(lat2)
+                        * Math.pow(Math.sin((lon2 - lon1) / 2), 2)
+        )));
+    }
+
+    // -- Method Helpers --
+
+    private boolean cellContainsWithin(Cell cell, double lat, double lon, double meters) {
+        for (int i = 0; i < cell.size; i++) {
+            int p = cell.indices[i];
+            if (distanceMeters(points.lat(p), points.lon(p), lat, lon) < meters) return true;
+        }
+        return false;
+    }
+
+    private void visitCell(Cell cell, double south, double north, double west, double lonSpan, Visitor visitor) {
+        for (int i = 0; i < cell.size; i++) {
+            int p = cell.indices[i];
+            double lat = points.lat(p);
+            if (lat < south || lat > north) continue;
+            double lon = points.lon(p);
+            if (lonSpan < 360.0) {
+                double offset = lon - west;
+                if (offset < 0) offset += 360.0;
+                if (offset > lonSpan) continue;
+            }
+            visitor.visit(lat, lon);
+        }
+    }
+
+    // Probing every cell in range only pays off while the range is smaller than the table
+    private boolean shouldScanAllCells(int row0, int row1, int colSpan) {
+        return (long) (row1 - row0 + 1) * colSpan > cellCount;
+    }
+
+    private boolean cellInRange(Cell cell, int row0, int row1, int col0, int colSpan) {
+        if (cell.row < row0 || cell.row > row1) return false;
+        return colSpan >= colsAroundGlobe || wrapCol(cell.col - col0) < colSpan;
+    }
+
+    private int colSpan(int col0, double eastLon) {
+        int col1 = (int) Math.floor((eastLon + 180.0) / cellDeg);
+        return Math.min(colsAroundGlobe, col1 - col0 + 1);
+    }
+
+    private int rowOf(double lat) {
+        return (int) Math.floor(lat / cellDeg);
+    }
+
+    private int colOf(double lon) {
+        return wrapCol((int) Math.floor((lon + 180.0) / cellDeg));
+    }
+
+    private int wrapCol(int col) {
+        int c = col % colsAroundGlobe;
+        return c < 0 ? c + colsAroundGlobe : c;
+    }
+
+    private static long pack(int row, int col) {
+        return ((long) row << 32) | (col & 0xffffffffL);
+    }
+
+    private static int slotOf(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private Cell find(int row, int col) {
+        long key = pack(row, col);
+        int mask = cells.length - 1;
+        for (int i = slotOf(key, mask); ; i = (i + 1) & mask) {
+            Cell cell = cells[i];
+            if (cell == null) return null;
+            if (keys[i] == key) return cell;
+        }
+    }
+
+    private Cell insert(int row, int col) {
+        // Keep load factor under 1/2
+        if ((cellCount + 1) * 2 > cells.length) rehash(cells.length * 2);
+
+        long key = pack(row, col);
+        int mask = cells.length - 1;
+        int i = slotOf(key, mask);
+        while (cells[i] != null) i = (i + 1) & mask;
+
+        Cell cell = new Cell(row, col);
+        keys[i] = key;
+        cells[i] = cell;
+        cellCount++;
+        return cell;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Cell[] oldCells = cells;
+        keys = new long[capacity];
+        cells = new Cell[capacity];
+        int mask = capacity - 1;
+
+        for (int j = 0; j < oldCells.length; j++) {
+            if (oldCells[j] == null) continue;
+            int i = slotOf(oldKeys[j], mask);
+            while (cells[i] != null) i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            cells[i] = oldCells[j];
+        }
+    }
+}
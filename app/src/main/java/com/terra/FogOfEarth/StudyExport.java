@@ -1,65 +1,208 @@
 package com.terra.FogOfEarth;
 
+import android.content.ClipData;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 
-import androidx.core.content.FileProvider;
-
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
+/**
+ * <p>Exports the study logs as one zip: every sessions log segment, each session's trajectory
+ * (decoded to CSV, or NDJSON), and the fog snapshot with its point log.</p>
+ * <p>The zip is never written to disk. {@link #share} hands out a {@link StudyExportProvider}
+ * URI, and the provider streams the zip straight into the receiving app through a pipe, on a
+ * background thread, while {@link Progress} reports how far it has got.</p>
+ */
 public final class StudyExport {
 
+    /** Told how an export is going; called on the export thread */
+    public interface Progress {
+        /**
+         * @param doneBytes Bytes of the source files written so far
+         * @param totalBytes Bytes of all the source files
+         */
+        void onProgress(long doneBytes, long totalBytes);
+
+        /** @param ok false if the export failed or the receiver stopped reading */
+        void onFinished(boolean ok);
+    }
+
+    // Longest an export waits for buffered study events to be written
+    private static final long FLUSH_TIMEOUT_MS = 2000;
+
+    // Report progress at most once per this many bytes, and at the end of each file
+    private static final long PROGRESS_STEP_BYTES = 64 * 1024;
+
+    // Exports used to be staged as files; delete any left from older versions
+    private static final String OLD_EXPORT_PREFIX = "study_export_";
+
+    private static volatile Progress progress = null;
+
     private StudyExport() {}
 
-    public static File exportZip(Context ctx) {
-        File sessions = StudyLogger.getSessionsFile(ctx);
-        File out = new File(ctx.getFilesDir(), "study_export_" + System.currentTimeMillis() + ".zip");
+    /**
+     * Listens to exports; only one listener at a time
+     * @param listener Gets progress, or null to stop listening
+     */
+    public static void setProgressListener(Progress listener) {
+        progress = listener;
+    }
+
+    /**
+     * Opens the share sheet for a streamed export of the study logs
+     * @param trajectoriesAsNdjson true for NDJSON trajectories, false for CSV
+     */
+    public static void share(Context ctx, boolean trajectoriesAsNdjson) {
+        deleteOldExports(ctx);
+
+        Uri uri = StudyExportProvider.uriFor(ctx, System.currentTimeMillis(), trajectoriesAsNdjson);
+
+        Intent share = new Intent(Intent.ACTION_SEND);
+        share.setType(StudyExportProvider.MIME_TYPE);
+        share.putExtra(Intent.EXTRA_STREAM, uri);
+        share.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        share.setClipData(ClipData.newRawUri("study_logs", uri));
+
+        ctx.startActivity(Intent.createChooser(share, "Export study logs"));
+    }
+
+    /**
+     * Writes the export zip for the current study logs. Blocks; run it off the main thread.
+     * <p>The pipe is only closed normally once the zip is complete. On any failure it is closed
+     * with an error, so the receiver sees a failed read rather than a clean end of a truncated
+     * zip.</p>
+     * @param pipe Write end of the pipe the zip goes into; closed when done
+     * @param trajectoriesAsNdjson true for NDJSON trajectories, false for CSV
+     */
+    static void writeTo(Context ctx, ParcelFileDescriptor pipe, boolean trajectoriesAsNdjson) {
+        Progress listener = progress;
+        String error = null;
+        try {
+            // Get buffered events into the files first
+            StudyLogger.flushLogs(ctx, FLUSH_TIMEOUT_MS);
+
+            File filesDir = ctx.getFilesDir();
+            List<File> files = new ArrayList<>(StudyLogger.getSessionsFiles(ctx));
+            files.add(new File(filesDir, FogStore.FILE_NAME));
+            files.add(new File(filesDir, FogPointLog.FILE_NAME));
 
-        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(out))) {
-            addFileToZip(zos, sessions, "sessions.ndjson");
+            // Not closed itself: the pipe owns the descriptor
+            OutputStream out = new FileOutputStream(pipe.getFileDescriptor());
+            writeZip(files, StudyLogger.getTrajectoryFiles(ctx), trajectoriesAsNdjson, out, listener);
+            out.flush();
         } catch (Exception e) {
-            return null;
+            // Usually the receiver closing its end of the pipe
+            error = "Export failed: " + e;
         }
 
-        return out;
+        boolean ok = error == null;
+        try {
+            if (ok) {
+                pipe.close();
+            } else {
+                pipe.closeWithError(error);
+            }
+        } catch (IOException e) {
+            ok = false;
+        }
+        if (listener != null) listener.onFinished(ok);
     }
 
-    private static void addFileToZip(ZipOutputStream zos, File file, String entryName) throws Exception {
-        if (file == null || !file.exists()) return;
+    /**
+     * Streams files into a zip, each under its own name
+     * @param files Copied as they are; missing files are skipped
+     * @param trajectories Binary trajectory logs, decoded to CSV or NDJSON
+     * @param trajectoriesAsNdjson true for NDJSON trajectories, false for CSV
+     * @param out Where the zip goes; finished but not closed
+     * @param listener Gets progress, or null
+     */
+    static void writeZip(List<File> files, List<File> trajectories, boolean trajectoriesAsNdjson,
+                         OutputStream out, Progress listener) throws IOException {
+        long total = 0;
+        for (File f : files) total += f.length();
+        for (File f : trajectories) total += f.length();
 
-        try (FileInputStream fis = new FileInputStream(file)) {
-            ZipEntry entry = new ZipEntry(entryName);
-            zos.putNextEntry(entry);
+        long done = 0;
+        long reported = 0;
+        ZipOutputStream zos = new ZipOutputStream(out);
+        byte[] buf = new byte[8192];
 
-            byte[] buf = new byte[8192];
-            int read;
-            while ((read = fis.read(buf)) != -1) {
-                zos.write(buf, 0, read);
+        for (File file : files) {
+            if (!file.exists()) continue;
+            try (FileInputStream fis = new FileInputStream(file)) {
+                zos.putNextEntry(new ZipEntry(file.getName()));
+                int read;
+                while ((read = fis.read(buf)) != -1) {
+                    zos.write(buf, 0, read);
+                    done += read;
+                    if (listener != null && done - reported >= PROGRESS_STEP_BYTES) {
+                        listener.onProgress(done, total);
+                        reported = done;
+                    }
+                }
+                zos.closeEntry();
             }
-            zos.closeEntry();
+            if (listener != null) listener.onProgress(done, total);
+            reported = done;
+        }
+
+        // Trajectories are stored as compact binary; decode them so they open anywhere
+        for (File file : trajectories) {
+            if (!file.exists()) continue;
+            addTrajectoryToZip(zos, file, trajectoriesAsNdjson);
+            done += file.length();
+            if (listener != null) listener.onProgress(done, total);
         }
+
+        zos.finish();
+        zos.flush();
     }
 
-    public static void shareZip(Context ctx, File zip) {
-        if (zip == null || !zip.exists()) return;
+    /** Deletes zips staged in filesDir by earlier versions of the export */
+    static void deleteOldExports(Context ctx) {
+        File[] old = ctx.getFilesDir().listFiles((dir, name) ->
+                name.startsWith(OLD_EXPORT_PREFIX) && name.endsWith(".zip"));
+        if (old == null) return;
+        for (File f : old) {
+            //noinspection ResultOfMethodCallIgnored
+            f.delete();
+        }
+    }
 
-        Uri uri = FileProvider.getUriForFile(
-                ctx,
-                ctx.getPackageName() + ".fileprovider",
-                zip
-        );
+    // -- Method Helpers --
 
-        Intent share = new Intent(Intent.ACTION_SEND);
-        share.setType("application/zip");
-        share.putExtra(Intent.EXTRA_STREAM, uri);
-        share.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
-        share.setClipData(android.content.ClipData.newRawUri("study_logs", uri));
+    /**
+     * Decodes a binary trajectory log into the zip as CSV or NDJSON, under the log's name
+     * @param ndjson true for NDJSON, false for CSV
+     */
+    private static void addTrajectoryToZip(ZipOutputStream zos, File file, boolean ndjson) throws IOException {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) name = name.substring(0, dot);
+        zos.putNextEntry(new ZipEntry(name + (ndjson ? ".ndjson" : ".csv")));
 
-        ctx.startActivity(Intent.createChooser(share, "Export study logs"));
+        // Don't close the writer: that would close the zip
+        Writer w = new BufferedWriter(new OutputStreamWriter(zos, StandardCharsets.UTF_8));
+        if (ndjson) {
+            TrajectoryLog.writeNdjson(file, w);
+        } else {
+            TrajectoryLog.writeCsv(file, w);
+        }
+        w.flush();
+        zos.closeEntry();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,106 @@
+package com.terra.FogOfEarth;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * <p>Serves the study export zip as a stream, so it is built while the receiving app reads it
+ * and never takes space on disk.</p>
+ * <p>{@link #openFile} returns the read end of a pipe and starts a thread that writes the zip
+ * into the other end. The size isn't known up front, so it is reported as unknown.</p>
+ * <p>URI: content://&lt;package&gt;.studyexport/study_export_&lt;time&gt;.zip, with
+ * ?trajectories=ndjson for NDJSON trajectories.</p>
+ */
+public class StudyExportProvider extends ContentProvider {
+
+    static final String MIME_TYPE = "application/zip";
+
+    private static final String AUTHORITY_SUFFIX = ".studyexport";
+    private static final String PARAM_TRAJECTORIES = "trajectories";
+    private static final String NDJSON = "ndjson";
+
+    /**
+     * The URI of an export
+     * @param timeMs Goes in the file name the receiver sees
+     * @param trajectoriesAsNdjson true for NDJSON trajectories, false for CSV
+     */
+    static Uri uriFor(Context ctx, long timeMs, boolean trajectoriesAsNdjson) {
+        Uri.Builder b = new Uri.Builder()
+                .scheme("content")
+                .authority(ctx.getPackageName() + AUTHORITY_SUFFIX)
+                .appendPath("study_export_" + timeMs + ".zip");
+        if (trajectoriesAsNdjson) b.appendQueryParameter(PARAM_TRAJECTORIES, NDJSON);
+        return b.build();
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (!"r".equals(mode)) throw new FileNotFoundException("Export is read-only");
+
+        ParcelFileDescriptor[] pipe;
+        try {
+            // Reliable pipe, so the reader can tell a failed export (closed with an error by
+            // StudyExport.writeTo) from a finished one
+            pipe = ParcelFileDescriptor.createReliablePipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Couldn't open export pipe");
+        }
+
+        final Context ctx = getContext().getApplicationContext();
+        final boolean ndjson = NDJSON.equals(uri.getQueryParameter(PARAM_TRAJECTORIES));
+        final ParcelFileDescriptor writeEnd = pipe[1];
+        Thread writer = new Thread(() -> StudyExport.writeTo(ctx, writeEnd, ndjson), "StudyExport");
+        writer.setPriority(Thread.MIN_PRIORITY);
+        writer.start();
+
+        return pipe[0];
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        if (projection == null) projection = new String[] { OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE };
+
+        // Only the name is known; the size is unknown until the zip has been streamed
+        Object[] row = new Object[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            if (OpenableColumns.DISPLAY_NAME.equals(projection[i])) row[i] = uri.getLastPathSegment();
+        }
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        cursor.addRow(row);
+        return cursor;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return MIME_TYPE;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        return null;
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        return 0;
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        return 0;
+    }
+}
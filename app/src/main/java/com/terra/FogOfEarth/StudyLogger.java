@@ -7,9 +7,13 @@ import android.location.Location;
 import org.json.JSONObject;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 public final class StudyLogger {
 
@@ -34,7 +38,32 @@ public final class StudyLogger {
     private static final long SESSION_BREAK_MS = 5 * 60 * 1000; // 5 minutes
 
     private static final String DIR = "study_logs";
-    private static final String SESSIONS = "sessions.ndjson";
+    private static final String SESSIONS = "sessions";
+
+    // Event log: rotated at 1 MB, written in 8 KB batches or after 5 s, whichever comes first
+    private static final long LOG_SEGMENT_BYTES = 1024 * 1024;
+    private static final int LOG_BUFFER_BYTES = 8 * 1024;
+    private static final long LOG_FLUSH_MS = 5 * 1000;
+
+    private static final ScheduledExecutorService logWriter = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "StudyLogWriter");
+        t.setDaemon(true);
+        return t;
+    });
+    private static NdjsonLog sessionsLog;
+
+    // Per-session fix log (trajectory_<sessionId>.bin): a block is written every 256 fixes or 30 s
+    private static final String TRAJECTORY_PREFIX = "trajectory_";
+    private static final String TRAJECTORY_SUFFIX = ".bin";
+    private static final long TRAJECTORY_FLUSH_MS = 30 * 1000;
+    private static TrajectoryLog trajectory;
+
+    // Longest the session distance goes without being saved while fixes keep arriving
+    private static final long DISTANCE_CHECKPOINT_MS = 30 * 1000; // 30 seconds
+
+    // Current session's running distance, kept in memory and checkpointed to prefs
+    private static final DistanceAccumulator distance = new DistanceAccumulator(DISTANCE_CHECKPOINT_MS);
+    private static boolean distanceRestored = false;
 
     private StudyLogger() {}
 
@@ -42,6 +71,22 @@ public final class StudyLogger {
         return ctx.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
     }
 
+    /** The distance accumulator, restored from the last checkpoint on first use */
+    private static synchronized DistanceAccumulator distance(Context ctx) {
+        if (!distanceRestored) {
+            SharedPreferences sp = sp(ctx);
+            distance.restore(sp.getString(KEY_CUR_SESSION_ID, null) != null,
+                    new DistanceAccumulator.Checkpoint(
+                            sp.getLong(KEY_CUR_DISTANCE_MM, 0L),
+                            sp.getBoolean(KEY_LAST_LOC_HAS, false),
+                            Double.longBitsToDouble(sp.getLong(KEY_LAST_LAT, Double.doubleToLongBits(0.0))),
+                            Double.longBitsToDouble(sp.getLong(KEY_LAST_LON, Double.doubleToLongBits(0.0)))),
+                    System.currentTimeMillis());
+            distanceRestored = true;
+        }
+        return distance;
+    }
+
     public static String getParticipantId(Context ctx) {
         SharedPreferences sp = sp(ctx);
         String id = sp.getString(KEY_PID, null);
@@ -76,15 +121,85 @@ public final class StudyLogger {
         return dir;
     }
 
+    /** The sessions log file being written to */
     public static File getSessionsFile(Context ctx) {
-        return new File(getLogsDir(ctx), SESSIONS);
+        return sessionsLog(ctx).currentFile();
     }
 
-    private static void appendLine(File file, JSONObject obj) {
-        try (FileOutputStream fos = new FileOutputStream(file, true)) {
-            fos.write((obj.toString() + "\n").getBytes(StandardCharsets.UTF_8));
-            fos.flush();
-        } catch (Exception ignored) {}
+    /** Every file of the sessions log, oldest first (numbered segments, then the current file) */
+    public static List<File> getSessionsFiles(Context ctx) {
+        return sessionsLog(ctx).segments();
+    }
+
+    private static synchronized NdjsonLog sessionsLog(Context ctx) {
+        if (sessionsLog == null) {
+            sessionsLog = new NdjsonLog(getLogsDir(ctx), SESSIONS,
+                    LOG_SEGMENT_BYTES, LOG_BUFFER_BYTES, LOG_FLUSH_MS, logWriter);
+        }
+        return sessionsLog;
+    }
+
+    /** Every session's trajectory log, oldest first */
+    public static List<File> getTrajectoryFiles(Context ctx) {
+        List<File> files = new ArrayList<>();
+        File[] all = getLogsDir(ctx).listFiles();
+        if (all == null) return files;
+        for (File f : all) {
+            String name = f.getName();
+            if (name.startsWith(TRAJECTORY_PREFIX) && name.endsWith(TRAJECTORY_SUFFIX)) files.add(f);
+        }
+        Collections.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        return files;
+    }
+
+    /** The current session's trajectory log, opened on first use; null if there is no session */
+    private static synchronized TrajectoryLog trajectory(Context ctx) {
+        if (trajectory == null) {
+            String sessionId = sp(ctx).getString(KEY_CUR_SESSION_ID, null);
+            if (sessionId == null) return null;
+            trajectory = new TrajectoryLog(
+                    new File(getLogsDir(ctx), TRAJECTORY_PREFIX + sessionId + TRAJECTORY_SUFFIX),
+                    TRAJECTORY_FLUSH_MS, logWriter);
+        }
+        return trajectory;
+    }
+
+    /**
+     * Adds a fix to the current session's trajectory log. Cheap enough to call per fix.
+     * @param accuracyMeters Horizontal accuracy, or NaN if unknown
+     * @param speedMps Speed, or NaN if unknown
+     * @param revealed Whether the fix revealed new fog
+     */
+    public static void recordFix(Context ctx, long timeMs, double lat, double lon,
+                                 float accuracyMeters, float speedMps, boolean revealed) {
+        TrajectoryLog log = trajectory(ctx);
+        if (log != null) log.append(timeMs, lat, lon, accuracyMeters, speedMps, revealed);
+    }
+
+    /** Adds a fix to the current session's trajectory log. */
+    public static void recordFix(Context ctx, Location loc, boolean revealed) {
+        if (loc == null) return;
+        recordFix(ctx, loc.getTime(), loc.getLatitude(), loc.getLongitude(),
+                loc.hasAccuracy() ? loc.getAccuracy() : Float.NaN,
+                loc.hasSpeed() ? loc.getSpeed() : Float.NaN, revealed);
+    }
+
+    /**
+     * Writes one event (NDJSON line). Cheap enough to call per fix: the line is buffered and
+     * written in the background.
+     */
+    public static void logEvent(Context ctx, JSONObject event) {
+        sessionsLog(ctx).append(event.toString());
+    }
+
+    /**
+     * Writes any buffered events to disk (call on lifecycle events)
+     * @param timeoutMs Longest to wait for the write
+     */
+    public static void flushLogs(Context ctx, long timeoutMs) {
+        TrajectoryLog log = trajectory(ctx);
+        if (log != null) log.flush(timeoutMs);
+        sessionsLog(ctx).flush(timeoutMs);
     }
 
     /** Writes one session summary (NDJSON line). */
@@ -92,7 +207,33 @@ public final class StudyLogger {
         try {
             // Always attach participant id
             sessionSummary.put("participantId", getParticipantId(ctx));
-            appendLine(getSessionsFile(ctx), sessionSummary);
+            logEvent(ctx, sessionSummary);
+        } catch (Exception ignored) {}
+    }
+
+    /**
+     * Writes the adaptive sampling counters for one stretch of tracking (NDJSON line), so the
+     * fixes saved can be set against battery use.
+     * @param source "foreground" or "background"
+     */
+    public static void logSampling(Context ctx, String source, SamplingController sampling) {
+        if (sampling == null) return;
+        long now = System.currentTimeMillis();
+        try {
+            JSONObject s = new JSONObject();
+            s.put("type", "sampling");
+            s.put("source", source);
+            s.put("ts", now);
+            s.put("sessionId", sp(ctx).getString(KEY_CUR_SESSION_ID, null));
+            s.put("fixes", sampling.getFixes());
+            s.put("fixesSaved", sampling.getFixesSaved(now));
+            s.put("modeChanges", sampling.getModeChanges());
+            for (SamplingController.Mode m : SamplingController.Mode.values()) {
+                String name = m.name().charAt(0) + m.name().substring(1).toLowerCase(Locale.ROOT);
+                s.put("ms" + name, sampling.getTimeInMode(m, now));
+                s.put("fixes" + name, sampling.getFixes(m));
+            }
+            logSession(ctx, s);
         } catch (Exception ignored) {}
     }
 
@@ -120,13 +261,19 @@ public final class StudyLogger {
 
     /** Call when the app goes to background (last Activity stopped). */
     public static void onAppBackground(Context ctx) {
+        checkpointDistance(ctx);
+        // Start writing buffered events without blocking the UI thread on it
+        sessionsLog(ctx).requestFlush();
+        TrajectoryLog log = trajectory(ctx);
+        if (log != null) log.requestFlush();
         sp(ctx).edit().putLong(KEY_LAST_BG_TS, System.currentTimeMillis()).apply();
         // Do NOT end the session here; we keep counting distance while backgrounded.
     }
 
     /** Ensures a current session exists. */
-    public static void ensureSessionStarted(Context ctx, long now) {
+    public static synchronized void ensureSessionStarted(Context ctx, long now) {
         SharedPreferences sp = sp(ctx);
+        DistanceAccumulator acc = distance(ctx);
         if (sp.getString(KEY_CUR_SESSION_ID, null) != null) return;
 
         String id = UUID.randomUUID().toString();
@@ -139,53 +286,55 @@ public final class StudyLogger {
                 .putLong(KEY_CUR_DISTANCE_MM, 0L)
                 .putBoolean(KEY_LAST_LOC_HAS, false)
                 .apply();
+        acc.start(now);
     }
 
     /** Adds distance from the last stored point to this location (if a session is active). */
     public static void addDistanceSample(Context ctx, Location loc) {
         if (loc == null) return;
+        addDistanceSample(ctx, loc.getLatitude(), loc.getLongitude());
+    }
 
-        SharedPreferences sp = sp(ctx);
+    /**
+     * Adds distance from the last point to this position (if a session is active). Only updates
+     * the in-memory total; it is checkpointed every {@link #DISTANCE_CHECKPOINT_MS} and when the
+     * app goes to the background.
+     */
+    public static void addDistanceSample(Context ctx, double lat, double lon) {
         long now = System.currentTimeMillis();
-        ensureSessionStarted(ctx, now);
+        DistanceAccumulator acc = distance(ctx);
+        if (!acc.isActive()) ensureSessionStarted(ctx, now);
 
-        boolean hasLast = sp.getBoolean(KEY_LAST_LOC_HAS, false);
-        double lastLat = Double.longBitsToDouble(sp.getLong(KEY_LAST_LAT, Double.doubleToLongBits(0.0)));
-        double lastLon = Double.longBitsToDouble(sp.getLong(KEY_LAST_LON, Double.doubleToLongBits(0.0)));
+        if (acc.add(lat, lon, now)) checkpointDistance(ctx);
+    }
 
-        long distMm = sp.getLong(KEY_CUR_DISTANCE_MM, 0L);
+    /** Saves the session's running distance if it changed (call on lifecycle events) */
+    public static synchronized void checkpointDistance(Context ctx) {
+        DistanceAccumulator.Checkpoint cp = distance(ctx).takeCheckpoint(System.currentTimeMillis());
+        if (cp == null) return;
 
-        if (hasLast) {
-            float[] out = new float[1];
-            Location.distanceBetween(lastLat, lastLon, loc.getLatitude(), loc.getLongitude(), out);
-            float dM = out[0];
-            // ignore jitter; ignore absurd jumps
-            if (dM >= 0.5f && dM < 2000f) {
-                distMm += (long) Math.round(dM * 1000.0);
-            }
-        }
-
-        sp.edit()
-                .putLong(KEY_CUR_DISTANCE_MM, distMm)
-                .putBoolean(KEY_LAST_LOC_HAS, true)
-                .putLong(KEY_LAST_LAT, Double.doubleToLongBits(loc.getLatitude()))
-                .putLong(KEY_LAST_LON, Double.doubleToLongBits(loc.getLongitude()))
+        sp(ctx).edit()
+                .putLong(KEY_CUR_DISTANCE_MM, cp.distanceMm)
+                .putBoolean(KEY_LAST_LOC_HAS, cp.hasLast)
+                .putLong(KEY_LAST_LAT, Double.doubleToLongBits(cp.lastLat))
+                .putLong(KEY_LAST_LON, Double.doubleToLongBits(cp.lastLon))
                 .apply();
     }
 
     public static double getCurrentDistanceM(Context ctx) {
-        return sp(ctx).getLong(KEY_CUR_DISTANCE_MM, 0L) / 1000.0;
+        return distance(ctx).getDistanceMm() / 1000.0;
     }
 
     /** Ends the current session (writes one NDJSON line) and clears current-session state. */
-    public static void endCurrentSession(Context ctx, long endTs) {
+    public static synchronized void endCurrentSession(Context ctx, long endTs) {
         SharedPreferences sp = sp(ctx);
+        DistanceAccumulator acc = distance(ctx);
         String sessionId = sp.getString(KEY_CUR_SESSION_ID, null);
         if (sessionId == null) return;
 
         long startTs = sp.getLong(KEY_CUR_SESSION_START, 0L);
         int sessionNo = sp.getInt(KEY_CUR_SESSION_NO, 0);
-        long distMm = sp.getLong(KEY_CUR_DISTANCE_MM, 0L);
+        long distMm = acc.getDistanceMm();
 
         long durationMs = (startTs > 0L && endTs >= startTs) ? (endTs - startTs) : 0L;
 
@@ -213,5 +362,12 @@ public final class StudyLogger {
                 .remove(KEY_CUR_DISTANCE_MM)
                 .putBoolean(KEY_LAST_LOC_HAS, false)
                 .apply();
+        acc.end();
+
+        // The next session gets its own trajectory log
+        if (trajectory != null) {
+            trajectory.close();
+            trajectory = null;
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,79 @@
+package com.terra.FogOfEarth;
+
+/**
+ * <p>Projects fog circles into one slippy-map tile's pixels, for {@link FogOverlay} rendering a
+ * tile and {@link FogTileCache} erasing a new point from the cached tiles.</p>
+ * <p>Set up once per tile with {@link #setTile}, then visit the points. The pixel radius is
+ * worked out once for the tile rather than per point, and nothing is allocated per point.</p>
+ */
+final class TileCircles implements SpatialGrid.Visitor {
+
+    /** Where the projected circles go, e.g. the tile's canvas */
+    interface Target {
+        void drawCircle(float cx, float cy, float radiusPx);
+    }
+
+    private static final double METERS_PER_DEG_LAT = 111320.0;
+
+    private final Target target;
+
+    // Tile being drawn
+    private double worldSizePx;
+    private double originX;
+    private double originY;
+    private float radiusPx;
+
+    // Bounds of the points that can touch the tile: the tile padded by one radius
+    double south;
+    double north;
+    double west;
+    double east;
+
+    /**
+     * @param target Receives each circle in tile pixels
+     */
+    TileCircles(Target target) {
+        this.target = target;
+    }
+
+    /**
+     * Start drawing into a tile
+     * @param zoom Tile zoom level
+     * @param x Tile column, unwrapped so circles near the antimeridian keep continuous offsets
+     * @param y Tile row
+     * @param radiusMeters Radius of the circles
+     */
+    void setTile(int zoom, int x, int y, double radiusMeters) {
+        int size = FogTileCache.TILE_SIZE_PX;
+        worldSizePx = FogTileCache.worldSizePx(zoom);
+        originX = (double) x * size;
+        originY = (double) y * size;
+
+        double tileNorth = FogTileCache.tileLatNorth(y, zoom);
+        double tileSouth = FogTileCache.tileLatNorth(y + 1, zoom);
+
+        // The scale only changes noticeably across a tile at zooms where a circle is under a pixel
+        double midLat = (tileNorth + tileSouth) / 2;
+        radiusPx = (float) (radiusMeters / FogTileCache.metersPerPixel(midLat, worldSizePx));
+
+        double padLat = radiusMeters / METERS_PER_DEG_LAT;
+        double edgeLat = Math.min(89.0, Math.max(Math.abs(tileNorth), Math.abs(tileSouth)) + padLat);
+        double padLon = padLat / Math.cos(Math.toRadians(edgeLat));
+        south = tileSouth - padLat;
+        north = tileNorth + padLat;
+        west = FogTileCache.tileLonWest(x, zoom) - padLon;
+        east = FogTileCache.tileLonWest(x + 1, zoom) + padLon;
+    }
+
+    /** Radius of the circles in the current tile's pixels */
+    float radiusPx() {
+        return radiusPx;
+    }
+
+    @Override
+    public void visit(double lat, double lon) {
+        float cx = (float) (FogTileCache.worldX(lon, worldSizePx) - originX);
+        float cy = (float) (FogTileCache.worldY(lat, worldSizePx) - originY);
+        target.drawCircle(cx, cy, radiusPx);
+    }
+}
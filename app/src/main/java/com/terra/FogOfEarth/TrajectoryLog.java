@@ -0,0 +1,429 @@
+package com.terra.FogOfEarth;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * <p>Binary log of every fix in a study session: time, lat/lon, accuracy, speed, and whether it
+ * revealed new fog.</p>
+ * <p>Fixes are collected into blocks of up to {@link #BLOCK_FIXES}. Each block is stored column
+ * by column (all times, then all latitudes, ...) as zig-zag varint deltas from the previous fix,
+ * with the revealed flags packed 8 to a byte. Consecutive fixes differ little in every column,
+ * so a fix takes about 6 bytes.</p>
+ * <p>A block starts from zero, so it decodes on its own, and is framed by its length and a
+ * CRC32. A crash loses at most the block being collected (a block is written when full, or
+ * {@code flushIntervalMs} after its first fix) and can leave a torn last block, which
+ * {@link #read} detects and skips.</p>
+ * <p>File: "FOGT", version byte, then blocks of [varint length][payload][CRC32 of payload].</p>
+ */
+final class TrajectoryLog {
+
+    /** Gets each fix read back from a log */
+    interface Visitor {
+        /**
+         * @param accuracyMeters Horizontal accuracy, or NaN if unknown
+         * @param speedMps Speed, or NaN if unknown
+         */
+        void fix(long timeMs, double lat, double lon, float accuracyMeters, float speedMps, boolean revealed)
+                throws IOException;
+    }
+
+    static final int BLOCK_FIXES = 256;
+
+    private static final byte[] MAGIC = { 'F', 'O', 'G', 'T' };
+    private static final int VERSION = 1;
+
+    // Fixed-point scales: 1e-6 degrees (~0.1 m), decimeters, centimeters per second
+    private static final double COORD_SCALE = 1e6;
+    private static final float ACCURACY_SCALE = 10f;
+    private static final float SPEED_SCALE = 100f;
+
+    // Largest block accepted when reading, so a corrupt length can't allocate a huge buffer
+    private static final int MAX_BLOCK_BYTES = BLOCK_FIXES * 64;
+
+    private final File file;
+    private final long flushIntervalMs;
+    private final ScheduledExecutorService writer;
+
+    // Block being collected, one array per column
+    private final Object lock = new Object();
+    private final long[] times = new long[BLOCK_FIXES];
+    private final long[] lats = new long[BLOCK_FIXES];
+    private final long[] lons = new long[BLOCK_FIXES];
+    private final long[] accuracies = new long[BLOCK_FIXES];
+    private final long[] speeds = new long[BLOCK_FIXES];
+    private final boolean[] revealed = new boolean[BLOCK_FIXES];
+    private int count = 0;
+    private Future<?> timedFlush = null;
+
+    // Only touched on the writer thread
+    private FileOutputStream out = null;
+
+    /**
+     * @param file Log file; appended to if it exists
+     * @param flushIntervalMs Longest a fix waits before its block is written
+     * @param writer Single thread that does the file IO
+     */
+    TrajectoryLog(File file, long flushIntervalMs, ScheduledExecutorService writer) {
+        this.file = file;
+        this.flushIntervalMs = flushIntervalMs;
+        this.writer = writer;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Add a fix. Cheap: copies a few numbers, and encodes a block every {@link #BLOCK_FIXES} fixes.
+     * @param accuracyMeters Horizontal accuracy, or NaN if unknown
+     * @param speedMps Speed, or NaN if unknown
+     */
+    void append(long timeMs, double lat, double lon, float accuracyMeters, float speedMps, boolean revealedFog) {
+        synchronized (lock) {
+            times[count] = timeMs;
+            lats[count] = Math.round(lat * COORD_SCALE);
+            lons[count] = Math.round(lon * COORD_SCALE);
+            accuracies[count] = scaled(accuracyMeters, ACCURACY_SCALE);
+            speeds[count] = scaled(speedMps, SPEED_SCALE);
+            revealed[count] = revealedFog;
+            count++;
+
+            if (count == BLOCK_FIXES) {
+                writeBlock();
+            } else if (timedFlush == null) {
+                timedFlush = writer.schedule(this::requestFlush, flushIntervalMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /** Start writing the fixes collected so far, without waiting */
+    void requestFlush() {
+        synchronized (lock) {
+            if (count > 0) writeBlock();
+        }
+    }
+
+    /**
+     * Write the fixes collected so far and wait for them to reach the file
+     * @param timeoutMs Longest to wait
+     * @return true if they were written in time
+     */
+    boolean flush(long timeoutMs) {
+        try {
+            requestFlush();
+            writer.submit(() -> {}).get(timeoutMs, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /** Write what is collected, then close the file, without waiting; later appends reopen it */
+    void close() {
+        requestFlush();
+        writer.execute(this::closeQuietly);
+    }
+
+    /**
+     * Read every fix in a log, stopping at a torn or corrupt block
+     * @param file Log file
+     * @param visitor Gets each fix in order
+     * @return Number of fixes read
+     */
+    static int read(File file, Visitor visitor) throws IOException {
+        int[] fixes = { 0 };
+        scan(file, visitor, fixes);
+        return fixes[0];
+    }
+
+    /**
+     * Decode a log to CSV: a header, then one row per fix. Unknown accuracy or speed is empty.
+     * @return Number of fixes written
+     */
+    static int writeCsv(File file, Writer out) throws IOException {
+        out.write("timeMs,lat,lon,accuracyM,speedMps,revealed\n");
+        StringBuilder row = new StringBuilder(64);
+        return read(file, (timeMs, lat, lon, accuracy, speed, revealedFog) -> {
+            row.setLength(0);
+            row.append(timeMs).append(',');
+            appendFixed(row, Math.round(lat * COORD_SCALE), 6).append(',');
+            appendFixed(row, Math.round(lon * COORD_SCALE), 6).append(',');
+            if (!Float.isNaN(accuracy)) appendFixed(row, Math.round(accuracy * ACCURACY_SCALE), 1);
+            row.append(',');
+            if (!Float.isNaN(speed)) appendFixed(row, Math.round(speed * SPEED_SCALE), 2);
+            row.append(',').append(revealedFog ? 1 : 0).append('\n');
+            out.append(row);
+        });
+    }
+
+    /**
+     * Decode a log to NDJSON: one object per fix. Unknown accuracy or speed is null.
+     * @return Number of fixes written
+     */
+    static int writeNdjson(File file, Writer out) throws IOException {
+        StringBuilder line = new StringBuilder(128);
+        return read(file, (timeMs, lat, lon, accuracy, speed, revealedFog) -> {
+            line.setLength(0);
+            line.append("{\"timeMs\":").append(timeMs).append(",\"lat\":");
+            appendFixed(line, Math.round(lat * COORD_SCALE), 6).append(",\"lon\":");
+            appendFixed(line, Math.round(lon * COORD_SCALE), 6).append(",\"accuracyM\":");
+            if (Float.isNaN(accuracy)) line.append("null");
+            else appendFixed(line, Math.round(accuracy * ACCURACY_SCALE), 1);
+            line.append(",\"speedMps\":");
+            if (Float.isNaN(speed)) line.append("null");
+            else appendFixed(line, Math.round(speed * SPEED_SCALE), 2);
+            line.append(",\"revealed\":").append(revealedFog).append("}\n");
+            out.append(line);
+        });
+    }
+
+    // -- Method Helpers --
+
+    /**
+     * Walk the blocks of a log, checking each one's CRC
+     * @param visitor Gets each fix, or null to only check the blocks
+     * @param fixes Gets the number of fixes read
+     * @return Length of the file up to the end of the last good block, or 0 if the header is bad
+     */
+    private static long scan(File file, Visitor visitor, int[] fixes) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            for (byte b : MAGIC) {
+                if (in.read() != b) return 0;
+            }
+            if (in.read() != VERSION) return 0;
+
+            long valid = MAGIC.length + 1;
+            CRC32 crc = new CRC32();
+            while (true) {
+                long length;
+                try {
+                    length = readVarint(in);
+                } catch (EOFException e) {
+                    return valid;
+                }
+                if (length <= 0 || length > MAX_BLOCK_BYTES) return valid;
+
+                byte[] payload = new byte[(int) length + 4];
+                if (!readFully(in, payload)) return valid;
+                int n = (int) length;
+                crc.reset();
+                crc.update(payload, 0, n);
+                long stored = ((payload[n] & 0xffL) << 24) | ((payload[n + 1] & 0xffL) << 16)
+                        | ((payload[n + 2] & 0xffL) << 8) | (payload[n + 3] & 0xffL);
+                if (crc.getValue() != stored) return valid;
+
+                if (visitor != null) fixes[0] += decodeBlock(payload, n, visitor);
+                valid += varintLength(length) + n + 4;
+            }
+        } catch (IOException e) {
+            if (visitor != null) throw e;
+            return 0;
+        }
+    }
+
+    /** Cut a torn last block off, so new blocks don't land after it where they can't be read */
+    private void trimTornTail() throws IOException {
+        if (!file.exists()) return;
+        long valid = scan(file, null, new int[1]);
+        if (valid == file.length()) return;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // A bad header can't be saved; start the file again
+            raf.setLength(valid);
+        }
+    }
+
+    /** Appends a fixed-point value with the given decimals, e.g. (-4251800, 6) as -4.251800 */
+    private static StringBuilder appendFixed(StringBuilder sb, long value, int decimals) {
+        if (value < 0) {
+            sb.append('-');
+            value = -value;
+        }
+        long unit = 1;
+        for (int i = 0; i < decimals; i++) unit *= 10;
+        sb.append(value / unit).append('.');
+        String fraction = Long.toString(value % unit);
+        for (int i = fraction.length(); i < decimals; i++) sb.append('0');
+        return sb.append(fraction);
+    }
+
+    /** Encode the collected block and queue it for the writer; holds lock */
+    private void writeBlock() {
+        if (timedFlush != null) {
+            timedFlush.cancel(false);
+            timedFlush = null;
+        }
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(count * 8 + 16);
+        writeVarint(payload, count);
+        writeDeltas(payload, times, count);
+        writeDeltas(payload, lats, count);
+        writeDeltas(payload, lons, count);
+        writeDeltas(payload, accuracies, count);
+        writeDeltas(payload, speeds, count);
+        for (int i = 0; i < count; i += 8) {
+            int bits = 0;
+            for (int j = 0; j < 8 && i + j < count; j++) {
+                if (revealed[i + j]) bits |= 1 << j;
+            }
+            payload.write(bits);
+        }
+        count = 0;
+
+        byte[] body = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        long value = crc.getValue();
+
+        ByteArrayOutputStream block = new ByteArrayOutputStream(body.length + 9);
+        writeVarint(block, body.length);
+        block.write(body, 0, body.length);
+        block.write((int) (value >>> 24));
+        block.write((int) (value >>> 16));
+        block.write((int) (value >>> 8));
+        block.write((int) value);
+        byte[] bytes = block.toByteArray();
+
+        writer.execute(() -> writeToFile(bytes));
+    }
+
+    /** Runs on the writer thread */
+    private void writeToFile(byte[] block) {
+        try {
+            if (out == null) {
+                File dir = file.getParentFile();
+                if (dir != null && !dir.exists()) //noinspection ResultOfMethodCallIgnored
+                    dir.mkdirs();
+                trimTornTail();
+                boolean fresh = !file.exists() || file.length() == 0;
+                out = new FileOutputStream(file, true);
+                if (fresh) {
+                    out.write(MAGIC);
+                    out.write(VERSION);
+                }
+            }
+            out.write(block);
+            out.flush();
+        } catch (IOException e) {
+            closeQuietly();
+        }
+    }
+
+    private void closeQuietly() {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException ignored) {}
+        out = null;
+    }
+
+    private static int decodeBlock(byte[] payload, int length, Visitor visitor) throws IOException {
+        int[] pos = { 0 };
+        int n = (int) readVarint(payload, length, pos);
+        if (n <= 0 || n > BLOCK_FIXES) return 0;
+
+        long[][] columns = new long[5][n];
+        for (long[] column : columns) {
+            long last = 0;
+            for (int i = 0; i < n; i++) {
+                last += unzigzag(readVarint(payload, length, pos));
+                column[i] = last;
+            }
+        }
+        if (pos[0] + (n + 7) / 8 > length) return 0;
+
+        for (int i = 0; i < n; i++) {
+            boolean revealedFog = (payload[pos[0] + i / 8] & (1 << (i % 8))) != 0;
+            visitor.fix(columns[0][i], columns[1][i] / COORD_SCALE, columns[2][i] / COORD_SCALE,
+                    unscaled(columns[3][i], ACCURACY_SCALE), unscaled(columns[4][i], SPEED_SCALE), revealedFog);
+        }
+        return n;
+    }
+
+    private static void writeDeltas(ByteArrayOutputStream out, long[] column, int n) {
+        long last = 0;
+        for (int i = 0; i < n; i++) {
+            writeVarint(out, zigzag(column[i] - last));
+            last = column[i];
+        }
+    }
+
+    /** Non-negative fixed-point value, with 0 meaning unknown */
+    private static long scaled(float value, float scale) {
+        if (Float.isNaN(value) || value < 0) return 0;
+        return Math.round(value * scale) + 1;
+    }
+
+    private static float unscaled(long value, float scale) {
+        return value <= 0 ? Float.NaN : (value - 1) / scale;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static int varintLength(long value) {
+        int n = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    private static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Varint too long");
+    }
+
+    private static long readVarint(byte[] in, int length, int[] pos) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos[0] >= length) throw new IOException("Truncated block");
+            int b = in[pos[0]++];
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Varint too long");
+    }
+
+    private static boolean readFully(InputStream in, byte[] buf) throws IOException {
+        int off = 0;
+        while (off < buf.length) {
+            int n = in.read(buf, off, buf.length - off);
+            if (n < 0) return false;
+            off += n;
+        }
+        return true;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
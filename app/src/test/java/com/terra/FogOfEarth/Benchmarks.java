@@ -0,0 +1,19 @@
+package com.terra.FogOfEarth;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Gate for the timing and allocation benchmarks, which are too slow and too noisy for every test
+ * run. Run them with {@code ./gradlew test -Pfog.benchmarks}.
+ */
+final class Benchmarks {
+
+    static final String PROPERTY = "fog.benchmarks";
+
+    private Benchmarks() {}
+
+    /** Skips the calling test unless benchmarks were asked for */
+    static void assumeEnabled() {
+        assumeTrue("benchmarks run with -P" + PROPERTY, Boolean.getBoolean(PROPERTY));
+    }
+}
@@ -0,0 +1,289 @@
+package com.terra.FogOfEarth;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the rasterised coverage estimate with the grid-sampling estimator it replaced in
+ * {@link FogModel#estimateUncoveredPercent()}, and the explored area behind
+ * {@link FogModel#getExploredAreaKm2()} with an exact area of the union of circles.
+ *
+ * <p>Error bound: a cell counts if its centre is inside the union, so only cells crossed by the
+ * boundary can be wrong, and each is off by less than its area. That bounds the error by
+ * perimeter * cell diagonal / 2. In practice cells gained and lost along the edge cancel, and
+ * the tests also check the observed error stays under 2% for 10 m cells and 50 m circles.</p>
+ */
+public class CoverageRasterTest {
+
+    private static final double RADIUS_M = 50.0;
+    private static final double CELL_M = 10.0;
+
+    @Test
+    public void emptyIsFullyFogged() {
+        assertEquals(1.0, new CoverageRaster(CELL_M).estimateUncoveredFraction(), 0.0);
+    }
+
+    @Test
+    public void singleCircleAreaMatchesPiRSquared() {
+        CoverageRaster raster = new CoverageRaster(CELL_M);
+        raster.add(55.8642, -4.2518, RADIUS_M);
+        double exact = Math.PI * RADIUS_M * RADIUS_M;
+        assertEquals(exact, raster.getCoveredAreaM2(), exact * 0.05);
+    }
+
+    @Test
+    public void repeatedPointAddsNothing() {
+        CoverageRaster raster = new CoverageRaster(CELL_M);
+        assertTrue(raster.add(55.8642, -4.2518, RADIUS_M) > 0);
+        assertEquals(0.0, raster.add(55.8642, -4.2518, RADIUS_M), 0.0);
+    }
+
+    @Test
+    public void matchesFineSampling_randomWalk() {
+        assertMatchesReference(randomWalk(new Random(1), 55.8642, -4.2518, 3000, 15.0));
+    }
+
+    @Test
+    public void matchesFineSampling_straightCommute() {
+        List<double[]> track = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            track.add(new double[]{51.5 + i * 0.0001, -0.12 + i * 0.00015});
+        }
+        assertMatchesReference(track);
+    }
+
+    @Test
+    public void matchesFineSampling_loopsNearEquator() {
+        List<double[]> track = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            double a = i * 2 * Math.PI / 200;
+            double r = 0.003 + (i / 200) * 0.002;
+            track.add(new double[]{0.2 + r * Math.sin(a), 36.8 + r * Math.cos(a)});
+        }
+        assertMatchesReference(track);
+    }
+
+    @Test
+    public void legacyEstimatorOvercountsCoverage() {
+        // The old sampler inflated the radius by 0.8 * step, so it always reported less fog
+        List<double[]> track = randomWalk(new Random(2), 55.8642, -4.2518, 3000, 15.0);
+        CoverageRaster raster = new CoverageRaster(CELL_M);
+        for (double[] p : track) raster.add(p[0], p[1], RADIUS_M);
+
+        double legacy = legacyEstimate(track, RADIUS_M);
+        assertTrue(legacy <= raster.estimateUncoveredFraction());
+    }
+
+    @Test
+    public void exploredArea_twoOverlappingCircles() {
+        // Lens overlap of two circles d apart: 2r^2 acos(d/2r) - (d/2) sqrt(4r^2 - d^2)
+        double d = 40.0;
+        double lens = 2 * RADIUS_M * RADIUS_M * Math.acos(d / (2 * RADIUS_M))
+                - d / 2 * Math.sqrt(4 * RADIUS_M * RADIUS_M - d * d);
+        double exact = 2 * Math.PI * RADIUS_M * RADIUS_M - lens;
+
+        List<double[]> track = new ArrayList<>();
+        track.add(new double[]{55.8642, -4.2518});
+        track.add(new double[]{55.8642, -4.2518 + d / (111319.49 * Math.cos(Math.toRadians(55.8642)))});
+        assertEquals(exact, unionAreaReference(track, RADIUS_M), exact * 1e-4);
+        assertAreaWithinBound(track);
+    }
+
+    @Test
+    public void exploredArea_randomWalk() {
+        assertAreaWithinBound(randomWalk(new Random(3), 55.8642, -4.2518, 800, 20.0));
+    }
+
+    @Test
+    public void exploredArea_highLatitude() {
+        assertAreaWithinBound(randomWalk(new Random(4), 69.65, 18.96, 1000, 30.0));
+    }
+
+    @Test
+    public void exploredArea_isIncremental() {
+        CoverageRaster raster = new CoverageRaster(CELL_M);
+        double sum = 0;
+        for (double[] p : randomWalk(new Random(5), 55.8642, -4.2518, 500, 20.0)) {
+            sum += raster.add(p[0], p[1], RADIUS_M);
+        }
+        assertEquals(sum, raster.getCoveredAreaM2(), 1e-6);
+    }
+
+    // -- Helpers --
+
+    private static void assertAreaWithinBound(List<double[]> track) {
+        CoverageRaster raster = new CoverageRaster(CELL_M);
+        for (double[] p : track) raster.add(p[0], p[1], RADIUS_M);
+
+        double exact = unionAreaReference(track, RADIUS_M);
+        double error = Math.abs(raster.getCoveredAreaM2() - exact);
+        double bound = unionPerimeterReference(track, RADIUS_M) * CELL_M * Math.sqrt(2) / 2;
+
+        assertTrue("Error " + error + " above bound " + bound, error <= bound);
+        assertTrue("Error " + error + " is " + (100 * error / exact) + "% of " + exact, error <= exact * 0.02);
+    }
+
+    /**
+     * Area of the union of circles in a local tangent plane, found by sweeping horizontal lines
+     * and measuring the exact union of the chords each line cuts from the circles.
+     */
+    private static double unionAreaReference(List<double[]> track, double radiusM) {
+        double[][] xy = toLocalMeters(track);
+        double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (double[] p : xy) {
+            minY = Math.min(minY, p[1] - radiusM);
+            maxY = Math.max(maxY, p[1] + radiusM);
+        }
+
+        double dy = 0.02;
+        double area = 0;
+        double[][] chords = new double[xy.length][2];
+        for (double y = minY + dy / 2; y < maxY; y += dy) {
+            int n = 0;
+            for (double[] p : xy) {
+                double h = radiusM * radiusM - (y - p[1]) * (y - p[1]);
+                if (h <= 0) continue;
+                double w = Math.sqrt(h);
+                chords[n][0] = p[0] - w;
+                chords[n][1] = p[0] + w;
+                n++;
+            }
+            java.util.Arrays.sort(chords, 0, n, (a, b) -> Double.compare(a[0], b[0]));
+
+            double covered = 0, end = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < n; i++) {
+                double start = Math.max(chords[i][0], end);
+                if (chords[i][1] > start) {
+                    covered += chords[i][1] - start;
+                    end = chords[i][1];
+                }
+            }
+            area += covered * dy;
+        }
+        return area;
+    }
+
+    /** Perimeter of the union: the parts of each circle not inside any other circle */
+    private static double unionPerimeterReference(List<double[]> track, double radiusM) {
+        double[][] xy = toLocalMeters(track);
+        int steps = 360;
+        double perimeter = 0;
+        for (int i = 0; i < xy.length; i++) {
+            int outside = 0;
+            for (int k = 0; k < steps; k++) {
+                double a = 2 * Math.PI * k / steps;
+                double x = xy[i][0] + radiusM * Math.cos(a);
+                double y = xy[i][1] + radiusM * Math.sin(a);
+                boolean inside = false;
+                for (int j = 0; j < xy.length && !inside; j++) {
+                    if (j == i) continue;
+                    double dx = x - xy[j][0], dy = y - xy[j][1];
+                    inside = dx * dx + dy * dy < radiusM * radiusM;
+                }
+                if (!inside) outside++;
+            }
+            perimeter += 2 * Math.PI * radiusM * outside / steps;
+        }
+        return perimeter;
+    }
+
+    private static double[][] toLocalMeters(List<double[]> track) {
+        double lat0 = track.get(0)[0], lon0 = track.get(0)[1];
+        double[][] xy = new double[track.size()][];
+        for (int i = 0; i < xy.length; i++) {
+            double[] p = track.get(i);
+            xy[i] = new double[]{
+                    (p[1] - lon0) * 111319.49 * Math.cos(Math.toRadians(p[0])),
+                    (p[0] - lat0) * 111319.49};
+        }
+        return xy;
+    }
+
+    private static void assertMatchesReference(List<double[]> track) {
+        CoverageRaster raster = new CoverageRaster(CELL_M);
+        for (double[] p : track) raster.add(p[0], p[1], RADIUS_M);
+
+        double reference = sampledEstimate(track, RADIUS_M, 5.0, 0.0);
+        assertEquals(reference, raster.estimateUncoveredFraction(), 0.02);
+    }
+
+    /** The estimator as it was in FogOverlay before the raster, with its own step and slack */
+    private static double legacyEstimate(List<double[]> pts, double radiusM) {
+        double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+        double minLon = Double.POSITIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+        double latSum = 0;
+        for (double[] p : pts) {
+            minLat = Math.min(minLat, p[0]);
+            maxLat = Math.max(maxLat, p[0]);
+            minLon = Math.min(minLon, p[1]);
+            maxLon = Math.max(maxLon, p[1]);
+            latSum += p[0];
+        }
+        double latMid = latSum / pts.size();
+        double degPerMeterLat = 1.0 / 111320.0;
+        double degPerMeterLon = 1.0 / (111320.0 * Math.max(0.2, Math.cos(Math.toRadians(latMid))));
+        double widthM = (maxLon - minLon) / degPerMeterLon + 400;
+        double heightM = (maxLat - minLat) / degPerMeterLat + 400;
+
+        double stepM = Math.sqrt((widthM * heightM) / 20000);
+        stepM = Math.max(50.0, Math.min(250.0, stepM));
+        return sampledEstimate(pts, radiusM, stepM, 0.8 * stepM);
+    }
+
+    /** Grid-sampling estimator: fraction of sample points further than radius + slack from every point */
+    private static double sampledEstimate(List<double[]> pts, double radiusM, double stepM, double slackM) {
+        double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+        double minLon = Double.POSITIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+        double latSum = 0;
+        for (double[] p : pts) {
+            minLat = Math.min(minLat, p[0]);
+            maxLat = Math.max(maxLat, p[0]);
+            minLon = Math.min(minLon, p[1]);
+            maxLon = Math.max(maxLon, p[1]);
+            latSum += p[0];
+        }
+        double latMid = latSum / pts.size();
+        double degPerMeterLat = 1.0 / 111320.0;
+        double degPerMeterLon = 1.0 / (111320.0 * Math.max(0.2, Math.cos(Math.toRadians(latMid))));
+
+        minLat -= 200 * degPerMeterLat;
+        maxLat += 200 * degPerMeterLat;
+        minLon -= 200 * degPerMeterLon;
+        maxLon += 200 * degPerMeterLon;
+
+        double stepLat = stepM * degPerMeterLat;
+        double stepLon = stepM * degPerMeterLon;
+        double cover = radiusM + slackM;
+
+        // Bucket points so fine sampling stays fast
+        PointStore store = new PointStore();
+        SpatialGrid grid = new SpatialGrid(64.0, store);
+        for (double[] p : pts) grid.add(store.add(p[0], p[1]));
+
+        long total = 0, uncovered = 0;
+        for (double lat = minLat + stepLat / 2; lat <= maxLat; lat += stepLat) {
+            for (double lon = minLon + stepLon / 2; lon <= maxLon; lon += stepLon) {
+                total++;
+                if (!grid.containsWithin(lat, lon, cover)) uncovered++;
+            }
+        }
+        return total == 0 ? 1.0 : (double) uncovered / total;
+    }
+
+    private static List<double[]> randomWalk(Random rnd, double lat, double lon, int n, double maxStepM) {
+        List<double[]> out = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            double step = rnd.nextDouble() * maxStepM;
+            double bearing = rnd.nextDouble() * 2 * Math.PI;
+            lat += step * Math.cos(bearing) / 111319.49;
+            lon += step * Math.sin(bearing) / (111319.49 * Math.cos(Math.toRadians(lat)));
+            out.add(new double[]{lat, lon});
+        }
+        return out;
+    }
+}
@@ -0,0 +1,114 @@
+package com.terra.FogOfEarth;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DistanceAccumulatorTest {
+
+    @Test
+    public void sumsStepsAndIgnoresJitterAndJumps() {
+        DistanceAccumulator acc = new DistanceAccumulator(30_000);
+        acc.start(0);
+
+        acc.add(55.0, -4.0, 1);
+        acc.add(55.0001, -4.0, 2);      // ~11.1 m
+        acc.add(55.0001, -4.000001, 3); // ~0.06 m of jitter, ignored
+        acc.add(56.0, -4.0, 4);         // ~100 km jump, ignored
+        acc.add(56.0001, -4.0, 5);      // ~11.1 m from where the jump landed
+
+        assertEquals(2 * 11119.5, acc.getDistanceMm(), 2);
+    }
+
+    @Test
+    public void ignoresFixesWithoutASession() {
+        DistanceAccumulator acc = new DistanceAccumulator(30_000);
+        assertFalse(acc.add(55.0, -4.0, 1));
+        assertFalse(acc.add(55.001, -4.0, 2));
+        assertEquals(0, acc.getDistanceMm());
+        assertNull(acc.takeCheckpoint(3));
+
+        acc.start(10);
+        acc.add(55.0, -4.0, 11);
+        acc.add(55.001, -4.0, 12);
+        acc.end();
+        assertEquals(0, acc.getDistanceMm());
+        assertNull(acc.takeCheckpoint(13));
+    }
+
+    @Test
+    public void checkpointsAreDueOncePerInterval() {
+        DistanceAccumulator acc = new DistanceAccumulator(30_000);
+        acc.start(0);
+
+        assertFalse(acc.add(55.0, -4.0, 10_000));
+        assertFalse(acc.add(55.0001, -4.0, 29_999));
+        assertTrue(acc.add(55.0002, -4.0, 30_000));
+
+        DistanceAccumulator.Checkpoint cp = acc.takeCheckpoint(30_000);
+        assertNotNull(cp);
+        assertEquals(acc.getDistanceMm(), cp.distanceMm);
+        assertTrue(cp.hasLast);
+        assertEquals(55.0002, cp.lastLat, 0);
+        assertEquals(-4.0, cp.lastLon, 0);
+
+        // Nothing new to save, and the next one is a whole interval away
+        assertNull(acc.takeCheckpoint(30_001));
+        assertFalse(acc.add(55.0003, -4.0, 59_999));
+        assertTrue(acc.add(55.0004, -4.0, 60_000));
+    }
+
+    @Test
+    public void restoreCarriesOnFromACheckpoint() {
+        DistanceAccumulator acc = new DistanceAccumulator(30_000);
+        acc.start(0);
+        acc.add(55.0, -4.0, 1);
+        acc.add(55.001, -4.0, 2);
+        DistanceAccumulator.Checkpoint cp = acc.takeCheckpoint(3);
+
+        // As if the process died and came back
+        DistanceAccumulator restored = new DistanceAccumulator(30_000);
+        restored.restore(true, cp, 100);
+        assertNull(restored.takeCheckpoint(101));
+        restored.add(55.002, -4.0, 102);
+
+        acc.add(55.002, -4.0, 4);
+        assertEquals(acc.getDistanceMm(), restored.getDistanceMm());
+    }
+
+    @Test
+    public void concurrentFixesNeverTearTheLastPosition() throws Exception {
+        DistanceAccumulator acc = new DistanceAccumulator(Long.MAX_VALUE);
+        acc.start(0);
+
+        // Each thread has its own column of points; a step within a column is ~11 m, and a step
+        // between columns is far past the jump limit. Torn reads of the last position would add
+        // something that is neither.
+        List<Thread> threads = new ArrayList<>();
+        int perThread = 20_000;
+        for (int t = 0; t < 4; t++) {
+            double lon = t * 0.1;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < perThread; i++) acc.add(i % 2 == 0 ? 0.0 : 0.0001, lon, 1);
+            }));
+        }
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+
+        long step = Math.round(DistanceAccumulator.distanceMeters(0, 0, 0.0001, 0) * 1000.0);
+        assertEquals(0, acc.getDistanceMm() % step);
+        assertTrue(acc.getDistanceMm() > 0);
+        assertTrue(acc.getDistanceMm() <= 4L * perThread * step);
+    }
+
+    @Test
+    public void haversineMatchesKnownDistances() {
+        // One degree of latitude on the mean sphere, and London to Paris
+        assertEquals(111195.08, DistanceAccumulator.distanceMeters(0, 0, 1, 0), 0.01);
+        assertEquals(343_500, DistanceAccumulator.distanceMeters(51.5072, -0.1276, 48.8566, 2.3522), 1_000);
+        assertEquals(0, DistanceAccumulator.distanceMeters(55.0, -4.0, 55.0, -4.0), 0);
+    }
+}
@@ -0,0 +1,200 @@
+package com.terra.FogOfEarth;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks fixes go through validate, distance, reveal and persist in order, saves are batched,
+ * a burst is bounded rather than queued without limit, and the last save is queued by the time
+ * the pipeline has finished.
+ */
+public class FixPipelineTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    // Runs tasks only when asked, like a busy HandlerThread
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    private final List<String> calls = new ArrayList<>();
+    private final List<String> recorded = new ArrayList<>();
+    private int persists = 0;
+
+    private final FixPipeline.Stages stages = new FixPipeline.Stages() {
+        @Override
+        public void addDistance(double lat, double lon, long timeMs) {
+            calls.add("distance " + timeMs);
+        }
+
+        @Override
+        public boolean reveal(double lat, double lon) {
+            calls.add("reveal " + lat);
+            // 55.4 stands for somewhere already revealed
+            return lat != 55.4;
+        }
+
+        @Override
+        public void record(long timeMs, double lat, double lon, float accuracyMeters, float speedMps, boolean revealed) {
+            recorded.add(timeMs + " " + accuracyMeters + " " + speedMps + " " + revealed);
+        }
+
+        @Override
+        public void persist() {
+            calls.add("persist");
+            persists++;
+        }
+    };
+
+    private FixPipeline pipeline;
+
+    @Before
+    public void setUp() {
+        pipeline = new FixPipeline(tasks::add, stages, 60_000);
+    }
+
+    @Test
+    public void stagesRunInOrderWithOneSavePerBatch() {
+        pipeline.submit(55.1, -4.2, 5f, 1000);
+        pipeline.submit(55.2, -4.2, Float.NaN, 2000);
+
+        // One drain scheduled for both
+        assertEquals(1, tasks.size());
+        runAll();
+
+        assertEquals(Arrays.asList("distance 1000", "reveal 55.1", "distance 2000", "reveal 55.2", "persist"), calls);
+        assertEquals(2, pipeline.getRevealed());
+    }
+
+    @Test
+    public void savesAreThrottledThenFinished() {
+        pipeline.submit(55.1, -4.2, 5f, 1000);
+        runAll();
+        pipeline.submit(55.2, -4.2, 5f, 2000);
+        runAll();
+        assertEquals(1, persists);
+
+        CountDownLatch finished = pipeline.finish(() -> calls.add("last"));
+        assertEquals(1, finished.getCount());
+        runAll();
+        assertEquals(2, persists);
+        assertEquals(0, finished.getCount());
+        assertEquals(Arrays.asList("persist", "last"), calls.subList(calls.size() - 2, calls.size()));
+
+        // Nothing new: finishing again doesn't save again
+        pipeline.finish(null);
+        runAll();
+        assertEquals(2, persists);
+    }
+
+    @Test
+    public void finalSaveIsQueuedBeforeFinishCountsDown() throws Exception {
+        File dir = tmp.newFolder();
+        FogModel model = new FogModel(dir);
+        model.loadAll();
+        ExecutorService fixThread = Executors.newSingleThreadExecutor();
+        try {
+            FixPipeline real = new FixPipeline(fixThread, new FixPipeline.Stages() {
+                @Override public void addDistance(double lat, double lon, long timeMs) {}
+                @Override public boolean reveal(double lat, double lon) { return model.addPrimary(lat, lon); }
+                @Override public void record(long timeMs, double lat, double lon, float accuracyMeters,
+                                             float speedMps, boolean revealed) {}
+                @Override public void persist() { model.save(); }
+            }, 60_000);
+
+            // The first batch saves; the rest wait for the throttle, as when the service stops
+            for (int i = 0; i < 20; i++) real.submit(55.80 + i * 1e-3, -4.25, 5f, 1000 + i);
+
+            // As onDestroy: wait for the fix thread's last message, then flush the store
+            assertTrue(real.finish(null).await(5, TimeUnit.SECONDS));
+            assertTrue(FogDbWriter.flush(5000));
+        } finally {
+            fixThread.shutdownNow();
+        }
+
+        PointStore primary = new PointStore();
+        FogLayerDb.loadLayers(dir, primary, new PointStore());
+        assertEquals(20, primary.size());
+    }
+
+    @Test
+    public void invalidAndStaleFixesAreRejected() {
+        pipeline.submit(55.1, -4.2, 5f, 5000);
+        pipeline.submit(55.2, -4.2, 5f, 4000);                              // older than the last
+        pipeline.submit(0, 0, 5f, 6000);                                    // no fix yet
+        pipeline.submit(95, -4.2, 5f, 7000);                                // out of range
+        pipeline.submit(55.3, -4.2, FixPipeline.MAX_ACCURACY_METERS * 2, 8000);  // too inaccurate
+        pipeline.submit(Double.NaN, -4.2, 5f, 9000);
+        runAll();
+
+        assertEquals(5, pipeline.getRejected());
+        assertEquals(1, pipeline.getRevealed());
+    }
+
+    @Test
+    public void acceptedFixesAreRecordedWithSpeedAndReveal() {
+        pipeline.submit(55.1, -4.2, 5f, 1.5f, 1000);
+        pipeline.submit(55.4, -4.2, Float.NaN, Float.NaN, 2000);
+        pipeline.submit(55.3, -4.2, FixPipeline.MAX_ACCURACY_METERS * 2, 1f, 3000);  // rejected
+        runAll();
+
+        assertEquals(Arrays.asList("1000 5.0 1.5 true", "2000 NaN NaN false"), recorded);
+        assertEquals(1, pipeline.getRevealed());
+    }
+
+    @Test
+    public void burstIsBoundedAndKeepsNewest() {
+        int burst = FixPipeline.MAX_PENDING * 10;
+        for (int i = 0; i < burst; i++) pipeline.submit(50 + i * 1e-3, -4.2, 5f, i);
+
+        assertEquals(1, tasks.size());
+        assertEquals(burst - FixPipeline.MAX_PENDING, pipeline.getDropped());
+        runAll();
+
+        assertEquals(FixPipeline.MAX_PENDING, pipeline.getRevealed());
+        assertTrue(calls.contains("distance " + (burst - 1)));
+        assertFalse(calls.contains("distance 0"));
+    }
+
+    @Test
+    public void fixesArrivingMidDrainGetTheirOwnBatch() {
+        FixPipeline.Stages slow = new FixPipeline.Stages() {
+            @Override public void addDistance(double lat, double lon, long timeMs) {
+                // A new fix lands while the first is being handled
+                if (timeMs == 1) pipeline.submit(55.5, -4.2, 5f, 2);
+            }
+            @Override public boolean reveal(double lat, double lon) { return true; }
+            @Override public void record(long timeMs, double lat, double lon, float accuracyMeters,
+                                         float speedMps, boolean revealed) {}
+            @Override public void persist() { persists++; }
+        };
+        pipeline = new FixPipeline(tasks::add, slow, 0);
+        pipeline.submit(55.1, -4.2, 5f, 1);
+
+        tasks.poll().run();
+        assertEquals(1, pipeline.getRevealed());
+        assertEquals(1, tasks.size());
+
+        runAll();
+        assertEquals(2, pipeline.getRevealed());
+        assertEquals(2, persists);
+    }
+
+    // -- Helpers --
+
+    private void runAll() {
+        while (!tasks.isEmpty()) tasks.poll().run();
+    }
+}
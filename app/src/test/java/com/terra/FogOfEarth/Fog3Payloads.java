@@ -0,0 +1,36 @@
+package com.terra.FogOfEarth;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds FOG3 QR payloads as older versions shared them, which the app itself now only reads.
+ */
+final class Fog3Payloads {
+
+    private Fog3Payloads() {}
+
+    /**
+     * Build the FOG3 QR payloads for a set of points
+     * @param points Points to share
+     * @param maxSegmentLen Most encoded characters per payload's segment
+     * @param transferId Id tying the parts of one transfer together
+     * @return One payload per QR code; {@link QrSegmenter#EMPTY_PAYLOAD} alone if there are no points
+     */
+    static String[] build(PointStore points, int maxSegmentLen, String transferId) {
+        if (points.isEmpty()) return new String[] { QrSegmenter.EMPTY_PAYLOAD };
+
+        // Segment bounds first, since every payload carries the total
+        List<int[]> ranges = new ArrayList<>();
+        int total = QrSegmenter.segments(points, maxSegmentLen, (from, to) -> ranges.add(new int[] { from, to }));
+
+        String[] payloads = new String[total];
+        PolylineCodec.Encoder encoder = new PolylineCodec.Encoder();
+        for (int i = 0; i < total; i++) {
+            int[] range = ranges.get(i);
+            payloads[i] = QrSegmenter.FORMAT + "|" + transferId + "|" + (i + 1) + "/" + total + "|"
+                    + encoder.encode(points, range[0], range[1]);
+        }
+        return payloads;
+    }
+}
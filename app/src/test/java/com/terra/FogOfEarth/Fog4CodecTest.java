@@ -0,0 +1,142 @@
+package com.terra.FogOfEarth;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Fog4CodecTest {
+
+    private static final int MAX_BODY_BYTES = 800;
+
+    @Test
+    public void emptyGivesTheEmptyPayload() {
+        assertArrayEquals(new String[] { "FOG4|EMPTY|1/1|" },
+                Fog4Codec.payloads(new PointStore(), 50f, MAX_BODY_BYTES, "1"));
+    }
+
+    @Test
+    public void everyPartDecodesOnItsOwnNearTheOriginalPoints() {
+        PointStore track = walk(new Random(4), 20_000, 55.8642, -4.2518);
+        String[] payloads = Fog4Codec.payloads(track, 50f, MAX_BODY_BYTES, "abc");
+
+        PointStore decoded = new PointStore();
+        for (int i = 0; i < payloads.length; i++) {
+            String[] parts = payloads[i].split("\\|", 4);
+            assertEquals("FOG4", parts[0]);
+            assertEquals("abc", parts[1]);
+            assertEquals((i + 1) + "/" + payloads.length, parts[2]);
+            assertTrue(parts[3].length() <= MAX_BODY_BYTES);
+            for (char c : parts[3].toCharArray()) assertTrue(c <= 0xFF);
+
+            PointStore part = new PointStore();
+            assertTrue(Fog4Codec.decode(parts[3], part));
+            assertTrue(part.size() > 0);
+            decoded.addAll(part);
+        }
+
+        // Every point is covered by a snapped point within half a grid cell (diagonally)
+        assertTrue(decoded.size() <= track.size());
+        SpatialGrid grid = new SpatialGrid(64, decoded);
+        grid.rebuild();
+        for (int i = 0; i < track.size(); i++) {
+            assertTrue("point " + i, nearestMeters(grid, track.lat(i), track.lon(i)) <= 18.5);
+        }
+    }
+
+    @Test
+    public void worksAwayFromTheEquatorAndAcrossSigns() {
+        Random rnd = new Random(6);
+        double[][] starts = { { 0, 0.0005 }, { -33.86, 151.2 }, { 69.65, 18.95 }, { 40.7, -74.0 }, { 0.0004, 179.99 } };
+        for (double[] start : starts) {
+            PointStore track = walk(rnd, 2_000, start[0], start[1]);
+            PointStore decoded = new PointStore();
+            for (String payload : Fog4Codec.payloads(track, 50f, MAX_BODY_BYTES, "x")) {
+                assertTrue(Fog4Codec.decode(payload.split("\\|", 4)[3], decoded));
+            }
+            SpatialGrid grid = new SpatialGrid(64, decoded);
+            grid.rebuild();
+            for (int i = 0; i < track.size(); i++) {
+                assertTrue(nearestMeters(grid, track.lat(i), track.lon(i)) <= 18.5);
+            }
+        }
+    }
+
+    @Test
+    public void needsFarFewerPartsThanFog3() {
+        Random rnd = new Random(12);
+
+        // A day of walking around a city, and a long exploring trip
+        PointStore city = new PointStore();
+        for (int trip = 0; trip < 12; trip++) city.addAll(walk(rnd, 1_500, 55.8642, -4.2518));
+        PointStore trip = walk(rnd, 60_000, 51.5072, -0.1276);
+
+        for (PointStore track : new PointStore[] { city, trip }) {
+            int fog3 = Fog3Payloads.build(track, 800, "t").length;
+            int fog4 = Fog4Codec.payloads(track, FogModel.RADIUS_METERS, MAX_BODY_BYTES, "t").length;
+            assertTrue("FOG3 " + fog3 + " parts, FOG4 " + fog4, fog4 * 4 <= fog3);
+        }
+    }
+
+    @Test
+    public void malformedBodiesAppendNothing() {
+        PointStore track = walk(new Random(2), 300, 55.8642, -4.2518);
+        String body = Fog4Codec.payloads(track, 50f, MAX_BODY_BYTES, "x")[0].split("\\|", 4)[3];
+
+        PointStore out = new PointStore();
+        out.addE5(1, 2);
+        assertFalse(Fog4Codec.decode(body.substring(0, body.length() / 2), out));
+        assertFalse(Fog4Codec.decode("", out));
+        assertFalse(Fog4Codec.decode("_p~iF~ps|U", out));
+
+        char[] flipped = body.toCharArray();
+        flipped[flipped.length / 2] ^= 0x10;
+        assertFalse(Fog4Codec.decode(new String(flipped), out));
+
+        // Mangled by a scanner reading the bytes as another charset
+        assertFalse(Fog4Codec.decode(body.replace('é', '☃') + "☃", out));
+        assertEquals(1, out.size());
+    }
+
+    // -- Helpers --
+
+    /** Walking pace fixes about every 5 m with a few meters of GPS noise, never closer than 4.5 m */
+    private static PointStore walk(Random rnd, int n, double lat, double lon) {
+        PointStore store = new PointStore(n);
+        double heading = rnd.nextDouble() * 2 * Math.PI;
+        double lastLat = Double.NaN;
+        double lastLon = Double.NaN;
+        while (store.size() < n) {
+            heading += rnd.nextGaussian() * 0.15;
+            if (rnd.nextInt(200) == 0) heading += Math.PI / 2 * (rnd.nextBoolean() ? 1 : -1);
+            double metersPerDegLon = 111320.0 * Math.cos(Math.toRadians(lat));
+            lat += 5 * Math.cos(heading) / 111320.0;
+            lon += 5 * Math.sin(heading) / metersPerDegLon;
+            if (lon > 180) lon -= 360;
+
+            double fixLat = lat + rnd.nextGaussian() * 3 / 111320.0;
+            double fixLon = lon + rnd.nextGaussian() * 3 / metersPerDegLon;
+            if (!Double.isNaN(lastLat) && meters(lastLat, lastLon, fixLat, fixLon) < 4.5) continue;
+            store.add(fixLat, fixLon);
+            lastLat = fixLat;
+            lastLon = fixLon;
+        }
+        return store;
+    }
+
+    private static double nearestMeters(SpatialGrid grid, double lat, double lon) {
+        double[] best = { Double.MAX_VALUE };
+        double pad = 30 / 111320.0;
+        double padLon = pad / Math.max(0.01, Math.cos(Math.toRadians(lat)));
+        grid.forEachInBounds(lat - pad, lat + pad, lon - padLon, lon + padLon,
+                (pLat, pLon) -> best[0] = Math.min(best[0], meters(lat, lon, pLat, pLon)));
+        return best[0];
+    }
+
+    private static double meters(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = (lat2 - lat1) * 111320.0;
+        double dLon = (lon2 - lon1) * 111320.0 * Math.cos(Math.toRadians((lat1 + lat2) / 2));
+        return Math.sqrt(dLat * dLat + dLon * dLon);
+    }
+}
@@ -0,0 +1,76 @@
+package com.terra.FogOfEarth;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks queued writes coalesce by key and that flush waits for them, up to its timeout.
+ */
+public class FogDbWriterTest {
+
+    @Test
+    public void burstOfSavesCoalescesToLatest() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger runs = new AtomicInteger();
+        AtomicInteger lastValue = new AtomicInteger(-1);
+
+        // Hold the writer thread so the burst piles up behind it
+        FogDbWriter.enqueue("block", () -> {
+            started.countDown();
+            try { release.await(5, TimeUnit.SECONDS); } catch (InterruptedException ignored) {}
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 100; i++) {
+            final int value = i;
+            FogDbWriter.enqueue("coalesce", () -> {
+                runs.incrementAndGet();
+                lastValue.set(value);
+            });
+        }
+
+        assertFalse(FogDbWriter.flush(50));
+        release.countDown();
+        assertTrue(FogDbWriter.flush(5000));
+
+        assertEquals(1, runs.get());
+        assertEquals(99, lastValue.get());
+    }
+
+    @Test
+    public void discardedWriteNeverRuns() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger runs = new AtomicInteger();
+
+        FogDbWriter.enqueue("block", () -> {
+            started.countDown();
+            try { release.await(5, TimeUnit.SECONDS); } catch (InterruptedException ignored) {}
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        FogDbWriter.enqueue("discard", runs::incrementAndGet);
+        FogDbWriter.discard("discard");
+        release.countDown();
+
+        assertTrue(FogDbWriter.flush(5000));
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void differentKeysAllRunInOrder() {
+        StringBuilder order = new StringBuilder();
+        FogDbWriter.enqueue("a", () -> order.append('a'));
+        FogDbWriter.enqueue("b", () -> order.append('b'));
+        FogDbWriter.enqueue("c", () -> order.append('c'));
+
+        assertTrue(FogDbWriter.flush(5000));
+        assertEquals("abc", order.toString());
+    }
+}
@@ -0,0 +1,311 @@
+package com.terra.FogOfEarth;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static com.terra.FogOfEarth.TestTracks.track;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks the streaming reader gets the same layers as loading the whole JSON DB into a tree, and
+ * benchmarks the two on a 500k point DB (see {@link Benchmarks}).
+ */
+public class FogJsonReaderTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = tmp.newFolder();
+    }
+
+    @Test
+    public void readsEncodedLayersAndLogMark() throws Exception {
+        PointStore primary = track(2_000, 0);
+        PointStore shared = track(300, 9_000);
+        JSONObject root = db(encodedLayer("primary", 50, primary), encodedLayer("shared", 50, shared));
+        root.put(FogLayerDb.KEY_LOG_MERGED, new JSONObject().put("id", 1234567890123L).put("bytes", 4096));
+
+        PointStore primaryIn = new PointStore();
+        PointStore sharedIn = new PointStore();
+        FogJsonReader.Snapshot snapshot = FogJsonReader.read(new StringReader(root.toString()), primaryIn, sharedIn);
+
+        assertSameStore(primary, primaryIn);
+        assertSameStore(shared, sharedIn);
+        assertEquals(50f, snapshot.primaryRadiusMeters, 0f);
+        assertEquals(1234567890123L, snapshot.logId);
+        assertEquals(4096, snapshot.logBytes);
+    }
+
+    @Test
+    public void matchesTreeOnAwkwardDbs() throws Exception {
+        PointStore a = track(500, 0);
+        PointStore b = track(40, 7_000);
+
+        JSONObject legacyPrimary = legacyLayer("primary", b);
+        JSONObject bothKinds = encodedLayer("shared", 30, a).put("points", legacyLayer("x", b).get("points"));
+        JSONObject emptyEnc = new JSONObject().put("layerId", "shared").put("pointsEnc", "").put("points",
+                legacyLayer("x", b).get("points"));
+        JSONObject malformed = new JSONObject().put("layerId", "primary").put("pointsEnc", "_p~iF~ps|U_");
+        JSONObject missingLon = legacyLayer("primary", b);
+        missingLon.getJSONArray("points").getJSONObject(10).remove("lon");
+
+        JSONObject[] dbs = {
+                db(legacyPrimary, encodedLayer("shared", 50, b)),
+                db(bothKinds, encodedLayer("primary", 10, a), encodedLayer("primary", 99, b)),
+                db(emptyEnc),
+                db(malformed, encodedLayer("shared", 50, a)),
+                db(missingLon),
+                new JSONObject().put("schemaVersion", 2).put("other", new JSONArray().put(1).put(true).put(JSONObject.NULL)),
+                new JSONObject().put("fog", "not an object"),
+        };
+
+        for (JSONObject root : dbs) {
+            root.put("extra", new JSONObject().put("nested", new JSONArray().put(-1.5e3).put("é\\\"")));
+            String text = root.toString();
+
+            PointStore treePrimary = new PointStore();
+            PointStore treeShared = new PointStore();
+            readViaTree(new JSONObject(text), treePrimary, treeShared);
+
+            PointStore primary = new PointStore();
+            PointStore shared = new PointStore();
+            FogJsonReader.read(new StringReader(text), primary, shared);
+
+            assertSameStore(treePrimary, primary);
+            assertSameStore(treeShared, shared);
+        }
+    }
+
+    @Test
+    public void streamedPolylineMatchesWholeStringDecode() {
+        Random rnd = new Random(9);
+        for (int trial = 0; trial < 2_000; trial++) {
+            StringBuilder sb = new StringBuilder();
+            int len = rnd.nextInt(12);
+            for (int i = 0; i < len; i++) sb.append((char) (40 + rnd.nextInt(90)));
+            String enc = sb.toString();
+
+            PointStore whole = new PointStore();
+            boolean wholeOk = true;
+            try {
+                PolylineCodec.decode(enc, whole);
+            } catch (RuntimeException e) {
+                wholeOk = false;
+            }
+
+            PointStore streamed = new PointStore();
+            PolylineCodec.Decoder decoder = new PolylineCodec.Decoder(streamed);
+            for (int i = 0; i < enc.length(); i++) decoder.feed(enc.charAt(i));
+            assertEquals(enc, wholeOk, decoder.finish());
+            assertSameStore(whole, streamed);
+        }
+    }
+
+    @Test
+    public void shortDecimalsParseLikeParseDouble() {
+        Random rnd = new Random(11);
+        String[] fixed = {"0", "-0", "0.0", "55.86420", "-4.25180", "180", "-90.000000", "0.1", "123456789012345",
+                "0.0000000000000000000001", "9007199254740991", "1.5e3", "5.", "-", "1234567890123456789012"};
+        for (String text : fixed) checkDecimal(text);
+        for (int trial = 0; trial < 100_000; trial++) {
+            StringBuilder sb = new StringBuilder();
+            if (rnd.nextBoolean()) sb.append('-');
+            sb.append(rnd.nextInt(181));
+            if (rnd.nextInt(4) != 0) {
+                sb.append('.');
+                int fraction = 1 + rnd.nextInt(17);
+                for (int i = 0; i < fraction; i++) sb.append((char) ('0' + rnd.nextInt(10)));
+            }
+            checkDecimal(sb.toString());
+        }
+    }
+
+    @Test
+    public void malformedJsonReadsAsEmpty() throws Exception {
+        String text = db(encodedLayer("primary", 50, track(100, 0))).toString();
+        Files.write(new File(dir, "fog_db.json").toPath(),
+                text.substring(0, text.length() / 2).getBytes(StandardCharsets.UTF_8));
+
+        PointStore primary = new PointStore();
+        PointStore shared = new PointStore();
+        FogLayerDb.readSnapshot(dir, primary, shared);
+        assertEquals(0, primary.size());
+        assertEquals(0, shared.size());
+    }
+
+    @Test
+    public void benchmark500kPoints() throws Exception {
+        Benchmarks.assumeEnabled();
+        com.sun.management.ThreadMXBean mx =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(mx.isThreadAllocatedMemorySupported());
+
+        // 500k points: most encoded as they are saved now, the rest in the legacy format
+        PointStore encoded = walk(400_000, 5);
+        PointStore legacy = walk(100_000, 6);
+        JsonDbFixture.write(dir, db(encodedLayer("primary", 50, encoded), legacyLayer("shared", legacy)));
+        long tid = Thread.currentThread().getId();
+
+        // Warm up both paths
+        for (int i = 0; i < 2; i++) {
+            readViaTree(JsonDbFixture.read(dir), new PointStore(), new PointStore());
+            readStreaming(new PointStore(), new PointStore());
+        }
+
+        PointStore treePrimary = new PointStore();
+        PointStore treeShared = new PointStore();
+        resetPeaks();
+        long before = mx.getThreadAllocatedBytes(tid);
+        long start = System.nanoTime();
+        readViaTree(JsonDbFixture.read(dir), treePrimary, treeShared);
+        long treeNs = System.nanoTime() - start;
+        long treeBytes = mx.getThreadAllocatedBytes(tid) - before;
+        long treePeak = heapPeak();
+
+        PointStore streamPrimary = new PointStore();
+        PointStore streamShared = new PointStore();
+        resetPeaks();
+        before = mx.getThreadAllocatedBytes(tid);
+        start = System.nanoTime();
+        readStreaming(streamPrimary, streamShared);
+        long streamNs = System.nanoTime() - start;
+        long streamBytes = mx.getThreadAllocatedBytes(tid) - before;
+        long streamPeak = heapPeak();
+
+        assertSameStore(encoded, streamPrimary);
+        assertSameStore(treePrimary, streamPrimary);
+        assertSameStore(treeShared, streamShared);
+
+        String result = String.format("tree %d ms, %d MB allocated, heap peak %d MB; "
+                        + "streaming %d ms, %d MB allocated, heap peak %d MB",
+                treeNs / 1_000_000, treeBytes >> 20, treePeak >> 20,
+                streamNs / 1_000_000, streamBytes >> 20, streamPeak >> 20);
+        assertTrue(result, streamBytes * 3 < treeBytes);
+        assertTrue(result, streamNs < treeNs);
+        assertTrue(result, streamPeak < treePeak);
+    }
+
+    // -- Helpers --
+
+    private static void checkDecimal(String text) {
+        double fast = FogJsonReader.parseShortDecimal(text);
+        if (Double.isNaN(fast)) return;
+        assertEquals(text, Double.doubleToLongBits(Double.parseDouble(text)), Double.doubleToLongBits(fast));
+    }
+
+    /** The old path: whole DB in a tree, then pick the layers out */
+    private static void readViaTree(JSONObject root, PointStore primary, PointStore shared) {
+        readLayerViaTree(root, "primary", primary);
+        readLayerViaTree(root, "shared", shared);
+    }
+
+    private static void readLayerViaTree(JSONObject root, String layerId, PointStore out) {
+        try {
+            JSONObject fog = root.optJSONObject("fog");
+            if (fog == null) return;
+            JSONArray layers = fog.optJSONArray("layers");
+            if (layers == null) return;
+            for (int i = 0; i < layers.length(); i++) {
+                JSONObject layer = layers.optJSONObject(i);
+                if (layer == null) continue;
+                if (!layerId.equals(layer.optString("layerId"))) continue;
+
+                out.clear();
+                String enc = layer.optString("pointsEnc", "");
+                if (enc != null && !enc.isEmpty()) {
+                    PolylineCodec.decode(enc, out);
+                    return;
+                }
+                JSONArray points = layer.optJSONArray("points");
+                if (points != null) {
+                    for (int j = 0; j < points.length(); j++) {
+                        JSONObject obj = points.optJSONObject(j);
+                        if (obj == null) continue;
+                        out.add(obj.getDouble("lat"), obj.getDouble("lon"));
+                    }
+                }
+                return;
+            }
+        } catch (Exception ignored) {}
+    }
+
+    private void readStreaming(PointStore primary, PointStore shared) throws Exception {
+        try (Reader in = JsonDb.openReader(dir)) {
+            FogJsonReader.read(in, primary, shared);
+        }
+    }
+
+    private static void resetPeaks() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+        }
+    }
+
+    private static long heapPeak() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+    private static JSONObject db(JSONObject... layers) throws Exception {
+        JSONArray arr = new JSONArray();
+        for (JSONObject layer : layers) arr.put(layer);
+        return new JSONObject().put("schemaVersion", 2).put("fog", new JSONObject().put("layers", arr));
+    }
+
+    private static JSONObject encodedLayer(String id, double radius, PointStore points) throws Exception {
+        return new JSONObject().put("layerId", id).put("revealRadiusMeters", radius)
+                .put("pointsEnc", PolylineCodec.encode(points, 0, points.size()));
+    }
+
+    private static JSONObject legacyLayer(String id, PointStore points) throws Exception {
+        JSONArray arr = new JSONArray();
+        for (int i = 0; i < points.size(); i++) {
+            arr.put(new JSONObject().put("lat", points.lat(i)).put("lon", points.lon(i)));
+        }
+        return new JSONObject().put("layerId", id).put("points", arr);
+    }
+
+    private static PointStore walk(int n, long seed) {
+        PointStore store = new PointStore(n);
+        Random rnd = new Random(seed);
+        int lat = 5586420;
+        int lon = -425180;
+        for (int i = 0; i < n; i++) {
+            lat += rnd.nextInt(41) - 20;
+            lon += rnd.nextInt(41) - 20;
+            store.addE5(lat, lon);
+        }
+        return store;
+    }
+
+    private static void assertSameStore(PointStore expected, PointStore actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.latE5(i), actual.latE5(i));
+            assertEquals(expected.lonE5(i), actual.lonE5(i));
+        }
+    }
+}
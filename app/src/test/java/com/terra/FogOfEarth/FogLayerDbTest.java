@@ -0,0 +1,127 @@
+package com.terra.FogOfEarth;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static com.terra.FogOfEarth.TestTracks.track;
+import static org.junit.Assert.*;
+
+/**
+ * Checks a reader coming back to the store only loads what others saved since it last looked,
+ * and reloads in full once the layers have been replaced.
+ */
+public class FogLayerDbTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = tmp.newFolder();
+        FogLayerDb.saveLayers(dir, track(5_000, 0), track(10, 50_000), 50f);
+    }
+
+    @Test
+    public void loadsOnlyPointsSavedSince() throws Exception {
+        PointStore primary = new PointStore();
+        PointStore shared = new PointStore();
+        FogLayerDb.Position position = FogLayerDb.loadLayers(dir, primary, shared);
+
+        // Someone else (the service) saves a few points
+        FogPointLog.append(dir, track(3, 900), track(2, 700), false, 50f);
+
+        int reads = FogStore.readCount.get();
+        position = FogLayerDb.loadChanges(dir, position, primary, shared);
+
+        assertNotNull(position);
+        assertEquals(0, FogStore.readCount.get() - reads);
+        assertEquals(5_003, primary.size());
+        assertEquals(12, shared.size());
+        assertEquals(track(3, 900).latE5(2), primary.latE5(5_002));
+        assertFalse(position.sharedCleared);
+
+        // Nothing new: nothing loaded
+        position = FogLayerDb.loadChanges(dir, position, primary, shared);
+        assertNotNull(position);
+        assertEquals(5_003, primary.size());
+    }
+
+    @Test
+    public void ownAppendsAreNotLoadedBack() throws Exception {
+        PointStore primary = new PointStore();
+        PointStore shared = new PointStore();
+        FogLayerDb.Position position = FogLayerDb.loadLayers(dir, primary, shared);
+
+        PointStore mine = track(4, 900);
+        primary.addAll(mine);
+        position = FogLayerDb.appendPoints(dir, position, mine, new PointStore(), false, 50f);
+        FogPointLog.append(dir, track(1, 800), new PointStore(), false, 50f);
+
+        position = FogLayerDb.loadChanges(dir, position, primary, shared);
+        assertNotNull(position);
+        assertEquals(5_005, primary.size());
+    }
+
+    @Test
+    public void interleavedAppendNeedsReload() throws Exception {
+        FogLayerDb.Position position = FogLayerDb.loadLayers(dir, new PointStore(), new PointStore());
+        FogPointLog.append(dir, track(1, 800), new PointStore(), false, 50f);
+
+        assertNull(FogLayerDb.appendPoints(dir, position, track(1, 900), new PointStore(), false, 50f));
+    }
+
+    @Test
+    public void carriesOnAfterOwnCompaction() throws Exception {
+        PointStore primary = new PointStore();
+        PointStore shared = new PointStore();
+        FogLayerDb.Position position = FogLayerDb.loadLayers(dir, primary, shared);
+
+        PointStore mine = track(FogPointLog.COMPACT_RECORDS, 900);
+        primary.addAll(mine);
+        position = FogLayerDb.appendPoints(dir, position, mine, new PointStore(), false, 50f);
+        assertFalse(new File(dir, FogPointLog.FILE_NAME).exists());
+
+        // Others start a new log after the compaction
+        FogPointLog.append(dir, track(2, 100_000), new PointStore(), false, 50f);
+
+        position = FogLayerDb.loadChanges(dir, position, primary, shared);
+        assertNotNull(position);
+        assertEquals(5_002 + FogPointLog.COMPACT_RECORDS, primary.size());
+    }
+
+    @Test
+    public void replacedLayersNeedReload() throws Exception {
+        FogLayerDb.Position position = FogLayerDb.loadLayers(dir, new PointStore(), new PointStore());
+        FogLayerDb.saveLayers(dir, track(10, 0), new PointStore(), 50f);
+        assertNull(FogLayerDb.loadChanges(dir, position, new PointStore(), new PointStore()));
+
+        position = FogLayerDb.loadLayers(dir, new PointStore(), new PointStore());
+        FogLayerDb.clear(dir);
+        assertNull(FogLayerDb.loadChanges(dir, position, new PointStore(), new PointStore()));
+
+        PointStore primary = new PointStore();
+        FogLayerDb.loadLayers(dir, primary, new PointStore());
+        assertEquals(0, primary.size());
+    }
+
+    @Test
+    public void replacedSharedLayerIsReported() throws Exception {
+        PointStore primary = new PointStore();
+        PointStore shared = new PointStore();
+        FogLayerDb.Position position = FogLayerDb.loadLayers(dir, primary, shared);
+
+        FogPointLog.append(dir, new PointStore(), track(3, 700), true, 50f);
+
+        position = FogLayerDb.loadChanges(dir, position, primary, shared);
+        assertNotNull(position);
+        assertTrue(position.sharedCleared);
+        assertEquals(3, shared.size());
+        assertEquals(5_000, primary.size());
+    }
+}
@@ -0,0 +1,239 @@
+package com.terra.FogOfEarth;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the shared fog model takes points from several threads at once, and saves each point
+ * once whoever asks for the save.
+ */
+public class FogModelTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = tmp.newFolder();
+    }
+
+    @Test
+    public void concurrentAddsAreAllKept() throws Exception {
+        FogModel model = new FogModel(dir);
+        model.loadAll();
+
+        // Two writers (service and activity) on separate tracks, plus a reader drawing
+        int n = 5_000;
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] writers = new Thread[2];
+        for (int t = 0; t < writers.length; t++) {
+            double lon = -4.25 + t * 0.1;
+            writers[t] = new Thread(() -> {
+                awaitQuietly(start);
+                for (int i = 0; i < n; i++) model.addPrimary(55.80 + i * 1e-4, lon);
+            });
+            writers[t].start();
+        }
+        int[] visited = new int[1];
+        Thread reader = new Thread(() -> {
+            awaitQuietly(start);
+            for (int i = 0; i < 200; i++) {
+                model.forEachPrimaryInBounds(55.0, 57.0, -5.0, -3.0, (lat, lon) -> visited[0]++);
+            }
+        });
+        reader.start();
+
+        start.countDown();
+        for (Thread w : writers) w.join();
+        reader.join();
+
+        assertEquals(2 * n, model.primarySize());
+        assertTrue(model.getExploredAreaKm2() > 0);
+    }
+
+    @Test
+    public void savesEachPointOnce() throws Exception {
+        FogModel model = new FogModel(dir);
+        model.loadAll();
+
+        for (int i = 0; i < 100; i++) model.addPrimary(55.80 + i * 1e-3, -4.25);
+        model.save();
+        model.save();   // the other owner asking too
+        for (int i = 0; i < 10; i++) model.addPrimary(56.80 + i * 1e-3, -4.25);
+        model.save();
+        assertTrue(FogDbWriter.flush(5000));
+
+        PointStore primary = new PointStore();
+        FogLayerDb.loadLayers(dir, primary, new PointStore());
+        assertEquals(110, primary.size());
+    }
+
+    @Test
+    public void saveAppendsOnceWithoutReadingTheSnapshot() throws Exception {
+        FogModel model = new FogModel(dir);
+        model.loadAll();
+        for (int i = 0; i < 100; i++) model.addPrimary(55.80 + i * 1e-3, -4.25);
+        model.save();
+        assertTrue(FogDbWriter.flush(5000));
+
+        int appends = FogPointLog.appendCount.get();
+        int reads = FogStore.readCount.get();
+        int writes = FogStore.writeCount.get();
+        int jsonReads = FogLayerDb.jsonReadCount.get();
+        for (int i = 0; i < 50; i++) model.addPrimary(56.80 + i * 1e-3, -4.25);
+        model.save();
+        model.save();   // nothing new by now, or coalesced with the first
+        assertTrue(FogDbWriter.flush(5000));
+
+        assertEquals(1, FogPointLog.appendCount.get() - appends);
+        assertEquals(0, FogStore.readCount.get() - reads);
+        assertEquals(0, FogStore.writeCount.get() - writes);
+        assertEquals(0, FogLayerDb.jsonReadCount.get() - jsonReads);
+    }
+
+    @Test
+    public void tooClosePointsAreSkipped() {
+        FogModel model = new FogModel(dir);
+        assertTrue(model.addPrimary(55.8, -4.25));
+        assertFalse(model.addPrimary(55.8 + 1e-5, -4.25));
+        assertEquals(1, model.primarySize());
+    }
+
+    @Test
+    public void clearEmptiesMemoryAndStore() throws Exception {
+        FogModel model = new FogModel(dir);
+        model.loadAll();
+        for (int i = 0; i < 20; i++) model.addPrimary(55.80 + i * 1e-3, -4.25);
+        model.save();
+
+        int resets = model.getResetCount();
+        model.clear();
+        assertEquals(0, model.primarySize());
+        assertNotEquals(resets, model.getResetCount());
+
+        model.addPrimary(57.0, -4.25);
+        model.save();
+        assertTrue(FogDbWriter.flush(5000));
+
+        PointStore primary = new PointStore();
+        FogLayerDb.loadLayers(dir, primary, new PointStore());
+        assertEquals(1, primary.size());
+    }
+
+    @Test
+    public void reloadChangesMergesInTheBackground() throws Exception {
+        FogModel model = new FogModel(dir);
+        model.loadAll();
+        FogModel other = new FogModel(dir);
+        other.loadAll();
+
+        for (int i = 0; i < 30; i++) other.addPrimary(55.80 + i * 1e-3, -4.25);
+        other.save();
+
+        CountDownLatch changed = new CountDownLatch(1);
+        model.reloadChanges(changed::countDown);
+        assertTrue(FogDbWriter.flush(5000));
+        assertEquals(0, changed.getCount());
+        assertEquals(30, model.primarySize());
+
+        // Unsaved points here are never thrown away by a reload
+        model.addPrimary(57.0, -4.25);
+        other.addPrimary(58.0, -4.25);
+        other.save();
+        model.reloadChanges(null);
+        assertTrue(FogDbWriter.flush(5000));
+        assertEquals(31, model.primarySize());
+    }
+
+    @Test
+    public void loadKeepsPointsNotYetStored() throws Exception {
+        FogModel model = new FogModel(dir);
+        model.loadAll();
+        FogModel other = new FogModel(dir);
+        other.loadAll();
+
+        for (int i = 0; i < 30; i++) other.addPrimary(55.80 + i * 1e-3, -4.25);
+        other.save();
+
+        // Unsaved here, so a full load must keep them after the stored points
+        for (int i = 0; i < 5; i++) model.addPrimary(57.00 + i * 1e-3, -4.25);
+        model.loadAll();
+        assertEquals(35, model.primarySize());
+
+        // ...and they are still saved afterwards, once
+        model.save();
+        assertTrue(FogDbWriter.flush(5000));
+        PointStore primary = new PointStore();
+        FogLayerDb.loadLayers(dir, primary, new PointStore());
+        assertEquals(35, primary.size());
+    }
+
+    @Test
+    public void loadRebuildsCoverageOffTheLock() throws Exception {
+        FogModel other = new FogModel(dir);
+        other.loadAll();
+        for (int i = 0; i < 200; i++) other.addPrimary(55.80 + i * 1e-3, -4.25);
+        other.save();
+        assertTrue(FogDbWriter.flush(5000));
+
+        // The raster is built on the writer thread, after the layers are swapped in
+        FogModel model = new FogModel(dir);
+        model.loadAll();
+        assertEquals(other.getExploredAreaKm2(), model.getExploredAreaKm2(), 1e-9);
+        assertEquals(other.estimateUncoveredPercent(), model.estimateUncoveredPercent(), 1e-9);
+
+        // Points added after the load still count
+        model.addPrimary(57.0, -4.25);
+        assertTrue(model.getExploredAreaKm2() > other.getExploredAreaKm2());
+    }
+
+    @Test
+    public void firstLoadRunsInTheBackgroundAndKeepsEarlyPoints() throws Exception {
+        FogModel other = new FogModel(dir);
+        other.loadAll();
+        for (int i = 0; i < 30; i++) other.addPrimary(55.80 + i * 1e-3, -4.25);
+        other.save();
+        assertTrue(FogDbWriter.flush(5000));  // both models save under the same key
+
+        // Hold the writer thread so everything below happens before the load, as in FogModel.get
+        CountDownLatch gate = new CountDownLatch(1);
+        FogDbWriter.enqueue("test-gate", () -> awaitQuietly(gate));
+        FogModel model = new FogModel(dir);
+        model.reloadChanges(null);
+        assertEquals(0, model.primarySize());
+
+        // A fix and a save arrive first, then a view asks to hear about the load
+        for (int i = 0; i < 5; i++) model.addPrimary(57.00 + i * 1e-3, -4.25);
+        model.save();
+        CountDownLatch changed = new CountDownLatch(1);
+        model.reloadChanges(changed::countDown);
+
+        gate.countDown();
+        assertTrue(FogDbWriter.flush(5000));
+        assertEquals(0, changed.getCount());
+        assertEquals(35, model.primarySize());
+
+        PointStore primary = new PointStore();
+        FogLayerDb.loadLayers(dir, primary, new PointStore());
+        assertEquals(35, primary.size());
+    }
+
+    // -- Helpers --
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
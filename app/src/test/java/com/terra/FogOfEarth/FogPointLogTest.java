@@ -0,0 +1,145 @@
+package com.terra.FogOfEarth;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import static com.terra.FogOfEarth.TestTracks.track;
+import static org.junit.Assert.*;
+
+/**
+ * Checks saves append only new points, loads replay the log (including after a crash), and
+ * compaction folds the log into the snapshot exactly once.
+ */
+public class FogPointLogTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+    private File log;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = tmp.newFolder();
+        log = new File(dir, FogPointLog.FILE_NAME);
+    }
+
+    @Test
+    public void saveCostFollowsNewPointsNotHistory() throws Exception {
+        // Big snapshot, then a save of one new point
+        FogLayerDb.saveLayers(dir, track(20_000, 0), new PointStore(), 50f);
+        long snapshotBytes = new File(dir, FogStore.FILE_NAME).length();
+
+        int reads = FogStore.readCount.get();
+        int writes = FogStore.writeCount.get();
+        FogPointLog.append(dir, track(1, 999), new PointStore(), false, 50f);
+
+        assertEquals(0, FogStore.readCount.get() - reads);
+        assertEquals(0, FogStore.writeCount.get() - writes);
+        assertEquals(snapshotBytes, new File(dir, FogStore.FILE_NAME).length());
+        assertEquals(FogPointLog.HEADER_BYTES + FogPointLog.RECORD_BYTES, log.length());
+
+        FogPointLog.append(dir, track(3, 500), track(2, 700), false, 50f);
+        assertEquals(FogPointLog.HEADER_BYTES + 6 * FogPointLog.RECORD_BYTES, log.length());
+    }
+
+    @Test
+    public void loadReplaysLogOnSnapshot() throws Exception {
+        FogLayerDb.saveLayers(dir, track(100, 0), track(10, 5000), 50f);
+        FogPointLog.append(dir, track(5, 900), track(3, 800), false, 50f);
+
+        PointStore primary = new PointStore();
+        PointStore shared = new PointStore();
+        FogLayerDb.loadLayers(dir, primary, shared);
+
+        assertEquals(105, primary.size());
+        assertEquals(13, shared.size());
+        assertEquals(track(5, 900).latE5(4), primary.latE5(104));
+    }
+
+    @Test
+    public void replacedSharedLayerClearsBeforeAdding() throws Exception {
+        FogLayerDb.saveLayers(dir, track(10, 0), track(10, 5000), 50f);
+        FogPointLog.append(dir, new PointStore(), track(4, 800), true, 50f);
+
+        PointStore primary = new PointStore();
+        PointStore shared = new PointStore();
+        FogLayerDb.loadLayers(dir, primary, shared);
+
+        assertEquals(10, primary.size());
+        assertEquals(4, shared.size());
+    }
+
+    @Test
+    public void tornTailIsIgnoredThenCutOff() throws Exception {
+        FogPointLog.append(dir, track(10, 0), new PointStore(), false, 50f);
+
+        // Crash half way through the next record
+        try (FileOutputStream out = new FileOutputStream(log, true)) {
+            out.write(new byte[]{1, 0, 0, 0});
+        }
+
+        PointStore primary = new PointStore();
+        FogLayerDb.loadLayers(dir, primary, new PointStore());
+        assertEquals(10, primary.size());
+
+        FogPointLog.append(dir, track(1, 900), new PointStore(), false, 50f);
+        assertEquals(FogPointLog.HEADER_BYTES + 11 * FogPointLog.RECORD_BYTES, log.length());
+
+        primary.clear();
+        FogLayerDb.loadLayers(dir, primary, new PointStore());
+        assertEquals(11, primary.size());
+        assertEquals(track(1, 900).latE5(0), primary.latE5(10));
+    }
+
+    @Test
+    public void compactionMergesAndDeletesLog() throws Exception {
+        FogLayerDb.saveLayers(dir, track(100, 0), new PointStore(), 50f);
+        FogPointLog.append(dir, track(FogPointLog.COMPACT_RECORDS, 900), new PointStore(), false, 50f);
+
+        assertFalse(log.exists());
+        PointStore primary = new PointStore();
+        FogLayerDb.loadLayers(dir, primary, new PointStore());
+        assertEquals(100 + FogPointLog.COMPACT_RECORDS, primary.size());
+    }
+
+    @Test
+    public void crashAfterCompactionDoesNotReplayTwice() throws Exception {
+        FogLayerDb.saveLayers(dir, track(100, 0), new PointStore(), 50f);
+        FogPointLog.append(dir, track(20, 900), new PointStore(), false, 50f);
+
+        // Keep the log as it was, compact, then put it back as if the delete never happened
+        File saved = new File(dir, "saved.log");
+        Files.copy(log.toPath(), saved.toPath());
+        FogPointLog.compact(dir, 50f);
+        assertFalse(log.exists());
+        Files.move(saved.toPath(), log.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        PointStore primary = new PointStore();
+        FogLayerDb.loadLayers(dir, primary, new PointStore());
+        assertEquals(120, primary.size());
+
+        // Later appends to that log are still picked up
+        FogPointLog.append(dir, track(2, 950), new PointStore(), false, 50f);
+        primary.clear();
+        FogLayerDb.loadLayers(dir, primary, new PointStore());
+        assertEquals(122, primary.size());
+    }
+
+    @Test
+    public void fullSaveSupersedesLog() throws Exception {
+        FogPointLog.append(dir, track(20, 900), new PointStore(), false, 50f);
+        FogLayerDb.saveLayers(dir, track(5, 0), new PointStore(), 50f);
+
+        PointStore primary = new PointStore();
+        FogLayerDb.loadLayers(dir, primary, new PointStore());
+        assertEquals(5, primary.size());
+    }
+}
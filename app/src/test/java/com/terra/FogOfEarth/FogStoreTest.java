@@ -0,0 +1,150 @@
+package com.terra.FogOfEarth;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static com.terra.FogOfEarth.TestTracks.track;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the binary fog snapshot: one file access per save/load, a faithful round trip, and
+ * migration from the gzip JSON DB.
+ */
+public class FogStoreTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = tmp.newFolder();
+    }
+
+    @Test
+    public void saveWritesOnceWithoutReading() throws Exception {
+        int reads = FogStore.readCount.get();
+        int writes = FogStore.writeCount.get();
+        int jsonReads = FogLayerDb.jsonReadCount.get();
+        FogLayerDb.saveLayers(dir, track(500, 0), track(200, 1000), 50f);
+
+        assertEquals(0, FogStore.readCount.get() - reads);
+        assertEquals(1, FogStore.writeCount.get() - writes);
+        assertEquals(0, FogLayerDb.jsonReadCount.get() - jsonReads);
+        assertEquals(FogStore.HEADER_BYTES + 700 * FogStore.RECORD_BYTES,
+                new File(dir, FogStore.FILE_NAME).length());
+    }
+
+    @Test
+    public void loadReadsOnce() throws Exception {
+        FogLayerDb.saveLayers(dir, track(500, 0), track(200, 1000), 50f);
+
+        int reads = FogStore.readCount.get();
+        int writes = FogStore.writeCount.get();
+        int jsonReads = FogLayerDb.jsonReadCount.get();
+        FogLayerDb.loadLayers(dir, new PointStore(), new PointStore());
+
+        assertEquals(1, FogStore.readCount.get() - reads);
+        assertEquals(0, FogStore.writeCount.get() - writes);
+        assertEquals(0, FogLayerDb.jsonReadCount.get() - jsonReads);
+    }
+
+    @Test
+    public void layersRoundTrip() throws Exception {
+        PointStore primary = track(500, 0);
+        PointStore shared = track(200, 1000);
+        primary.add(-33.8688, 151.2093);
+        primary.add(89.99999, -179.99999);
+        FogLayerDb.saveLayers(dir, primary, shared, 50f);
+
+        PointStore primaryIn = new PointStore();
+        PointStore sharedIn = new PointStore();
+        FogLayerDb.loadLayers(dir, primaryIn, sharedIn);
+
+        assertSameStore(primary, primaryIn);
+        assertSameStore(shared, sharedIn);
+    }
+
+    @Test
+    public void truncatedStoreIsRejected() throws Exception {
+        FogLayerDb.saveLayers(dir, track(50, 0), new PointStore(), 50f);
+        try (RandomAccessFile raf = new RandomAccessFile(new File(dir, FogStore.FILE_NAME), "rw")) {
+            raf.setLength(FogStore.HEADER_BYTES + 10 * FogStore.RECORD_BYTES);
+        }
+
+        PointStore primary = new PointStore();
+        assertNull(FogStore.read(dir, primary, new PointStore()));
+        assertEquals(0, primary.size());
+    }
+
+    @Test
+    public void migratesFromJsonSchemaVersion2() throws Exception {
+        PointStore primary = track(300, 0);
+        PointStore shared = track(40, 1000);
+        JsonDbFixture.write(dir, jsonDb(primary, shared));
+
+        PointStore primaryIn = new PointStore();
+        PointStore sharedIn = new PointStore();
+        FogLayerDb.loadLayers(dir, primaryIn, sharedIn);
+        assertSameStore(primary, primaryIn);
+        assertSameStore(shared, sharedIn);
+
+        // Migration runs on the writer thread
+        assertTrue(FogDbWriter.flush(5000));
+        assertTrue(FogStore.exists(dir));
+
+        int jsonReads = FogLayerDb.jsonReadCount.get();
+        primaryIn.clear();
+        sharedIn.clear();
+        FogLayerDb.loadLayers(dir, primaryIn, sharedIn);
+        assertEquals(0, FogLayerDb.jsonReadCount.get() - jsonReads);
+        assertSameStore(primary, primaryIn);
+        assertSameStore(shared, sharedIn);
+    }
+
+    @Test
+    public void migratesLegacyPointArrays() throws Exception {
+        JSONArray points = new JSONArray();
+        points.put(new JSONObject().put("lat", 55.8642).put("lon", -4.2518));
+        points.put(new JSONObject().put("lat", 55.8650).put("lon", -4.2520));
+        JSONObject layer = new JSONObject().put("layerId", "primary").put("points", points);
+        JsonDbFixture.write(dir,
+                new JSONObject().put("fog", new JSONObject().put("layers", new JSONArray().put(layer))));
+
+        FogLayerDb.loadLayers(dir, new PointStore(), new PointStore());
+        assertTrue(FogDbWriter.flush(5000));
+
+        PointStore primary = new PointStore();
+        assertNotNull(FogStore.read(dir, primary, new PointStore()));
+        assertEquals(2, primary.size());
+        assertEquals(5586420, primary.latE5(0));
+        assertEquals(-425200, primary.lonE5(1));
+    }
+
+    // -- Helpers --
+
+    private static JSONObject jsonDb(PointStore primary, PointStore shared) throws Exception {
+        JSONArray layers = new JSONArray();
+        layers.put(new JSONObject().put("layerId", "primary").put("revealRadiusMeters", 50)
+                .put("pointsEnc", PolylineCodec.encode(primary, 0, primary.size())));
+        layers.put(new JSONObject().put("layerId", "shared").put("revealRadiusMeters", 50)
+                .put("pointsEnc", PolylineCodec.encode(shared, 0, shared.size())));
+        return new JSONObject().put("schemaVersion", 2).put("fog", new JSONObject().put("layers", layers));
+    }
+
+    private static void assertSameStore(PointStore expected, PointStore actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.latE5(i), actual.latE5(i));
+            assertEquals(expected.lonE5(i), actual.lonE5(i));
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.terra.FogOfEarth;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the slippy-map tile maths used to render and invalidate fog tiles.
+ */
+public class FogTileCacheTest {
+
+    @Test
+    public void tileEdgesLineUpWithWorldPixels() {
+        for (int zoom : new int[]{0, 5, 12, 16, 20}) {
+            double world = FogTileCache.worldSizePx(zoom);
+            int n = 1 << zoom;
+            for (int y : new int[]{0, n / 3, n / 2, n - 1}) {
+                double north = FogTileCache.tileLatNorth(y, zoom);
+                assertEquals((double) y * FogTileCache.TILE_SIZE_PX, FogTileCache.worldY(north, world), 1e-3);
+            }
+            for (int x : new int[]{0, n / 3, n - 1}) {
+                double west = FogTileCache.tileLonWest(x, zoom);
+                assertEquals((double) x * FogTileCache.TILE_SIZE_PX, FogTileCache.worldX(west, world), 1e-3);
+            }
+        }
+    }
+
+    @Test
+    public void tileIndexContainsPoint() {
+        Random rnd = new Random(1);
+        for (int i = 0; i < 5000; i++) {
+            double lat = rnd.nextDouble() * 170 - 85;
+            double lon = rnd.nextDouble() * 360 - 180;
+            int zoom = rnd.nextInt(21);
+
+            int x = FogTileCache.tileX(lon, zoom);
+            int y = FogTileCache.tileY(lat, zoom);
+            assertTrue(FogTileCache.tileLonWest(x, zoom) <= lon + 1e-9);
+            assertTrue(FogTileCache.tileLonWest(x + 1, zoom) >= lon - 1e-9);
+            assertTrue(FogTileCache.tileLatNorth(y, zoom) >= lat - 1e-9);
+            assertTrue(FogTileCache.tileLatNorth(y + 1, zoom) <= lat + 1e-9);
+        }
+    }
+
+    @Test
+    public void metersPerPixelMatchesMercatorScale() {
+        // ~156 km per pixel at the equator at zoom 0, halving with every zoom level
+        assertEquals(156543.03, FogTileCache.metersPerPixel(0, FogTileCache.worldSizePx(0)), 0.01);
+        assertEquals(156543.03 / 65536 * Math.cos(Math.toRadians(55.86)),
+                FogTileCache.metersPerPixel(55.86, FogTileCache.worldSizePx(16)), 1e-4);
+    }
+}
@@ -0,0 +1,37 @@
+package com.terra.FogOfEarth;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes and reads the gzip JSON DB that older versions saved, which the app itself now only
+ * migrates from.
+ */
+final class JsonDbFixture {
+
+    private JsonDbFixture() {}
+
+    /** Write the DB as an older version would have left it */
+    static void write(File dir, JSONObject root) throws Exception {
+        try (FileOutputStream fos = new FileOutputStream(new File(dir, JsonDb.FILE_NAME_GZ));
+             GZIPOutputStream gos = new GZIPOutputStream(fos)) {
+            gos.write(root.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /** Read the whole DB into one JSONObject, as older versions loaded it */
+    static JSONObject read(File dir) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        try (Reader in = JsonDb.openReader(dir)) {
+            char[] buf = new char[8192];
+            int n;
+            while ((n = in.read(buf)) != -1) sb.append(buf, 0, n);
+        }
+        return new JSONObject(sb.toString());
+    }
+}
@@ -0,0 +1,170 @@
+package com.terra.FogOfEarth;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.*;
+
+public class NdjsonLogTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+    private ScheduledExecutorService writer;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = tmp.newFolder();
+        writer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        writer.shutdownNow();
+    }
+
+    @Test
+    public void buffersUntilFlushed() throws Exception {
+        NdjsonLog log = new NdjsonLog(dir, "events", 1 << 20, 1 << 16, 60_000, writer);
+        log.append("{\"a\":1}");
+        log.append("{\"a\":2}");
+        assertFalse(log.currentFile().exists());
+
+        assertTrue(log.flush(2000));
+        assertEquals(Arrays.asList("{\"a\":1}", "{\"a\":2}"), NdjsonLog.readLines(log.currentFile()));
+        assertEquals(new File(dir, "events.ndjson"), log.currentFile());
+    }
+
+    @Test
+    public void writesWhenTheBufferFills() throws Exception {
+        NdjsonLog log = new NdjsonLog(dir, "events", 1 << 20, 64, 60_000, writer);
+        for (int i = 0; i < 10; i++) log.append("{\"i\":" + i + "}");
+
+        // No flush asked for; the size limit alone gets most of it written
+        assertTrue(waitFor(() -> lines(log.currentFile()) >= 8));
+    }
+
+    @Test
+    public void writesAfterTheFlushInterval() throws Exception {
+        NdjsonLog log = new NdjsonLog(dir, "events", 1 << 20, 1 << 16, 50, writer);
+        log.append("{\"late\":true}");
+        assertTrue(waitFor(() -> lines(log.currentFile()) == 1));
+    }
+
+    @Test
+    public void rotatesIntoNumberedSegments() throws Exception {
+        NdjsonLog log = new NdjsonLog(dir, "events", 100, 32, 60_000, writer);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            String line = "{\"i\":" + i + "}";
+            expected.add(line);
+            log.append(line);
+            if (i % 10 == 9) assertTrue(log.flush(2000));
+        }
+        assertTrue(log.flush(2000));
+
+        List<File> segments = log.segments();
+        assertTrue(segments.size() > 5);
+        for (int i = 0; i < segments.size() - 1; i++) assertTrue(segments.get(i).length() >= 100);
+        List<String> all = new ArrayList<>();
+        for (int i = 0; i < segments.size(); i++) {
+            File f = segments.get(i);
+            String expectedName = i == segments.size() - 1 ? "events.ndjson" : "events." + (i + 1) + ".ndjson";
+            assertEquals(expectedName, f.getName());
+            all.addAll(NdjsonLog.readLines(f));
+        }
+        assertEquals(expected, all);
+    }
+
+    @Test
+    public void tornTailIsSkippedAndTrimmed() throws Exception {
+        File file = new File(dir, "events.ndjson");
+        write(file, "{\"a\":1}\n{\"a\":2}\n{\"a\":");
+        assertEquals(Arrays.asList("{\"a\":1}", "{\"a\":2}"), NdjsonLog.readLines(file));
+
+        // Appending after the crash doesn't glue onto the torn line
+        NdjsonLog log = new NdjsonLog(dir, "events", 1 << 20, 1 << 16, 60_000, writer);
+        log.append("{\"a\":3}");
+        assertTrue(log.flush(2000));
+        assertEquals(Arrays.asList("{\"a\":1}", "{\"a\":2}", "{\"a\":3}"), NdjsonLog.readLines(file));
+    }
+
+    @Test
+    public void zeroFilledTailIsSkippedAndTrimmed() throws Exception {
+        File file = new File(dir, "events.ndjson");
+        write(file, "{\"a\":1}\n\0\0\0\0");
+        assertEquals(Arrays.asList("{\"a\":1}"), NdjsonLog.readLines(file));
+
+        NdjsonLog log = new NdjsonLog(dir, "events", 1 << 20, 1 << 16, 60_000, writer);
+        log.append("{\"a\":2}");
+        assertTrue(log.flush(2000));
+        assertEquals(Arrays.asList("{\"a\":1}", "{\"a\":2}"), NdjsonLog.readLines(file));
+        assertEquals(16, file.length());
+    }
+
+    @Test
+    public void concurrentAppendsAreAllWrittenWhole() throws Exception {
+        NdjsonLog log = new NdjsonLog(dir, "events", 64 * 1024, 512, 10, writer);
+        int threads = 4;
+        int perThread = 5_000;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            workers.add(new Thread(() -> {
+                for (int i = 0; i < perThread; i++) log.append("{\"t\":" + id + ",\"i\":" + i + "}");
+            }));
+        }
+        for (Thread w : workers) w.start();
+        for (Thread w : workers) w.join();
+        assertTrue(log.flush(5000));
+
+        int[] next = new int[threads];
+        for (File f : log.segments()) {
+            for (String line : NdjsonLog.readLines(f)) {
+                // Each thread's lines arrive whole and in order
+                String[] parts = line.replaceAll("[{}\"ti:]", "").split(",");
+                int t = Integer.parseInt(parts[0]);
+                assertEquals(next[t]++, Integer.parseInt(parts[1]));
+            }
+        }
+        for (int n : next) assertEquals(perThread, n);
+    }
+
+    // -- Helpers --
+
+    private interface Condition {
+        boolean met() throws Exception;
+    }
+
+    private static boolean waitFor(Condition condition) throws Exception {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (System.currentTimeMillis() < deadline) {
+            if (condition.met()) return true;
+            Thread.sleep(10);
+        }
+        return condition.met();
+    }
+
+    private static int lines(File file) throws Exception {
+        return file.exists() ? NdjsonLog.readLines(file).size() : 0;
+    }
+
+    private static void write(File file, String text) throws Exception {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
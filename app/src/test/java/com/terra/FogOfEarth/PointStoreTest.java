@@ -0,0 +1,85 @@
+package com.terra.FogOfEarth;
+
+import org.junit.Test;
+import org.osmdroid.util.GeoPoint;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks the fixed-point point store keeps what the polyline codec would, in far less memory.
+ */
+public class PointStoreTest {
+
+    @Test
+    public void roundsToPolylinePrecision() {
+        PointStore store = new PointStore();
+        int i = store.add(55.864237, -4.251806);
+        assertEquals(5586424, store.latE5(i));
+        assertEquals(-425181, store.lonE5(i));
+        assertEquals(55.86424, store.lat(i), 1e-12);
+        assertEquals(-4.25181, store.lon(i), 1e-12);
+    }
+
+    @Test
+    public void growsAndKeepsOrder() {
+        PointStore store = new PointStore(1);
+        for (int i = 0; i < 10_000; i++) assertEquals(i, store.addE5(i, -i));
+        assertEquals(10_000, store.size());
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals(i, store.latE5(i));
+            assertEquals(-i, store.lonE5(i));
+        }
+    }
+
+    @Test
+    public void truncateAndCopy() {
+        PointStore store = new PointStore();
+        for (int i = 0; i < 10; i++) store.addE5(i, i);
+        PointStore copy = store.copy();
+
+        store.truncate(4);
+        assertEquals(4, store.size());
+        assertEquals(10, copy.size());
+        assertEquals(9, copy.latE5(9));
+
+        copy.addAll(store);
+        assertEquals(14, copy.size());
+        assertEquals(3, copy.lonE5(13));
+    }
+
+    @Test
+    public void usesSeveralTimesLessHeapThanGeoPoints() {
+        com.sun.management.ThreadMXBean mx =
+                (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        assumeTrue(mx.isThreadAllocatedMemorySupported());
+
+        int n = 100_000;
+        double[] lats = new double[n];
+        double[] lons = new double[n];
+        Random rnd = new Random(1);
+        for (int i = 0; i < n; i++) {
+            lats[i] = 55.8 + rnd.nextDouble() * 0.1;
+            lons[i] = -4.3 + rnd.nextDouble() * 0.1;
+        }
+
+        long tid = Thread.currentThread().getId();
+        long before = mx.getThreadAllocatedBytes(tid);
+        List<GeoPoint> list = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) list.add(new GeoPoint(lats[i], lons[i]));
+        long listBytes = mx.getThreadAllocatedBytes(tid) - before;
+
+        before = mx.getThreadAllocatedBytes(tid);
+        PointStore store = new PointStore(n);
+        for (int i = 0; i < n; i++) store.add(lats[i], lons[i]);
+        long storeBytes = mx.getThreadAllocatedBytes(tid) - before;
+
+        assertEquals(list.size(), store.size());
+        assertTrue("GeoPoint list " + listBytes + " bytes, store " + storeBytes + " bytes",
+                storeBytes * 4 < listBytes);
+    }
+}
@@ -0,0 +1,354 @@
+package com.terra.FogOfEarth;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks every form of the codec matches the original String encoder/decoder byte for byte and
+ * allocates nothing into reused buffers, and benchmarks them at 10k, 100k and 1M points (see
+ * {@link Benchmarks}).
+ */
+public class PolylineCodecTest {
+
+    @Test
+    public void roundTripMatchesOriginalByteForByte() {
+        Random rnd = new Random(17);
+        PolylineCodec.Encoder encoder = new PolylineCodec.Encoder();
+        for (int trial = 0; trial < 500; trial++) {
+            PointStore points = randomPoints(rnd, rnd.nextInt(200));
+            int from = points.isEmpty() ? 0 : rnd.nextInt(points.size());
+            int to = from + (points.size() == from ? 0 : rnd.nextInt(points.size() - from + 1));
+
+            String expected = Reference.encode(points, from, to);
+            assertEquals(expected, PolylineCodec.encode(points, from, to));
+            assertEquals(expected.length(), PolylineCodec.encodedLength(points, from, to));
+            assertEquals(expected, encoder.encode(points, from, to).toString());
+            assertEquals(expected.length(), encoder.length());
+
+            int[][] arrays = toArrays(points);
+            char[] chars = new char[3 + (to - from) * PolylineCodec.MAX_CHARS_PER_POINT];
+            int end = PolylineCodec.encode(arrays[0], arrays[1], from, to, chars, 3);
+            assertEquals(expected, new String(chars, 3, end - 3));
+
+            ByteBuffer bytes = ByteBuffer.allocate((to - from) * PolylineCodec.MAX_CHARS_PER_POINT);
+            PolylineCodec.encode(arrays[0], arrays[1], from, to, bytes);
+            bytes.flip();
+            assertEquals(expected, StandardCharsets.US_ASCII.decode(bytes.duplicate()).toString());
+
+            // And back
+            PointStore expectedPoints = new PointStore();
+            Reference.decode(expected, expectedPoints);
+            assertEquals(to - from, expectedPoints.size());
+
+            PointStore decoded = new PointStore();
+            PolylineCodec.decode(expected, decoded);
+            assertSameStore(expectedPoints, decoded);
+
+            int[] lats = new int[1 + expected.length() / 2];
+            int[] lons = new int[1 + expected.length() / 2];
+            assertEquals(to - from, PolylineCodec.decode(bytes, lats, lons, 1));
+            assertFalse(bytes.hasRemaining());
+            for (int i = 0; i < to - from; i++) {
+                assertEquals(points.latE5(from + i), lats[1 + i]);
+                assertEquals(points.lonE5(from + i), lons[1 + i]);
+            }
+        }
+    }
+
+    @Test
+    public void decodesArbitraryTextLikeOriginal() {
+        Random rnd = new Random(23);
+        for (int trial = 0; trial < 20_000; trial++) {
+            StringBuilder sb = new StringBuilder();
+            int len = rnd.nextInt(16);
+            for (int i = 0; i < len; i++) sb.append((char) (33 + rnd.nextInt(94)));
+            String text = sb.toString();
+
+            PointStore expected = new PointStore();
+            boolean expectedOk = decodes(() -> Reference.decode(text, expected));
+
+            PointStore actual = new PointStore();
+            actual.addE5(1, 2);
+            boolean actualOk = decodes(() -> PolylineCodec.decode(text, actual));
+            assertEquals(text, expectedOk, actualOk);
+            assertEquals(1 + expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.latE5(i), actual.latE5(i + 1));
+                assertEquals(expected.lonE5(i), actual.lonE5(i + 1));
+            }
+
+            ByteBuffer bytes = ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+            int[] lats = new int[len];
+            int[] lons = new int[len];
+            int[] count = new int[1];
+            boolean bytesOk = decodes(() -> count[0] = PolylineCodec.decode(bytes, lats, lons, 0));
+            assertEquals(text, expectedOk, bytesOk);
+            if (!bytesOk) continue;
+            assertEquals(expected.size(), count[0]);
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.latE5(i), lats[i]);
+                assertEquals(expected.lonE5(i), lons[i]);
+            }
+        }
+    }
+
+    @Test
+    public void reusedBuffersAllocateNothing() {
+        com.sun.management.ThreadMXBean mx =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(mx.isThreadAllocatedMemorySupported());
+        long tid = Thread.currentThread().getId();
+
+        int n = 100_000;
+        PointStore points = walk(n);
+        int[][] arrays = toArrays(points);
+        ByteBuffer bytes = ByteBuffer.allocate(n * PolylineCodec.MAX_CHARS_PER_POINT);
+        int[] lats = new int[n];
+        int[] lons = new int[n];
+
+        // Warm up, so class loading and compilation don't count
+        for (int i = 0; i < 3; i++) {
+            bytes.clear();
+            PolylineCodec.encode(arrays[0], arrays[1], 0, n, bytes);
+            bytes.flip();
+            PolylineCodec.decode(bytes, lats, lons, 0);
+        }
+
+        long before = mx.getThreadAllocatedBytes(tid);
+        bytes.clear();
+        PolylineCodec.encode(arrays[0], arrays[1], 0, n, bytes);
+        long encodeBytes = mx.getThreadAllocatedBytes(tid) - before;
+
+        bytes.flip();
+        before = mx.getThreadAllocatedBytes(tid);
+        PolylineCodec.decode(bytes, lats, lons, 0);
+        long decodeBytes = mx.getThreadAllocatedBytes(tid) - before;
+
+        assertEquals(points.latE5(n - 1), lats[n - 1]);
+        assertEquals(points.lonE5(n - 1), lons[n - 1]);
+        assertTrue("encode allocated " + encodeBytes, encodeBytes < 1024);
+        assertTrue("decode allocated " + decodeBytes, decodeBytes < 1024);
+    }
+
+    @Test
+    public void benchmark() {
+        com.sun.management.ThreadMXBean mx =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(mx.isThreadAllocatedMemorySupported());
+        Benchmarks.assumeEnabled();
+        long tid = Thread.currentThread().getId();
+
+        for (int n : new int[]{10_000, 100_000, 1_000_000}) {
+            PointStore points = walk(n);
+            int[][] arrays = toArrays(points);
+            char[] chars = new char[n * PolylineCodec.MAX_CHARS_PER_POINT];
+            ByteBuffer bytes = ByteBuffer.allocate(n * PolylineCodec.MAX_CHARS_PER_POINT);
+            int[] lats = new int[n];
+            int[] lons = new int[n];
+            String encoded = Reference.encode(points, 0, n);
+            int rounds = Math.max(3, 2_000_000 / n);
+
+            // Warm up
+            for (int i = 0; i < rounds; i++) {
+                Reference.encode(points, 0, n);
+                Reference.decode(encoded, new PointStore());
+                PolylineCodec.encode(arrays[0], arrays[1], 0, n, chars, 0);
+                bytes.clear();
+                PolylineCodec.encode(arrays[0], arrays[1], 0, n, bytes);
+                bytes.flip();
+                PolylineCodec.decode(bytes, lats, lons, 0);
+            }
+
+            long before = mx.getThreadAllocatedBytes(tid);
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) Reference.encode(points, 0, n);
+            long oldEncodeNs = (System.nanoTime() - start) / rounds;
+            long oldEncodeBytes = (mx.getThreadAllocatedBytes(tid) - before) / rounds;
+
+            before = mx.getThreadAllocatedBytes(tid);
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) Reference.decode(encoded, new PointStore());
+            long oldDecodeNs = (System.nanoTime() - start) / rounds;
+            long oldDecodeBytes = (mx.getThreadAllocatedBytes(tid) - before) / rounds;
+
+            before = mx.getThreadAllocatedBytes(tid);
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                bytes.clear();
+                PolylineCodec.encode(arrays[0], arrays[1], 0, n, bytes);
+            }
+            long encodeNs = (System.nanoTime() - start) / rounds;
+            long encodeBytes = (mx.getThreadAllocatedBytes(tid) - before) / rounds;
+
+            bytes.flip();
+            before = mx.getThreadAllocatedBytes(tid);
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                bytes.rewind();
+                PolylineCodec.decode(bytes, lats, lons, 0);
+            }
+            long decodeNs = (System.nanoTime() - start) / rounds;
+            long decodeBytes = (mx.getThreadAllocatedBytes(tid) - before) / rounds;
+
+            assertEquals(encoded, StandardCharsets.US_ASCII.decode(bytes.duplicate().rewind()).toString());
+            assertEquals(points.latE5(n - 1), lats[n - 1]);
+            assertEquals(points.lonE5(n - 1), lons[n - 1]);
+
+            String result = String.format("%,d points: encode %.2f ms / %,d B -> %.2f ms / %,d B; "
+                            + "decode %.2f ms / %,d B -> %.2f ms / %,d B",
+                    n, oldEncodeNs / 1e6, oldEncodeBytes, encodeNs / 1e6, encodeBytes,
+                    oldDecodeNs / 1e6, oldDecodeBytes, decodeNs / 1e6, decodeBytes);
+            assertTrue(result, encodeNs < oldEncodeNs);
+            assertTrue(result, decodeNs < oldDecodeNs);
+            assertTrue(result, encodeBytes < 1024 && decodeBytes < 1024);
+        }
+    }
+
+    // -- Helpers --
+
+    /** The codec as it was before the primitive-buffer forms, kept to compare against */
+    private static final class Reference {
+
+        static String encode(PointStore points, int from, int to) {
+            StringBuilder result = new StringBuilder();
+            long lastLat = 0;
+            long lastLon = 0;
+            for (int i = from; i < to; i++) {
+                long lat = points.latE5(i);
+                long lon = points.lonE5(i);
+                encodeSigned(lat - lastLat, result);
+                encodeSigned(lon - lastLon, result);
+                lastLat = lat;
+                lastLon = lon;
+            }
+            return result.toString();
+        }
+
+        private static void encodeSigned(long value, StringBuilder out) {
+            long s = value << 1;
+            if (value < 0) s = ~s;
+            while (s >= 0x20) {
+                int nextValue = (int) ((0x20 | (s & 0x1f)) + 63);
+                out.append((char) nextValue);
+                s >>= 5;
+            }
+            out.append((char) ((int) (s + 63)));
+        }
+
+        static void decode(String encoded, PointStore out) {
+            int start = out.size();
+            int index = 0;
+            long lat = 0;
+            long lon = 0;
+
+            try {
+                while (index < encoded.length()) {
+                    long packedLat = decodeSigned(encoded, index);
+                    index = (int) (packedLat >>> 32);
+                    long dLat = (int) packedLat;
+
+                    long packedLon = decodeSigned(encoded, index);
+                    index = (int) (packedLon >>> 32);
+                    long dLon = (int) packedLon;
+
+                    lat += dLat;
+                    lon += dLon;
+                    out.addE5((int) lat, (int) lon);
+                }
+            } catch (RuntimeException e) {
+                out.truncate(start);
+                throw e;
+            }
+        }
+
+        private static long decodeSigned(String encoded, int startIndex) {
+            long result = 0;
+            int shift = 0;
+            int index = startIndex;
+            int b;
+
+            do {
+                b = encoded.charAt(index++) - 63;
+                result |= (long) (b & 0x1f) << shift;
+                shift += 5;
+            } while (b >= 0x20 && index < encoded.length());
+
+            long delta = ((result & 1) != 0) ? ~(result >> 1) : (result >> 1);
+            return ((long) index << 32) | (delta & 0xffffffffL);
+        }
+    }
+
+    private static boolean decodes(Runnable decode) {
+        try {
+            decode.run();
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /** Mix of walks, jumps and extreme coordinates */
+    private static PointStore randomPoints(Random rnd, int n) {
+        PointStore store = new PointStore();
+        int lat = rnd.nextInt(18_000_001) - 9_000_000;
+        int lon = rnd.nextInt(36_000_001) - 18_000_000;
+        for (int i = 0; i < n; i++) {
+            switch (rnd.nextInt(6)) {
+                case 0:
+                    lat = rnd.nextInt(18_000_001) - 9_000_000;
+                    lon = rnd.nextInt(36_000_001) - 18_000_000;
+                    break;
+                case 1:
+                    lat = rnd.nextBoolean() ? 9_000_000 : -9_000_000;
+                    lon = rnd.nextBoolean() ? 18_000_000 : -18_000_000;
+                    break;
+                case 2:
+                    lat = rnd.nextInt();
+                    lon = rnd.nextInt();
+                    break;
+                default:
+                    lat += rnd.nextInt(201) - 100;
+                    lon += rnd.nextInt(201) - 100;
+            }
+            store.addE5(lat, lon);
+        }
+        return store;
+    }
+
+    private static PointStore walk(int n) {
+        PointStore store = new PointStore(n);
+        Random rnd = new Random(n);
+        int lat = 5586420;
+        int lon = -425180;
+        for (int i = 0; i < n; i++) {
+            lat += rnd.nextInt(41) - 20;
+            lon += rnd.nextInt(41) - 20;
+            store.addE5(lat, lon);
+        }
+        return store;
+    }
+
+    private static int[][] toArrays(PointStore points) {
+        int[][] arrays = new int[2][points.size()];
+        for (int i = 0; i < points.size(); i++) {
+            arrays[0][i] = points.latE5(i);
+            arrays[1][i] = points.lonE5(i);
+        }
+        return arrays;
+    }
+
+    private static void assertSameStore(PointStore expected, PointStore actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.latE5(i), actual.latE5(i));
+            assertEquals(expected.lonE5(i), actual.lonE5(i));
+        }
+    }
+}
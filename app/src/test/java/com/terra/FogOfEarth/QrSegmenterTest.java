@@ -0,0 +1,121 @@
+package com.terra.FogOfEarth;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class QrSegmenterTest {
+
+    @Test
+    public void emptyGivesTheEmptyPayload() {
+        assertArrayEquals(new String[] { "FOG3|EMPTY|1/1|" },
+                Fog3Payloads.build(new PointStore(), 800, "123"));
+    }
+
+    @Test
+    public void matchesReencodingEveryPoint() {
+        Random rnd = new Random(31);
+        for (int trial = 0; trial < 300; trial++) {
+            PointStore points = randomPoints(rnd, 1 + rnd.nextInt(400));
+            int maxLen = 1 + rnd.nextInt(rnd.nextBoolean() ? 30 : 900);
+
+            List<String> expected = referenceSegments(points, maxLen);
+            String[] payloads = Fog3Payloads.build(points, maxLen, "42");
+            assertEquals(expected.size(), payloads.length);
+            for (int i = 0; i < payloads.length; i++) {
+                assertEquals("FOG3|42|" + (i + 1) + "/" + payloads.length + "|" + expected.get(i), payloads[i]);
+            }
+        }
+    }
+
+    @Test
+    public void segmentsAreSelfContainedAndWithinLimit() {
+        PointStore points = randomPoints(new Random(5), 5_000);
+        PointStore decoded = new PointStore();
+        for (String payload : Fog3Payloads.build(points, 800, "7")) {
+            String segment = payload.split("\\|", 4)[3];
+            int before = decoded.size();
+            PolylineCodec.decode(segment, decoded);
+            assertTrue(segment.length() <= 800 || decoded.size() - before == 1);
+        }
+
+        assertEquals(points.size(), decoded.size());
+        for (int i = 0; i < points.size(); i++) {
+            assertEquals(points.latE5(i), decoded.latE5(i));
+            assertEquals(points.lonE5(i), decoded.lonE5(i));
+        }
+    }
+
+    @Test
+    public void segmentsCoverEveryPointOnce() {
+        PointStore points = randomPoints(new Random(8), 200_000);
+        List<int[]> ranges = new ArrayList<>();
+        int count = QrSegmenter.segments(points, 800, (from, to) -> ranges.add(new int[] { from, to }));
+
+        assertEquals(ranges.size(), count);
+        int next = 0;
+        for (int[] range : ranges) {
+            assertEquals(next, range[0]);
+            assertTrue(range[1] > range[0]);
+            assertTrue(PolylineCodec.encodedLength(points, range[0], range[1]) <= 800);
+            next = range[1];
+        }
+        assertEquals(points.size(), next);
+    }
+
+    @Test
+    public void transferIdFollowsThePoints() {
+        PointStore a = randomPoints(new Random(1), 500);
+        assertEquals(QrSegmenter.transferId(a), QrSegmenter.transferId(a.copy()));
+
+        // Any change to the points gives a new id
+        PointStore moved = a.copy();
+        moved.truncate(499);
+        moved.addE5(a.latE5(499) + 1, a.lonE5(499));
+        assertNotEquals(QrSegmenter.transferId(a), QrSegmenter.transferId(moved));
+        moved.truncate(499);
+        assertNotEquals(QrSegmenter.transferId(a), QrSegmenter.transferId(moved));
+        assertNotEquals(QrSegmenter.transferId(new PointStore()), QrSegmenter.transferId(moved));
+
+        // Safe inside a payload
+        assertTrue(QrSegmenter.transferId(a).matches("[0-9a-z]+"));
+    }
+
+    // -- Helpers --
+
+    /** The loop this replaces: re-encode the whole segment after every point */
+    private static List<String> referenceSegments(PointStore points, int maxLen) {
+        List<String> out = new ArrayList<>();
+        int segStart = 0;
+        for (int i = 0; i < points.size(); i++) {
+            String enc = PolylineCodec.encode(points, segStart, i + 1);
+            if (enc.length() > maxLen && i > segStart) {
+                out.add(PolylineCodec.encode(points, segStart, i));
+                segStart = i;
+            }
+        }
+        if (segStart < points.size()) out.add(PolylineCodec.encode(points, segStart, points.size()));
+        return out;
+    }
+
+    private static PointStore randomPoints(Random rnd, int n) {
+        PointStore store = new PointStore();
+        int lat = 5586420;
+        int lon = -425180;
+        for (int i = 0; i < n; i++) {
+            if (rnd.nextInt(50) == 0) {
+                lat = rnd.nextInt(18_000_001) - 9_000_000;
+                lon = rnd.nextInt(36_000_001) - 18_000_000;
+            } else {
+                lat += rnd.nextInt(401) - 200;
+                lon += rnd.nextInt(401) - 200;
+            }
+            store.addE5(lat, lon);
+        }
+        return store;
+    }
+}
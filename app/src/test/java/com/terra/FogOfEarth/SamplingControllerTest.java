@@ -0,0 +1,105 @@
+package com.terra.FogOfEarth;
+
+import org.junit.Test;
+
+import static com.terra.FogOfEarth.SamplingController.Mode.EXPLORED;
+import static com.terra.FogOfEarth.SamplingController.Mode.FRONTIER;
+import static com.terra.FogOfEarth.SamplingController.Mode.STATIONARY;
+import static org.junit.Assert.*;
+
+public class SamplingControllerTest {
+
+    private static final double LAT = 55.8642;
+    private static final double LON = -4.2518;
+
+    // About 1.4 m of latitude, a walking step every second
+    private static final double STEP = 1.4 / 111_195.0;
+
+    @Test
+    public void staysAtFullRateWhileFixesReveal() {
+        SamplingController c = new SamplingController(0);
+        for (int i = 0; i < 50; i++) {
+            assertEquals(FRONTIER, c.onFix(i * 2000L, LAT + i * STEP * 2, LON, 1.4f, true));
+        }
+        assertEquals(0, c.getModeChanges());
+        assertEquals(0, c.getFixesSaved(100_000));
+    }
+
+    @Test
+    public void slowsInsideRevealedFogAndRampsUpAtTheFrontier() {
+        SamplingController c = new SamplingController(0);
+        long t = 0;
+        for (int i = 1; i < SamplingController.QUIET_FIXES; i++) {
+            t += 2000;
+            assertEquals(FRONTIER, c.onFix(t, LAT + i * STEP * 2, LON, 1.4f, false));
+        }
+        t += 2000;
+        assertEquals(EXPLORED, c.onFix(t, LAT + 10 * STEP, LON, 1.4f, false));
+
+        // Walking on through explored fog: a fix every 10 s
+        for (int i = 0; i < 30; i++) {
+            t += EXPLORED.intervalMs;
+            assertEquals(EXPLORED, c.onFix(t, LAT + (20 + i * 10) * STEP, LON, 1.4f, false));
+        }
+
+        // Out into the fog again
+        t += EXPLORED.intervalMs;
+        assertEquals(FRONTIER, c.onFix(t, LAT + 400 * STEP, LON, 1.4f, true));
+        assertEquals(2, c.getModeChanges());
+
+        // 310 s explored at 2 s would have been 155 fixes; 31 came (the last one revealing)
+        assertEquals(310_000, c.getTimeInMode(EXPLORED, t));
+        assertEquals(31, c.getFixes(EXPLORED));
+        assertEquals(124, c.getFixesSaved(t));
+    }
+
+    @Test
+    public void standingStillSwitchesToNetworkUntilTheUserMoves() {
+        SamplingController c = new SamplingController(0);
+        long t = 0;
+        SamplingController.Mode mode = FRONTIER;
+
+        // Standing inside revealed fog with GPS jitter and near-zero speed
+        while (mode != STATIONARY) {
+            t += mode.intervalMs;
+            assertTrue("still not noticed by " + t, t <= SamplingController.STILL_MS + 20_000);
+            mode = c.onFix(t, LAT + ((t / 1000) % 3) * 2e-5, LON, 0.1f, false);
+        }
+        assertFalse(STATIONARY.gps);
+
+        // Network jitter doesn't wake GPS
+        t += STATIONARY.intervalMs;
+        assertEquals(STATIONARY, c.onCoarseFix(t, LAT + 3e-4, LON));
+
+        // Walked off: GPS comes back at the slow rate until something is revealed
+        t += STATIONARY.intervalMs;
+        assertEquals(EXPLORED, c.onCoarseFix(t, LAT + 2e-3, LON));
+        t += EXPLORED.intervalMs;
+        assertEquals(EXPLORED, c.onFix(t, LAT + 2.1e-3, LON, 1.4f, false));
+        t += EXPLORED.intervalMs;
+        assertEquals(FRONTIER, c.onFix(t, LAT + 2.2e-3, LON, 1.4f, true));
+    }
+
+    @Test
+    public void walkingSlowlyWithoutSpeedIsNotStandingStill() {
+        SamplingController c = new SamplingController(0);
+        long t = 0;
+        for (int i = 0; i < 100; i++) {
+            t += 10_000;
+            // 14 m every 10 s, no speed reported
+            assertNotEquals(STATIONARY, c.onFix(t, LAT + i * STEP * 10, LON, Float.NaN, false));
+        }
+        assertEquals(EXPLORED, c.getMode());
+    }
+
+    @Test
+    public void countsEveryFixAndTimeInEachMode() {
+        SamplingController c = new SamplingController(1000);
+        c.onFix(3000, LAT, LON, 1f, true);
+        c.onCoarseFix(4000, LAT, LON);
+        assertEquals(2, c.getFixes());
+        assertEquals(2, c.getFixes(FRONTIER));
+        assertEquals(9000, c.getTimeInMode(FRONTIER, 10_000));
+        assertEquals(0, c.getTimeInMode(EXPLORED, 10_000));
+    }
+}
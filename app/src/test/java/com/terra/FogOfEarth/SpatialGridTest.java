@@ -0,0 +1,181 @@
+package com.terra.FogOfEarth;
+
+import org.junit.Test;
+import org.osmdroid.util.GeoPoint;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks the spatial grid dedup rejects exactly the same points as the old linear scan in
+ * {@link FogModel#addPrimary}, over the same fixed-point stored coordinates.
+ */
+public class SpatialGridTest {
+
+    private static final double MIN_DISTANCE_M = 4.5;
+
+    @Test
+    public void matchesLinearScan_randomWalk() {
+        assertSameDecisions(randomWalk(new Random(1), 55.8642, -4.2518, 6000, 8.0));
+    }
+
+    @Test
+    public void matchesLinearScan_acrossDateline() {
+        assertSameDecisions(randomWalk(new Random(2), -16.5, 179.9995, 3000, 6.0));
+    }
+
+    @Test
+    public void matchesLinearScan_nearPole() {
+        assertSameDecisions(randomWalk(new Random(3), 89.9995, 10.0, 3000, 6.0));
+    }
+
+    @Test
+    public void matchesLinearScan_pointsOnThreshold() {
+        // Points spaced almost exactly at the threshold, where rounding would show up
+        Random rnd = new Random(4);
+        List<GeoPoint> track = new ArrayList<>();
+        double degPerMeter = 1.0 / 111319.49;
+        for (int i = 0; i < 2000; i++) {
+            double jitter = (rnd.nextDouble() - 0.5) * 1e-9;
+            track.add(new GeoPoint(51.5 + (i % 40) * MIN_DISTANCE_M * degPerMeter + jitter,
+                    -0.12 + (i / 40) * MIN_DISTANCE_M * degPerMeter / Math.cos(Math.toRadians(51.5))));
+        }
+        assertSameDecisions(track);
+    }
+
+    @Test
+    public void distanceMatchesGeoPoint() {
+        Random rnd = new Random(5);
+        for (int i = 0; i < 10000; i++) {
+            GeoPoint a = new GeoPoint(rnd.nextDouble() * 170 - 85, rnd.nextDouble() * 360 - 180);
+            GeoPoint b = new GeoPoint(rnd.nextDouble() * 170 - 85, rnd.nextDouble() * 360 - 180);
+            assertEquals(a.distanceToAsDouble(b),
+                    SpatialGrid.distanceMeters(a.getLatitude(), a.getLongitude(), b.getLatitude(), b.getLongitude()),
+                    0.0);
+        }
+    }
+
+    @Test
+    public void forEachInBounds_matchesBruteForceFilter() {
+        Random rnd = new Random(6);
+        PointStore store = new PointStore();
+        SpatialGrid grid = new SpatialGrid(64.0, store);
+        List<double[]> all = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            // Cluster around the antimeridian so wrapped boxes get exercised too
+            double lat = -10 + rnd.nextDouble() * 0.2;
+            double lon = 179.9 + rnd.nextDouble() * 0.2;
+            if (lon > 180) lon -= 360;
+            int index = store.add(lat, lon);
+            grid.add(index);
+            all.add(new double[]{store.lat(index), store.lon(index)});
+        }
+
+        double[][] boxes = {
+                {-9.95, -9.9, 179.95, 179.99},    // small box, probes cells
+                {-9.95, -9.85, 179.95, -179.95},  // crosses the antimeridian
+                {-90, 90, -180, 180},             // whole world, scans occupied cells
+        };
+        for (double[] b : boxes) {
+            int[] visited = {0};
+            grid.forEachInBounds(b[0], b[1], b[2], b[3], (lat, lon) -> visited[0]++);
+
+            int expected = 0;
+            double span = b[3] - b[2] < 0 ? b[3] - b[2] + 360 : b[3] - b[2];
+            for (double[] p : all) {
+                double offset = p[1] - b[2] < 0 ? p[1] - b[2] + 360 : p[1] - b[2];
+                if (p[0] >= b[0] && p[0] <= b[1] && offset <= span) expected++;
+            }
+            assertTrue(expected > 0);
+            assertEquals(expected, visited[0]);
+        }
+    }
+
+    @Test
+    public void forEachInBounds_allocatesNothingPerPoint() {
+        com.sun.management.ThreadMXBean mx =
+                (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        assumeTrue(mx.isThreadAllocatedMemorySupported());
+
+        PointStore store = new PointStore();
+        SpatialGrid grid = new SpatialGrid(64.0, store);
+        Random rnd = new Random(7);
+        for (int i = 0; i < 100_000; i++) {
+            grid.add(store.add(55.80 + rnd.nextDouble() * 0.1, -4.30 + rnd.nextDouble() * 0.1));
+        }
+
+        // One long-lived visitor writing into scratch state; TileCirclesTest counts the overlay's own
+        CountingVisitor visitor = new CountingVisitor();
+        grid.forEachInBounds(55.80, 55.90, -4.30, -4.20, visitor);  // warm up / class loading
+
+        long tid = Thread.currentThread().getId();
+        long before = mx.getThreadAllocatedBytes(tid);
+        for (int frame = 0; frame < 20; frame++) {
+            grid.forEachInBounds(55.80, 55.90, -4.30, -4.20, visitor);
+        }
+        long allocated = mx.getThreadAllocatedBytes(tid) - before;
+
+        assertEquals(20 * 100_000L, visitor.count - 100_000L);
+        // 2M points visited; anything per point would show up as megabytes
+        assertTrue("Allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    // -- Helpers --
+
+    private static final class CountingVisitor implements SpatialGrid.Visitor {
+        long count = 0;
+        double sum = 0;
+
+        @Override
+        public void visit(double lat, double lon) {
+            count++;
+            sum += lat + lon;
+        }
+    }
+
+    private static void assertSameDecisions(List<GeoPoint> track) {
+        List<GeoPoint> linear = new ArrayList<>();
+        PointStore store = new PointStore();
+        SpatialGrid grid = new SpatialGrid(64.0, store);
+
+        for (int i = 0; i < track.size(); i++) {
+            GeoPoint p = track.get(i);
+
+            boolean linearRejects = false;
+            for (GeoPoint existing : linear) {
+                if (existing.distanceToAsDouble(p) < MIN_DISTANCE_M) {
+                    linearRejects = true;
+                    break;
+                }
+            }
+            boolean gridRejects = grid.containsWithin(p.getLatitude(), p.getLongitude(), MIN_DISTANCE_M);
+
+            assertEquals("Decision differs at point " + i + " " + p, linearRejects, gridRejects);
+            if (!linearRejects) {
+                int index = store.add(p.getLatitude(), p.getLongitude());
+                grid.add(index);
+                linear.add(new GeoPoint(store.lat(index), store.lon(index)));
+            }
+        }
+        assertEquals(linear.size(), grid.size());
+    }
+
+    private static List<GeoPoint> randomWalk(Random rnd, double lat, double lon, int n, double maxStepM) {
+        List<GeoPoint> out = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            double step = rnd.nextDouble() * maxStepM;
+            double bearing = rnd.nextDouble() * 2 * Math.PI;
+            lat += step * Math.cos(bearing) / 111319.49;
+            lon += step * Math.sin(bearing) / (111319.49 * Math.max(1e-6, Math.cos(Math.toRadians(lat))));
+            if (lat > 90) lat = 180 - lat;
+            if (lon > 180) lon -= 360;
+            if (lon < -180) lon += 360;
+            out.add(new GeoPoint(lat, lon));
+        }
+        return out;
+    }
+}
@@ -0,0 +1,186 @@
+package com.terra.FogOfEarth;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.*;
+
+public class StudyExportTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void zipsEveryFileAndDecodesTrajectories() throws Exception {
+        File dir = tmp.newFolder();
+        File seg1 = write(new File(dir, "sessions.1.ndjson"), "{\"a\":1}\n");
+        File current = write(new File(dir, "sessions.ndjson"), "{\"a\":2}\n");
+        File snapshot = write(new File(dir, "fog_store.bin"), "FOGS....");
+        File missing = new File(dir, "fog_points.log");
+        File trajectory = trajectory(new File(dir, "trajectory_s1.bin"), 3);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StudyExport.writeZip(Arrays.asList(seg1, current, snapshot, missing), Collections.singletonList(trajectory),
+                false, out, null);
+
+        Map<String, String> entries = unzip(out.toByteArray());
+        assertEquals(Arrays.asList("sessions.1.ndjson", "sessions.ndjson", "fog_store.bin", "trajectory_s1.csv"),
+                new ArrayList<>(entries.keySet()));
+        assertEquals("{\"a\":2}\n", entries.get("sessions.ndjson"));
+        assertEquals("timeMs,lat,lon,accuracyM,speedMps,revealed\n"
+                + "1000,55.000000,-4.000000,5.0,1.00,1\n"
+                + "3000,55.000010,-4.000000,5.0,1.00,0\n"
+                + "5000,55.000020,-4.000000,5.0,1.00,1\n", entries.get("trajectory_s1.csv"));
+
+        out.reset();
+        StudyExport.writeZip(Collections.emptyList(), Collections.singletonList(trajectory), true, out, null);
+        String ndjson = unzip(out.toByteArray()).get("trajectory_s1.ndjson");
+        assertEquals(3, ndjson.split("\n").length);
+        assertTrue(ndjson.startsWith("{\"timeMs\":1000,"));
+    }
+
+    @Test
+    public void progressClimbsToTheTotal() throws Exception {
+        File dir = tmp.newFolder();
+        byte[] big = new byte[300 * 1024];
+        new Random(1).nextBytes(big);
+        File a = write(new File(dir, "a.bin"), big);
+        File b = write(new File(dir, "b.ndjson"), "{}\n");
+        File trajectory = trajectory(new File(dir, "trajectory_s1.bin"), 500);
+        long total = a.length() + b.length() + trajectory.length();
+
+        List<Long> reports = new ArrayList<>();
+        StudyExport.writeZip(Arrays.asList(a, b), Collections.singletonList(trajectory), false,
+                new ByteArrayOutputStream(), new StudyExport.Progress() {
+                    @Override
+                    public void onProgress(long doneBytes, long totalBytes) {
+                        assertEquals(total, totalBytes);
+                        reports.add(doneBytes);
+                    }
+
+                    @Override
+                    public void onFinished(boolean ok) {
+                        fail("writeZip leaves finishing to the caller");
+                    }
+                });
+
+        assertTrue(reports.size() >= 5);
+        for (int i = 1; i < reports.size(); i++) assertTrue(reports.get(i) >= reports.get(i - 1));
+        assertEquals(total, (long) reports.get(reports.size() - 1));
+    }
+
+    @Test
+    public void streamsThroughAPipeWithoutStaging() throws Exception {
+        File dir = tmp.newFolder();
+        byte[] big = new byte[2 * 1024 * 1024];
+        new Random(2).nextBytes(big);
+        File a = write(new File(dir, "a.bin"), big);
+
+        // The pipe only holds 64 KB, so the zip must be consumed as it is written
+        PipedInputStream in = new PipedInputStream(64 * 1024);
+        PipedOutputStream pipeOut = new PipedOutputStream(in);
+        IOException[] error = { null };
+        Thread writer = new Thread(() -> {
+            try (PipedOutputStream out = pipeOut) {
+                StudyExport.writeZip(Collections.singletonList(a), Collections.emptyList(), false, out, null);
+            } catch (IOException e) {
+                error[0] = e;
+            }
+        });
+        writer.start();
+
+        Map<String, String> entries = unzip(in);
+        writer.join(5000);
+        assertNull(error[0]);
+        assertEquals(big.length, entries.get("a.bin").length());
+        assertEquals(0, dir.listFiles((d, name) -> name.endsWith(".zip")).length);
+    }
+
+    @Test
+    public void stopsWhenTheReceiverGoesAway() throws Exception {
+        File dir = tmp.newFolder();
+        byte[] big = new byte[2 * 1024 * 1024];
+        new Random(3).nextBytes(big);
+        File a = write(new File(dir, "a.bin"), big);
+
+        PipedInputStream in = new PipedInputStream(16 * 1024);
+        PipedOutputStream out = new PipedOutputStream(in);
+        in.close();
+
+        try {
+            StudyExport.writeZip(Collections.singletonList(a), Collections.emptyList(), false, out, null);
+            fail("Expected the closed pipe to stop the export");
+        } catch (IOException expected) {
+            // Reader closed its end
+        }
+    }
+
+    // -- Helpers --
+
+    private File trajectory(File file, int fixes) throws Exception {
+        ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+        try {
+            TrajectoryLog log = new TrajectoryLog(file, 60_000, writer);
+            for (int i = 0; i < fixes; i++) log.append(1000 + i * 2000L, 55 + i * 1e-5, -4, 5f, 1f, i % 2 == 0);
+            assertTrue(log.flush(2000));
+            log.close();
+            assertTrue(log.flush(2000));
+        } finally {
+            writer.shutdownNow();
+        }
+        return file;
+    }
+
+    private static File write(File file, String text) throws Exception {
+        return write(file, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static File write(File file, byte[] bytes) throws Exception {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(bytes);
+        }
+        return file;
+    }
+
+    private static Map<String, String> unzip(byte[] zip) throws Exception {
+        return unzip(new ByteArrayInputStream(zip));
+    }
+
+    /** Entry name to contents, read as ISO-8859-1 so binary lengths are kept */
+    private static Map<String, String> unzip(InputStream in) throws Exception {
+        Map<String, String> entries = new LinkedHashMap<>();
+        try (ZipInputStream zis = new ZipInputStream(in)) {
+            ZipEntry entry;
+            byte[] buf = new byte[8192];
+            while ((entry = zis.getNextEntry()) != null) {
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                int n;
+                while ((n = zis.read(buf)) != -1) content.write(buf, 0, n);
+                entries.put(entry.getName(), new String(content.toByteArray(), StandardCharsets.ISO_8859_1));
+            }
+        }
+        return entries;
+    }
+}
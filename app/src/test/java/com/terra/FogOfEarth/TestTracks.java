@@ -0,0 +1,20 @@
+package com.terra.FogOfEarth;
+
+/**
+ * Point tracks shared by the fog storage tests.
+ */
+final class TestTracks {
+
+    private TestTracks() {}
+
+    /**
+     * A straight track of points a few meters apart, near Glasgow
+     * @param n Number of points
+     * @param offsetE5 Shifts the track north, so separate tracks don't overlap
+     */
+    static PointStore track(int n, int offsetE5) {
+        PointStore store = new PointStore();
+        for (int i = 0; i < n; i++) store.addE5(5586420 + offsetE5 + i * 7, -425180 + i * 3);
+        return store;
+    }
+}
@@ -0,0 +1,106 @@
+package com.terra.FogOfEarth;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks fog circles land where the Mercator tile maths puts them, and that rendering a tile
+ * from the model allocates nothing per point.
+ */
+public class TileCirclesTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void circlesMatchTheTilePixels() {
+        int zoom = 16;
+        double lat = 55.8642;
+        double lon = -4.2518;
+        int x = FogTileCache.tileX(lon, zoom);
+        int y = FogTileCache.tileY(lat, zoom);
+        double world = FogTileCache.worldSizePx(zoom);
+
+        float[] drawn = new float[3];
+        TileCircles circles = new TileCircles((cx, cy, radiusPx) -> {
+            drawn[0] = cx;
+            drawn[1] = cy;
+            drawn[2] = radiusPx;
+        });
+        circles.setTile(zoom, x, y, FogModel.RADIUS_METERS);
+        circles.visit(lat, lon);
+
+        assertEquals(FogTileCache.worldX(lon, world) - (double) x * FogTileCache.TILE_SIZE_PX, drawn[0], 1e-2);
+        assertEquals(FogTileCache.worldY(lat, world) - (double) y * FogTileCache.TILE_SIZE_PX, drawn[1], 1e-2);
+
+        // One radius for the tile, within a hair of the per-point one
+        double exact = FogModel.RADIUS_METERS / FogTileCache.metersPerPixel(lat, world);
+        assertEquals(exact, drawn[2], exact * 1e-3);
+
+        // The point is inside the padded bounds
+        assertTrue(lat > circles.south && lat < circles.north);
+        assertTrue(lon > circles.west && lon < circles.east);
+    }
+
+    @Test
+    public void renderingATileAllocatesNothingPerPoint() throws Exception {
+        com.sun.management.ThreadMXBean mx =
+                (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        assumeTrue(mx.isThreadAllocatedMemorySupported());
+
+        FogModel model = new FogModel(tmp.newFolder());
+        Random rnd = new Random(7);
+        for (int i = 0; i < 100_000; i++) {
+            model.addPrimary(55.80 + rnd.nextDouble() * 0.1, -4.30 + rnd.nextDouble() * 0.1);
+        }
+
+        // The tiles over the points at zoom 12, drawn as FogOverlay.renderTile does
+        int zoom = 12;
+        int x0 = FogTileCache.tileX(-4.30, zoom);
+        int x1 = FogTileCache.tileX(-4.20, zoom);
+        int y0 = FogTileCache.tileY(55.90, zoom);
+        int y1 = FogTileCache.tileY(55.80, zoom);
+        CountingTarget target = new CountingTarget();
+        TileCircles circles = new TileCircles(target);
+        renderTiles(model, circles, zoom, x0, x1, y0, y1);  // warm up / class loading
+        long perFrame = target.count;
+
+        long tid = Thread.currentThread().getId();
+        long before = mx.getThreadAllocatedBytes(tid);
+        for (int frame = 0; frame < 20; frame++) renderTiles(model, circles, zoom, x0, x1, y0, y1);
+        long allocated = mx.getThreadAllocatedBytes(tid) - before;
+
+        assertTrue(perFrame >= model.primarySize());
+        assertEquals(21 * perFrame, target.count);
+        // Millions of circles; anything per point would show up as megabytes
+        assertTrue("Allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    // -- Helpers --
+
+    private static void renderTiles(FogModel model, TileCircles circles, int zoom, int x0, int x1, int y0, int y1) {
+        for (int y = y0; y <= y1; y++) {
+            for (int x = x0; x <= x1; x++) {
+                circles.setTile(zoom, x, y, FogModel.RADIUS_METERS);
+                model.forEachPrimaryInBounds(circles.south, circles.north, circles.west, circles.east, circles);
+            }
+        }
+    }
+
+    private static final class CountingTarget implements TileCircles.Target {
+        long count = 0;
+        double sum = 0;
+
+        @Override
+        public void drawCircle(float cx, float cy, float radiusPx) {
+            count++;
+            sum += cx + cy + radiusPx;
+        }
+    }
+}
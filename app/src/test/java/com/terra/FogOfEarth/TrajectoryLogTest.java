@@ -0,0 +1,181 @@
+package com.terra.FogOfEarth;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.*;
+
+public class TrajectoryLogTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File file;
+    private ScheduledExecutorService writer;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(tmp.newFolder(), "trajectory_s1.bin");
+        writer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        writer.shutdownNow();
+    }
+
+    @Test
+    public void roundTripsEveryColumn() throws Exception {
+        TrajectoryLog log = new TrajectoryLog(file, 60_000, writer);
+        List<String> expected = new ArrayList<>();
+        Random rnd = new Random(3);
+        // More than one block, with unknown values and big jumps mixed in
+        for (int i = 0; i < TrajectoryLog.BLOCK_FIXES * 2 + 17; i++) {
+            long time = 1_700_000_000_000L + i * 2000L - (i == 40 ? 5000 : 0);
+            double lat = i == 100 ? -33.868800 : 55.864237 + i * 1e-5;
+            double lon = i == 100 ? 151.209300 : -4.251806 - i * 1e-5;
+            float accuracy = i % 7 == 0 ? Float.NaN : 3 + rnd.nextInt(200) / 10f;
+            float speed = i % 5 == 0 ? Float.NaN : rnd.nextInt(500) / 100f;
+            boolean revealed = rnd.nextBoolean();
+            log.append(time, lat, lon, accuracy, speed, revealed);
+            expected.add(fix(time, lat, lon, accuracy, speed, revealed));
+        }
+        assertTrue(log.flush(2000));
+
+        assertEquals(expected, readAll(file));
+    }
+
+    @Test
+    public void walkingCostsAFewBytesPerFix() throws Exception {
+        TrajectoryLog log = new TrajectoryLog(file, 60_000, writer);
+        int n = 10_000;
+        walk(log, new Random(8), n, 0);
+        assertTrue(log.flush(5000));
+
+        double perFix = file.length() / (double) n;
+        assertTrue("bytes per fix " + perFix, perFix <= 8);
+        assertEquals(n, readAll(file).size());
+    }
+
+    @Test
+    public void writesAfterTheFlushInterval() throws Exception {
+        TrajectoryLog log = new TrajectoryLog(file, 50, writer);
+        log.append(1000, 55.8, -4.2, 5f, 1f, true);
+
+        long deadline = System.currentTimeMillis() + 2000;
+        while (fixes(file) == 0 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assertEquals(1, fixes(file));
+    }
+
+    @Test
+    public void tornTailIsSkippedAndTrimmed() throws Exception {
+        TrajectoryLog log = new TrajectoryLog(file, 60_000, writer);
+        walk(log, new Random(1), 300, 0);
+        assertTrue(log.flush(2000));
+        List<String> written = readAll(file);
+        log.close();
+
+        // Crash halfway through writing the next block
+        long good = file.length();
+        walk(log, new Random(2), 50, 10_000_000);
+        assertTrue(log.flush(2000));
+        log.close();
+        assertTrue(log.flush(2000));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(good + (file.length() - good) / 2);
+        }
+        assertEquals(written, readAll(file));
+
+        // The next process appends after the last good block, and all of it reads back
+        TrajectoryLog reopened = new TrajectoryLog(file, 60_000, writer);
+        reopened.append(99_000_000, 55.9, -4.3, 4f, 1.25f, true);
+        assertTrue(reopened.flush(2000));
+        List<String> all = readAll(file);
+        assertEquals(written.size() + 1, all.size());
+        assertEquals(written, all.subList(0, written.size()));
+    }
+
+    @Test
+    public void corruptBlockStopsTheRead() throws Exception {
+        TrajectoryLog log = new TrajectoryLog(file, 60_000, writer);
+        walk(log, new Random(5), TrajectoryLog.BLOCK_FIXES * 3, 0);
+        assertTrue(log.flush(2000));
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(file.length() / 2);
+            int b = raf.read();
+            raf.seek(file.length() / 2);
+            raf.write(b ^ 0x40);
+        }
+        int n = fixes(file);
+        assertTrue(n > 0 && n < TrajectoryLog.BLOCK_FIXES * 3 && n % TrajectoryLog.BLOCK_FIXES == 0);
+    }
+
+    @Test
+    public void decodesToCsvAndNdjson() throws Exception {
+        TrajectoryLog log = new TrajectoryLog(file, 60_000, writer);
+        log.append(1000, 55.864237, -4.251806, 4.5f, 1.25f, true);
+        log.append(3000, 0.0004, -0.000012, Float.NaN, Float.NaN, false);
+        assertTrue(log.flush(2000));
+
+        StringWriter csv = new StringWriter();
+        assertEquals(2, TrajectoryLog.writeCsv(file, csv));
+        assertEquals("timeMs,lat,lon,accuracyM,speedMps,revealed\n"
+                + "1000,55.864237,-4.251806,4.5,1.25,1\n"
+                + "3000,0.000400,-0.000012,,,0\n", csv.toString());
+
+        StringWriter ndjson = new StringWriter();
+        assertEquals(2, TrajectoryLog.writeNdjson(file, ndjson));
+        assertEquals("{\"timeMs\":1000,\"lat\":55.864237,\"lon\":-4.251806,\"accuracyM\":4.5,\"speedMps\":1.25,\"revealed\":true}\n"
+                + "{\"timeMs\":3000,\"lat\":0.000400,\"lon\":-0.000012,\"accuracyM\":null,\"speedMps\":null,\"revealed\":false}\n",
+                ndjson.toString());
+    }
+
+    // -- Helpers --
+
+    /** A fix every 2 s at walking pace with GPS noise, accuracy that drifts, and occasional reveals */
+    private static void walk(TrajectoryLog log, Random rnd, int n, long startMs) {
+        double lat = 55.8642;
+        double lon = -4.2518;
+        double heading = 0;
+        float accuracy = 8f;
+        for (int i = 0; i < n; i++) {
+            heading += rnd.nextGaussian() * 0.2;
+            lat += 2.8 * Math.cos(heading) / 111320.0 + rnd.nextGaussian() * 1e-6;
+            lon += 2.8 * Math.sin(heading) / 62600.0 + rnd.nextGaussian() * 1e-6;
+            if (rnd.nextInt(10) == 0) accuracy = Math.max(2f, accuracy + (rnd.nextBoolean() ? 1 : -1));
+            float speed = 1.4f + rnd.nextInt(20) / 100f;
+            log.append(startMs + i * 2000L + rnd.nextInt(40), lat, lon, accuracy, speed, rnd.nextInt(3) == 0);
+        }
+    }
+
+    private static List<String> readAll(File file) throws Exception {
+        List<String> out = new ArrayList<>();
+        TrajectoryLog.read(file, (timeMs, lat, lon, accuracy, speed, revealed) ->
+                out.add(fix(timeMs, lat, lon, accuracy, speed, revealed)));
+        return out;
+    }
+
+    private static int fixes(File file) throws Exception {
+        return file.exists() ? TrajectoryLog.read(file, (timeMs, lat, lon, accuracy, speed, revealed) -> {}) : 0;
+    }
+
+    /** A fix as stored: 1e-6 degrees, decimeters, centimeters per second */
+    private static String fix(long timeMs, double lat, double lon, float accuracy, float speed, boolean revealed) {
+        return timeMs + " " + Math.round(lat * 1e6) + " " + Math.round(lon * 1e6) + " "
+                + (Float.isNaN(accuracy) ? "-" : Math.round(accuracy * 10)) + " "
+                + (Float.isNaN(speed) ? "-" : Math.round(speed * 100)) + " " + revealed;
+    }
+}